@@ -2,7 +2,7 @@
 # -*- coding: utf-8 -*-
 # vim: ts=4 sw=4 expandtab:
 
-import os, sys, subprocess, difflib
+import os, sys, subprocess, difflib, filecmp, shutil
 from threading import Timer
 
 # Java:
@@ -41,12 +41,47 @@ def eq(expected: str, actual: str) -> bool:
         print('\033[35m' + s + '\033[0m' if SHOW_COLOR else s)
     return False
 
+# check if two files are identical, byte by byte
+def identical(expected: str, actual: str) -> bool:
+    if filecmp.cmp(expected, actual, shallow=False):
+        print('\033[32mCORRECT\033[0m' if SHOW_COLOR else 'CORRECT')
+        return True
+
+    print('\033[31mWRONG\033[0m' if SHOW_COLOR else 'WRONG')
+    if SHOW_DIFF:
+        with open(expected, 'r') as f:
+            expected_lines = f.read().splitlines()
+        with open(actual, 'r') as f:
+            actual_lines = f.read().splitlines()
+        s = '\n'.join(difflib.unified_diff(expected_lines, actual_lines, expected, actual))
+        print('\033[35m' + s + '\033[0m' if SHOW_COLOR else s)
+    return False
+
+# check if every file contains some text
+def contains(actuals: [str], text: str) -> bool:
+    missing = []
+    for actual in actuals:
+        with open(actual, 'r') as f:
+            if text not in f.read():
+                missing.append(actual)
+    if len(missing) == 0:
+        print('\033[32mCORRECT\033[0m' if SHOW_COLOR else 'CORRECT')
+        return True
+
+    print('\033[31mWRONG\033[0m' if SHOW_COLOR else 'WRONG')
+    if SHOW_DIFF:
+        s = '\n'.join('{} does not contain: {}'.format(actual, text) for actual in missing)
+        print('\033[35m' + s + '\033[0m' if SHOW_COLOR else s)
+    return False
+
 # running a shell command
-def run(cmd: [str], output_name: str = '', ignore_error: bool = False) -> bool:
+def run(cmd: [str], output_name: str = '', ignore_error: bool = False, input_name: str = '',
+        timeout: int = TIMEOUT_SECONDS) -> bool:
     fw = subprocess.PIPE if output_name == '' else open(output_name, 'w')
-    p = subprocess.Popen(cmd, shell=False, stdout=fw, stderr=fw)
+    fr = None if input_name == '' else open(input_name, 'r')
+    p = subprocess.Popen(cmd, shell=False, stdin=fr, stdout=fw, stderr=fw)
     try:
-        ret = p.wait(TIMEOUT_SECONDS)
+        ret = p.wait(timeout)
     except subprocess.TimeoutExpired:
         print('\033[1;34mTIMEOUT\033[0m' if SHOW_COLOR else 'TIMEOUT')
         return False
@@ -58,8 +93,9 @@ def run(cmd: [str], output_name: str = '', ignore_error: bool = False) -> bool:
     return True
 
 # running decaf
-def run_decaf(args: [str]) -> bool:
-    return run(['java', '-jar', '--enable-preview', DECAF_JAR] + args)
+def run_decaf(args: [str], output_name: str = '', ignore_error: bool = False, input_name: str = '',
+              timeout: int = TIMEOUT_SECONDS) -> bool:
+    return run(['java', '-jar', '--enable-preview', DECAF_JAR] + args, output_name, ignore_error, input_name, timeout)
 
 # running java virtual machine
 def run_jvm(bytecode_dir: str, output: str) -> bool:
@@ -95,6 +131,12 @@ class Tester:
             os.mkdir(d)
         return d
 
+    def get_sub_dir(self, test_case_name: str, name: str) -> str:
+        d = os.path.join(self.get_output_dir(test_case_name), name)
+        if not os.path.exists(d):
+            os.mkdir(d)
+        return d
+
     def get_result(self, test_case_name: str) -> str:
         return os.path.join(self.result_dir, test_case_name.replace('.decaf', '.result'))
 
@@ -107,8 +149,9 @@ class Tester:
         return [self.test_one(t) for t in self.test_cases]
 
 class PATester(Tester):
-    def __init__(self, pa: str, test_set: str, exclude: [str]):
+    def __init__(self, pa: str, test_set: str, exclude: [str], options: [str] = []):
         self.pa = pa
+        self.options = options
         Tester.__init__(self, test_set, exclude)
 
     def test_one(self, test_case_name: str) -> bool:
@@ -116,7 +159,8 @@ class PATester(Tester):
         result = self.get_result(test_case_name)
         sys.stdout.write('{}  ...  '.format(test_case_name))
         # compile
-        if run_decaf(['-t', self.pa, '-o', output, '-d', self.output_dir, self.get_test_case(test_case_name)]):
+        if run_decaf(['-t', self.pa, '-o', output, '-d', self.output_dir] + self.options +
+                     [self.get_test_case(test_case_name)]):
             # compare output with result
             return eq(result, output)
         return False
@@ -141,6 +185,245 @@ class PA4Tester(PATester):
     def __init__(self, test_set: str, exclude: [str]):
         PATester.__init__(self, 'PA4', test_set, exclude)
 
+# functions optimized concurrently: the optimized TAC must be identical to the serial one
+class PA4ParallelTester(PATester):
+    def __init__(self, test_set: str, exclude: [str]):
+        PATester.__init__(self, 'PA4', test_set, exclude, ['--parallel', '4'])
+
+    def test_one(self, test_case_name: str) -> bool:
+        source = self.get_test_case(test_case_name)
+        serial_dir = self.get_output_dir(test_case_name)
+        tac_name = test_case_name.replace('.decaf', '.tac')
+        output = self.get_output(test_case_name)
+        sys.stdout.write('{}  ...  '.format(test_case_name))
+        if not run_decaf(['-t', self.pa, '-o', os.path.join(serial_dir, 'serial.output'), '-d', serial_dir, source]):
+            return False
+        if not run_decaf(['-t', self.pa, '-o', output, '-d', self.output_dir] + self.options + [source]):
+            return False
+        sys.stdout.write('serial  ...  ')
+        if not filecmp.cmp(os.path.join(serial_dir, tac_name), os.path.join(self.output_dir, tac_name), shallow=False):
+            return identical(os.path.join(serial_dir, tac_name), os.path.join(self.output_dir, tac_name))
+        # compare output with result
+        return eq(self.get_result(test_case_name), output)
+
+# all programs compiled by one batch (--batch), from a manifest: every job must write its -o output as if compiled alone
+class BatchTester(Tester):
+    def __init__(self, pa: str, test_set: str, exclude: [str]):
+        self.pa = pa
+        Tester.__init__(self, test_set, exclude)
+
+    def test(self) -> [bool]:
+        s = 'Running test set {} in one batch'.format(self.test_set)
+        print('\033[4m' + s + '\033[0m' if SHOW_COLOR else s)
+        # paths in a manifest are relative to its folder
+        manifest = os.path.join(self.output_dir, 'manifest')
+        with open(manifest, 'w') as f:
+            for t in self.test_cases:
+                f.write('-t {} -o {} -d . {}\n'.format(self.pa, os.path.basename(self.get_output(t)),
+                                                        os.path.join('..', t)))
+        sys.stdout.write('{}  ...  '.format(manifest))
+        if not run_decaf(['--batch', manifest, '-j', '4'], timeout=TIMEOUT_SECONDS * len(self.test_cases)):
+            return [False]
+        print('done')
+        return [self.test_one(t) for t in self.test_cases]
+
+    def test_one(self, test_case_name: str) -> bool:
+        sys.stdout.write('{}  ...  '.format(test_case_name))
+        return eq(self.get_result(test_case_name), self.get_output(test_case_name))
+
+class PA4BatchTester(BatchTester):
+    def __init__(self, test_set: str, exclude: [str]):
+        BatchTester.__init__(self, 'PA4', test_set, exclude)
+
+# PA3 .tac files read back: printed again, they must be identical, and compiled for PA4, they must behave like the source
+class TacTester(Tester):
+    def __init__(self, test_set: str, exclude: [str]):
+        Tester.__init__(self, test_set, exclude)
+
+    def test_one(self, test_case_name: str) -> bool:
+        source = self.get_test_case(test_case_name)
+        tac = self.get_intermediate_output(test_case_name, '.tac')
+        reload_dir = self.get_output_dir(test_case_name)
+        reloaded = os.path.join(reload_dir, test_case_name.replace('.decaf', '.tac'))
+        pa4_dir = os.path.join(reload_dir, 'PA4')
+        if not os.path.exists(pa4_dir):
+            os.mkdir(pa4_dir)
+        from_source = os.path.join(pa4_dir, 'source.output')
+        from_tac = os.path.join(pa4_dir, 'tac.output')
+        sys.stdout.write('{}  ...  '.format(test_case_name))
+        # dump the tac, and print it again after reading it back
+        if not run_decaf(['-t', 'PA3', '-o', self.get_output(test_case_name), '-d', self.output_dir, source]):
+            return False
+        if not run_decaf(['-t', 'PA3', '-o', os.path.join(reload_dir, 'tac.output'), '-d', reload_dir, tac]):
+            return False
+        sys.stdout.write('reload  ...  ')
+        if not filecmp.cmp(tac, reloaded, shallow=False):
+            return identical(tac, reloaded)
+        # optimize from both
+        if not run_decaf(['-t', 'PA4', '-o', from_source, '-d', pa4_dir, source]):
+            return False
+        if not run_decaf(['-t', 'PA4', '-o', from_tac, '-d', pa4_dir, tac]):
+            return False
+        sys.stdout.write('PA4  ...  ')
+        return identical(from_source, from_tac)
+
+# binary TAC programs (--tacb) loaded again: memory-mapped from a file and read from a pipe, they must print as the
+# .tac dumped along with them; truncated, they must be rejected
+class TacBinaryTester(Tester):
+    def __init__(self, test_set: str, exclude: [str]):
+        Tester.__init__(self, test_set, exclude)
+
+    def load(self, test_case_name: str, how: str, tacb: str) -> bool:
+        d = self.get_sub_dir(test_case_name, how)
+        tac = self.get_intermediate_output(test_case_name, '.tac')
+        if not run_decaf(['-t', 'PA3', '-o', os.path.join(d, 'tacb.output'), '-d', d, tacb]):
+            return False
+        sys.stdout.write('{}  ...  '.format(how))
+        loaded = os.path.join(d, test_case_name.replace('.decaf', '.tac'))
+        return filecmp.cmp(tac, loaded, shallow=False) or identical(tac, loaded)
+
+    def test_one(self, test_case_name: str) -> bool:
+        tacb = self.get_intermediate_output(test_case_name, '.tacb')
+        tacb_name = os.path.basename(tacb)
+        sys.stdout.write('{}  ...  '.format(test_case_name))
+        if not run_decaf(['-t', 'PA3', '--tacb', '-o', self.get_output(test_case_name), '-d', self.output_dir,
+                          self.get_test_case(test_case_name)]):
+            return False
+
+        # memory-mapped
+        if not self.load(test_case_name, 'map', tacb):
+            return False
+
+        # read whole from a pipe
+        pipe = os.path.join(self.get_sub_dir(test_case_name, 'read'), tacb_name)
+        if os.path.exists(pipe):
+            os.remove(pipe)
+        os.mkfifo(pipe)
+        writer = subprocess.Popen(['dd', 'if=' + tacb, 'of=' + pipe, 'status=none'])
+        try:
+            if not self.load(test_case_name, 'read', pipe):
+                return False
+        finally:
+            writer.kill()
+            writer.wait()
+
+        # truncated, in the middle and by the last byte
+        with open(tacb, 'rb') as f:
+            data = f.read()
+        d = self.get_sub_dir(test_case_name, 'truncated')
+        truncated = os.path.join(d, tacb_name)
+        outputs = []
+        for size in [len(data) // 2, len(data) - 1]:
+            with open(truncated, 'wb') as f:
+                f.write(data[:size])
+            outputs.append(os.path.join(d, '{}.output'.format(size)))
+            if not run_decaf(['-t', 'PA3', '-o', outputs[-1], '-d', d, truncated], ignore_error=True):
+                return False
+        sys.stdout.write('truncated  ...  ')
+
+        # bytes flipped inside the body of the last function, which is only decoded when first used: the error must
+        # be reported as usual, not crash the compiler
+        d = self.get_sub_dir(test_case_name, 'corrupt')
+        corrupt = os.path.join(d, tacb_name)
+        with open(corrupt, 'wb') as f:
+            f.write(data[:-8] + bytes(b ^ 0xff for b in data[-8:]))
+        for target in ['PA3', 'PA4']:
+            outputs.append(os.path.join(d, '{}.output'.format(target)))
+            if not run_decaf(['-t', target, '-d', d, corrupt], outputs[-1]):
+                return False
+        sys.stdout.write('corrupt  ...  ')
+        return contains(outputs, 'malformed TAC')
+
+# the TAC simulator with a small heap (--sim-heap): a program must run as usual, unless it has a .error result, which
+# the simulator must fail with
+class SimHeapTester(Tester):
+    HEAP_KIB = '16'
+
+    def __init__(self, test_set: str, exclude: [str]):
+        Tester.__init__(self, test_set, exclude)
+
+    def test_one(self, test_case_name: str) -> bool:
+        output = self.get_output(test_case_name)
+        log = self.get_intermediate_output(test_case_name, '.log')
+        result = self.get_result(test_case_name)
+        error = os.path.join(self.result_dir, test_case_name.replace('.decaf', '.error'))
+        fails = os.path.exists(error)
+        sys.stdout.write('{}  ...  '.format(test_case_name))
+        if not run_decaf(['-t', 'PA3', '--sim-heap', self.HEAP_KIB, '-o', output, '-d', self.output_dir,
+                          self.get_test_case(test_case_name)], log, fails):
+            return False
+        if fails:
+            with open(error, 'r') as f:
+                expected = f.read().strip()
+            with open(log, 'r') as f:
+                if expected not in f.read():
+                    return contains([log], expected)
+        return eq(result, output)
+
+# profile-guided optimization: profiled (--profile) on the .train input, and run on the .in input, PA4 must give the
+# same output with the profile (--profile-use) as without it
+class ProfileTester(Tester):
+    def __init__(self, test_set: str, exclude: [str]):
+        Tester.__init__(self, test_set, exclude)
+
+    def test_one(self, test_case_name: str) -> bool:
+        source = self.get_test_case(test_case_name)
+        train = self.get_test_case(test_case_name.replace('.decaf', '.train'))
+        test_input = self.get_test_case(test_case_name.replace('.decaf', '.in'))
+        profile_dir = self.get_output_dir(test_case_name)
+        profile = os.path.join(profile_dir, test_case_name.replace('.decaf', '.prof'))
+        plain = self.get_intermediate_output(test_case_name, '.plain.output')
+        output = self.get_output(test_case_name)
+        sys.stdout.write('{}  ...  '.format(test_case_name))
+        if not run_decaf(['-t', 'PA3', '--profile', '-o', os.path.join(profile_dir, 'train.output'), '-d', profile_dir,
+                          source], input_name=train):
+            return False
+        if not run_decaf(['-t', 'PA4', '-o', plain, '-d', self.output_dir, source], input_name=test_input):
+            return False
+        sys.stdout.write('profile  ...  ')
+        if not run_decaf(['-t', 'PA4', '--profile-use', profile, '-o', output, '-d', profile_dir, source],
+                         input_name=test_input):
+            return False
+        if not filecmp.cmp(plain, output, shallow=False):
+            return identical(plain, output)
+        return eq(self.get_result(test_case_name), output)
+
+# the function cache (--cache): filled by compiling the program of the same name in warm/, it must give byte-identical
+# assembly code, although the labels and strings of the cached functions are numbered differently
+class CacheTester(Tester):
+    def __init__(self, test_set: str, exclude: [str]):
+        Tester.__init__(self, test_set, exclude)
+
+    def test_one(self, test_case_name: str) -> bool:
+        source = self.get_test_case(test_case_name)
+        warm = os.path.join(self.test_set, 'warm', test_case_name)
+        asm_name = test_case_name.replace('.decaf', '.s')
+        # start from an empty cache, which holds entries in sub folders
+        shutil.rmtree(os.path.join(self.get_output_dir(test_case_name), 'cache'), ignore_errors=True)
+        cache_dir = self.get_sub_dir(test_case_name, 'cache')
+        cold_dir = self.get_sub_dir(test_case_name, 'cold')
+        hit_dir = self.get_sub_dir(test_case_name, 'hit')
+        log = os.path.join(hit_dir, 'cache.log')
+        output = self.get_output(test_case_name)
+        sys.stdout.write('{}  ...  '.format(test_case_name))
+        if not run_decaf(['-d', cold_dir, source]):
+            return False
+        if not run_decaf(['--cache', cache_dir, '-d', self.get_sub_dir(test_case_name, 'warm'), warm]):
+            return False
+        if not run_decaf(['--cache', cache_dir, '--log-level', 'info', '--log-file', log, '-d', hit_dir, source]):
+            return False
+        sys.stdout.write('cache  ...  ')
+        with open(log, 'r') as f:
+            if 'cache: hit' not in f.read():
+                return contains([log], 'cache: hit')
+        if not filecmp.cmp(os.path.join(cold_dir, asm_name), os.path.join(hit_dir, asm_name), shallow=False):
+            return identical(os.path.join(cold_dir, asm_name), os.path.join(hit_dir, asm_name))
+        # execute native code
+        sys.stdout.write('SPIM  ...  ')
+        if run_spim(os.path.join(hit_dir, asm_name), output):
+            return eq(self.get_result(test_case_name), output)
+        return False
+
 class JVMTester(Tester):
     def __init__(self, test_set: str, exclude: [str]):
         Tester.__init__(self, test_set, exclude)
@@ -161,7 +444,8 @@ class JVMTester(Tester):
         return False
 
 class MipsTester(Tester):
-    def __init__(self, test_set: str, exclude: [str]):
+    def __init__(self, test_set: str, exclude: [str], options: [str] = []):
+        self.options = options
         Tester.__init__(self, test_set, exclude)
 
     def test_one(self, test_case_name: str) -> bool:
@@ -170,7 +454,7 @@ class MipsTester(Tester):
         result = self.get_result(test_case_name)
         sys.stdout.write('{}  ...  '.format(test_case_name))
         # compile
-        if run_decaf(['-d', bytecode_dir, self.get_test_case(test_case_name)]):
+        if run_decaf(['-d', bytecode_dir] + self.options + [self.get_test_case(test_case_name)]):
             # execute native code
             sys.stdout.write('SPIM  ...  ')
             asm_file = os.path.join(bytecode_dir, test_case_name.replace('.decaf', '.s'))
@@ -180,14 +464,47 @@ class MipsTester(Tester):
             return False
         return False
 
+# functions optimized, and their registers allocated, concurrently: the assembly must be identical to the serial one
+class MipsParallelTester(MipsTester):
+    def __init__(self, test_set: str, exclude: [str]):
+        MipsTester.__init__(self, test_set, exclude, ['--parallel', '4'])
+
+    def test_one(self, test_case_name: str) -> bool:
+        source = self.get_test_case(test_case_name)
+        parallel_dir = self.get_output_dir(test_case_name)
+        serial_dir = self.get_sub_dir(test_case_name, 'serial')
+        asm_name = test_case_name.replace('.decaf', '.s')
+        output = self.get_output(test_case_name)
+        sys.stdout.write('{}  ...  '.format(test_case_name))
+        if not run_decaf(['-d', serial_dir, source]):
+            return False
+        if not run_decaf(['-d', parallel_dir] + self.options + [source]):
+            return False
+        sys.stdout.write('serial  ...  ')
+        if not filecmp.cmp(os.path.join(serial_dir, asm_name), os.path.join(parallel_dir, asm_name), shallow=False):
+            return identical(os.path.join(serial_dir, asm_name), os.path.join(parallel_dir, asm_name))
+        # execute native code
+        sys.stdout.write('SPIM  ...  ')
+        if run_spim(os.path.join(parallel_dir, asm_name), output):
+            return eq(self.get_result(test_case_name), output)
+        return False
+
 TARGETS = {
     'PA1-A': (['S1'], [], PA1ATester),
     'PA1-B': (['S1', 'S1-LL'], ['abstract1.decaf', 'abstract3.decaf', 'lambdabad1.decaf'], PA1BTester),
     'PA2': (['S2'], [], PA2Tester),
     'PA3': (['S3'], [], PA3Tester),
     'PA4': (['S4'], [], PA4Tester),
+    'PA4-parallel': (['S4'], [], PA4ParallelTester),
+    'PA4-batch': (['S4'], [], PA4BatchTester),
+    'tac': (['S3'], [], TacTester),
+    'tacb': (['S3'], [], TacBinaryTester),
+    'sim-heap': (['S3-GC'], [], SimHeapTester),
+    'pgo': (['S4-PGO'], [], ProfileTester),
+    'cache': (['S4-Cache'], [], CacheTester),
     'jvm': (['S3'], ['test_divisionbyzero1.decaf', 'test_divisionbyzero2.decaf'], JVMTester),
     'PA5': (['S4'], ['basic-matrix.decaf'], MipsTester),
+    'PA5-parallel': (['S4'], ['basic-matrix.decaf'], MipsParallelTester),
 }
 
 OPTIONS = ', '.join(TARGETS.keys())
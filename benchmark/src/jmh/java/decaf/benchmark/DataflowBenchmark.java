@@ -0,0 +1,53 @@
+package decaf.benchmark;
+
+import decaf.backend.dataflow.CFGBuilder;
+import decaf.backend.dataflow.LivenessAnalyzer;
+import decaf.driver.TaskFactory;
+import decaf.lowlevel.tac.TacInstr;
+import decaf.lowlevel.tac.TacProg;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Control flow graph construction, and liveness analysis on top of it, over every function of the optimized TAC.
+ * Neither modifies the instructions, so the TAC is generated once.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+public class DataflowBenchmark {
+    @Param({"S3", "S4", "synthetic-10", "synthetic-100"})
+    public String corpus;
+
+    private List<TacProg> progs;
+
+    @Setup
+    public void setup() throws IOException {
+        var programs = Corpus.filter(Corpus.load(corpus), TaskFactory::optimize);
+        progs = Corpus.run(programs, TaskFactory::optimize);
+    }
+
+    @Benchmark
+    public void cfg(Blackhole bh) {
+        for (var prog : progs) {
+            for (var func : prog.funcs) {
+                bh.consume(new CFGBuilder<TacInstr>().buildFrom(func.getInstrSeq()));
+            }
+        }
+    }
+
+    @Benchmark
+    public void liveness(Blackhole bh) {
+        for (var prog : progs) {
+            for (var func : prog.funcs) {
+                var cfg = new CFGBuilder<TacInstr>().buildFrom(func.getInstrSeq());
+                new LivenessAnalyzer<TacInstr>().accept(cfg);
+                bh.consume(cfg);
+            }
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package decaf.benchmark;
+
+import decaf.backend.opt.*;
+import decaf.driver.TaskFactory;
+import decaf.lowlevel.tac.TacProg;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * A single optimization pass, run once over every function of the unoptimized TAC. Passes transform functions in
+ * place, so every invocation gets freshly generated TAC.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class OptPassBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Inputs {
+        @Param({"S3", "S4", "synthetic-10", "synthetic-100"})
+        public String corpus;
+
+        @Param({"CommonExprOpt", "ConstPropOpt", "CopyPropOpt", "LivenessOpt", "PeepHoleOpt"})
+        public String pass;
+
+        List<Corpus.Program> programs;
+
+        Supplier<OptPass> factory;
+
+        @Setup
+        public void setup() throws IOException {
+            programs = Corpus.filter(Corpus.load(corpus), TaskFactory::tacGen);
+            factory = switch (pass) {
+                case "CommonExprOpt" -> CommonExprOpt::new;
+                case "ConstPropOpt" -> ConstPropOpt::new;
+                case "CopyPropOpt" -> CopyPropOpt::new;
+                case "LivenessOpt" -> LivenessOpt::new;
+                case "PeepHoleOpt" -> PeepHoleOpt::new;
+                default -> throw new IllegalArgumentException("unknown pass " + pass);
+            };
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Unoptimized {
+        List<TacProg> progs;
+
+        @Setup(Level.Invocation)
+        public void setup(Inputs inputs) {
+            progs = Corpus.run(inputs.programs, TaskFactory::tacGen);
+        }
+    }
+
+    @Benchmark
+    public void pass(Inputs inputs, Unoptimized unoptimized, Blackhole bh) {
+        for (var prog : unoptimized.progs) {
+            for (var func : prog.funcs) {
+                bh.consume(inputs.factory.get().transform(func));
+            }
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package decaf.benchmark;
+
+import decaf.driver.Diagnostics;
+import decaf.driver.TaskFactory;
+import decaf.frontend.parsing.JaccParser;
+import decaf.frontend.parsing.LLParser;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing: the Jacc generated LALR(1) parser vs. the LL(1) parser, on the programs both accept.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+public class ParserBenchmark {
+    @Param({"S1", "S2", "S3", "S4", "synthetic-10", "synthetic-100"})
+    public String corpus;
+
+    private List<Corpus.Program> programs;
+
+    @Setup
+    public void setup() throws IOException {
+        programs = Corpus.filter(Corpus.filter(Corpus.load(corpus), TaskFactory::parse), TaskFactory::parseLL);
+    }
+
+    @Benchmark
+    public void jacc(Blackhole bh) {
+        for (var program : programs) {
+            bh.consume(new JaccParser(Corpus.CONFIG).apply(program.open(), new Diagnostics()));
+        }
+    }
+
+    @Benchmark
+    public void ll(Blackhole bh) {
+        for (var program : programs) {
+            bh.consume(new LLParser(Corpus.CONFIG).apply(program.open(), new Diagnostics()));
+        }
+    }
+}
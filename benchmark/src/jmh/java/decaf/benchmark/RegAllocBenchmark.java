@@ -0,0 +1,101 @@
+package decaf.benchmark;
+
+import decaf.backend.asm.SubroutineInfo;
+import decaf.backend.asm.mips.MipsAsmEmitter;
+import decaf.backend.reg.BruteRegAlloc;
+import decaf.backend.reg.GraphColorRegAlloc;
+import decaf.backend.reg.RegAlloc;
+import decaf.driver.TaskFactory;
+import decaf.lowlevel.instr.PseudoInstr;
+import org.apache.commons.lang3.tuple.Pair;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Register allocation: graph coloring vs. brute force, over every subroutine of the optimized program. Allocators
+ * patch the instructions they are given, so every invocation gets freshly selected instructions. Subroutines which
+ * the allocator fails on (graph coloring does not spill) are left out.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class RegAllocBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Inputs {
+        @Param({"S3", "S4", "synthetic-10", "synthetic-100"})
+        public String corpus;
+
+        @Param({"graph-color", "brute-force"})
+        public String alloc;
+
+        List<Corpus.Program> programs;
+
+        /**
+         * Whether the allocator succeeds, for every function of every program.
+         */
+        List<boolean[]> allocatable;
+
+        @Setup
+        public void setup() throws IOException {
+            programs = Corpus.filter(Corpus.load(corpus), TaskFactory::optimize);
+            allocatable = new ArrayList<>();
+            var emitter = new MipsAsmEmitter(isBruteForce());
+            for (var prog : Corpus.run(programs, TaskFactory::optimize)) {
+                emitter.prepare(prog.funcs);
+                var ok = new boolean[prog.funcs.size()];
+                for (int i = 0; i < ok.length; i++) {
+                    try {
+                        newAlloc(emitter).apply(emitter.selectInstr(prog.funcs.get(i)));
+                        ok[i] = true;
+                    } catch (RuntimeException e) {
+                        // fails to allocate, leave it out
+                    }
+                }
+                allocatable.add(ok);
+            }
+        }
+
+        boolean isBruteForce() {
+            return alloc.equals("brute-force");
+        }
+
+        RegAlloc newAlloc(MipsAsmEmitter emitter) {
+            return isBruteForce() ? new BruteRegAlloc(emitter) : new GraphColorRegAlloc(emitter);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Selected {
+        MipsAsmEmitter emitter;
+
+        List<Pair<List<PseudoInstr>, SubroutineInfo>> subroutines;
+
+        @Setup(Level.Invocation)
+        public void setup(Inputs inputs) {
+            emitter = new MipsAsmEmitter(inputs.isBruteForce());
+            subroutines = new ArrayList<>();
+            var progs = Corpus.run(inputs.programs, TaskFactory::optimize);
+            for (int p = 0; p < progs.size(); p++) {
+                var prog = progs.get(p);
+                emitter.prepare(prog.funcs);
+                for (int i = 0; i < prog.funcs.size(); i++) {
+                    if (inputs.allocatable.get(p)[i]) {
+                        subroutines.add(emitter.selectInstr(prog.funcs.get(i)));
+                    }
+                }
+            }
+        }
+    }
+
+    @Benchmark
+    public void regAlloc(Inputs inputs, Selected selected, Blackhole bh) {
+        for (var subroutine : selected.subroutines) {
+            bh.consume(inputs.newAlloc(selected.emitter).apply(subroutine));
+        }
+    }
+}
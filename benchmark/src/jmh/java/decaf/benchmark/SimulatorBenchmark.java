@@ -0,0 +1,53 @@
+package decaf.benchmark;
+
+import decaf.driver.Config;
+import decaf.driver.TaskFactory;
+import decaf.lowlevel.tac.Simulator;
+import decaf.lowlevel.tac.TacProg;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Execution of optimized TAC programs by the {@link Simulator}, with empty stdin. Programs which fail at runtime
+ * (e.g. on purpose, or because they need input) are left out.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+public class SimulatorBenchmark {
+    @Param({"S3", "S4", "synthetic-10", "synthetic-100"})
+    public String corpus;
+
+    private List<TacProg> progs;
+
+    @Setup
+    public void setup() throws IOException {
+        var programs = Corpus.filter(Corpus.load(corpus), TaskFactory::optimize);
+        progs = new ArrayList<>();
+        for (var prog : Corpus.run(programs, TaskFactory::optimize)) {
+            try {
+                simulate(prog);
+                progs.add(prog);
+            } catch (RuntimeException e) {
+                // fails at runtime, leave it out
+            }
+        }
+    }
+
+    private static int simulate(TacProg prog) {
+        return new Simulator(InputStream.nullInputStream(), new Config.NullOutputStream()).execute(prog);
+    }
+
+    @Benchmark
+    public void execute(Blackhole bh) {
+        for (var prog : progs) {
+            bh.consume(simulate(prog));
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package decaf.benchmark;
+
+import decaf.driver.Diagnostics;
+import decaf.driver.TaskFactory;
+import decaf.frontend.tacgen.TacGen;
+import decaf.frontend.tree.Tree;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * TAC generation from typed trees.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class TacGenBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Inputs {
+        @Param({"S3", "S4", "synthetic-10", "synthetic-100"})
+        public String corpus;
+
+        List<Corpus.Program> programs;
+
+        @Setup
+        public void setup() throws IOException {
+            programs = Corpus.filter(Corpus.load(corpus), TaskFactory::tacGen);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Typed {
+        List<Tree.TopLevel> trees;
+
+        // TacGen assigns temps to the symbols of parameters, so start from fresh trees
+        @Setup(Level.Invocation)
+        public void setup(Inputs inputs) {
+            trees = Corpus.run(inputs.programs, TaskFactory::typeCheck);
+        }
+    }
+
+    @Benchmark
+    public void tacGen(Typed typed, Blackhole bh) {
+        for (var tree : typed.trees) {
+            bh.consume(new TacGen(Corpus.CONFIG).apply(tree, new Diagnostics()));
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package decaf.benchmark;
+
+import decaf.driver.Diagnostics;
+import decaf.driver.TaskFactory;
+import decaf.frontend.tree.Tree;
+import decaf.frontend.typecheck.Namer;
+import decaf.frontend.typecheck.Typer;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Type checking: {@link Namer} and {@link Typer}, on well-typed programs. Both decorate the tree they visit, so every
+ * invocation gets freshly built trees.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class TypeCheckBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Inputs {
+        @Param({"S2", "S3", "S4", "synthetic-10", "synthetic-100"})
+        public String corpus;
+
+        List<Corpus.Program> programs;
+
+        @Setup
+        public void setup() throws IOException {
+            programs = Corpus.filter(Corpus.load(corpus), TaskFactory::typeCheck);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Parsed {
+        List<Tree.TopLevel> trees;
+
+        @Setup(Level.Invocation)
+        public void setup(Inputs inputs) {
+            trees = Corpus.run(inputs.programs, TaskFactory::parse);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Named {
+        List<Tree.TopLevel> trees;
+
+        @Setup(Level.Invocation)
+        public void setup(Inputs inputs) {
+            trees = Corpus.run(inputs.programs, tasks -> tasks.parse().then(new Namer(Corpus.CONFIG)));
+        }
+    }
+
+    @Benchmark
+    public void namer(Parsed parsed, Blackhole bh) {
+        for (var tree : parsed.trees) {
+            bh.consume(new Namer(Corpus.CONFIG).apply(tree, new Diagnostics()));
+        }
+    }
+
+    @Benchmark
+    public void typer(Named named, Blackhole bh) {
+        for (var tree : named.trees) {
+            bh.consume(new Typer(Corpus.CONFIG).apply(tree, new Diagnostics()));
+        }
+    }
+}
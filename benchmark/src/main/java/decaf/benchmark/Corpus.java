@@ -0,0 +1,130 @@
+package decaf.benchmark;
+
+import decaf.driver.Config;
+import decaf.driver.Diagnostics;
+import decaf.driver.OptParser;
+import decaf.driver.Task;
+import decaf.driver.TaskFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Benchmark inputs.
+ * <p>
+ * A corpus is either the Decaf programs of a test case folder ({@code S1} to {@code S4}, found in the folder given by
+ * system property {@code decaf.testcases}), or a synthetic program of {@code n} classes ({@code synthetic-<n>}, see
+ * {@link Generator}).
+ * Test cases include erroneous programs, so every benchmark only keeps the programs which make it through the
+ * stages it needs (see {@link #filter}).
+ */
+final class Corpus {
+
+    private Corpus() {
+    }
+
+    /**
+     * A Decaf program.
+     */
+    static final class Program {
+        final String name;
+
+        final byte[] source;
+
+        Program(String name, byte[] source) {
+            this.name = name;
+            this.source = source;
+        }
+
+        InputStream open() {
+            return new ByteArrayInputStream(source);
+        }
+    }
+
+    /**
+     * Configuration shared by all benchmarks: target PA5, so that no phase dumps anything in {@code onSucceed}, and
+     * all output discarded.
+     */
+    static final Config CONFIG = makeConfig();
+
+    private static Config makeConfig() {
+        var discard = new PrintStream(new Config.NullOutputStream());
+        var env = new Config.Environment(Path.of(System.getProperty("java.io.tmpdir")), InputStream.nullInputStream(),
+                discard, discard);
+        var parser = new OptParser();
+        return parser.parseCommandLine(new String[]{"-t", "PA5", "benchmark.decaf"}, env)
+                .flatMap(cli -> parser.toConfig(cli, env, Optional.of(InputStream.nullInputStream())))
+                .orElseThrow(() -> new IllegalStateException("invalid benchmark configuration"));
+    }
+
+    static final TaskFactory TASKS = new TaskFactory(CONFIG);
+
+    /**
+     * Load a corpus.
+     *
+     * @param corpus name: {@code S1} to {@code S4}, or {@code synthetic-<n>}
+     * @return programs, ordered by name
+     * @throws IOException if the test case folder cannot be read
+     */
+    static List<Program> load(String corpus) throws IOException {
+        if (corpus.startsWith("synthetic-")) {
+            var scale = Integer.parseInt(corpus.substring("synthetic-".length()));
+            var source = Generator.generate(Generator.Params.scaled(scale));
+            return List.of(new Program(corpus, source.getBytes(StandardCharsets.UTF_8)));
+        }
+
+        var dir = Path.of(System.getProperty("decaf.testcases", "TestCases")).resolve(corpus);
+        try (var files = Files.list(dir)) {
+            var programs = new ArrayList<Program>();
+            for (var path : files.filter(p -> p.toString().endsWith(".decaf")).sorted().collect(Collectors.toList())) {
+                programs.add(new Program(path.getFileName().toString(), Files.readAllBytes(path)));
+            }
+            return programs;
+        }
+    }
+
+    /**
+     * Keep the programs which make it through the given stages without errors.
+     *
+     * @param programs programs
+     * @param stages   stages, e.g. {@code TaskFactory::typeCheck}
+     * @return programs kept
+     */
+    static <T> List<Program> filter(List<Program> programs, Function<TaskFactory, Task<InputStream, T>> stages) {
+        return programs.stream()
+                .filter(program -> compile(program, stages).isPresent())
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Run the given stages on programs. The programs must have been {@link #filter}ed with the same stages.
+     *
+     * @param programs programs
+     * @param stages   stages
+     * @return output of every program, in order
+     */
+    static <T> List<T> run(List<Program> programs, Function<TaskFactory, Task<InputStream, T>> stages) {
+        return programs.stream()
+                .map(program -> compile(program, stages).orElseThrow(() ->
+                        new IllegalStateException("unexpected failure when compiling " + program.name)))
+                .collect(Collectors.toList());
+    }
+
+    private static <T> Optional<T> compile(Program program, Function<TaskFactory, Task<InputStream, T>> stages) {
+        try {
+            return stages.apply(TASKS).apply(program.open(), new Diagnostics());
+        } catch (RuntimeException e) {
+            return Optional.empty();
+        }
+    }
+}
@@ -0,0 +1,476 @@
+package decaf.benchmark;
+
+import decaf.driver.Diagnostics;
+import decaf.lowlevel.tac.Simulator;
+import org.apache.commons.cli.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+/**
+ * Synthetic Decaf workload generator.
+ * <p>
+ * Generates valid, type-correct Decaf programs of any size, to see how every phase scales. A program consists of
+ * chains of classes, each class inheriting from the previous one in its chain and overriding all of its methods. A
+ * method body is a random mix of local variable definitions, assignments, branches, (nested) loops and array accesses,
+ * ended by a call to a sibling method and a nest of capturing lambdas. {@code main} creates an object of every class,
+ * calls all its methods through the root class of its chain, and prints a checksum per class.
+ * <p>
+ * Generation is deterministic, given the {@link Params}. Loops are short and divisors are constants, so programs
+ * always terminate without runtime errors, and their expected output is obtained by running our {@link Simulator}.
+ * <p>
+ * To generate programs from the command line, see {@link #main}.
+ */
+public final class Generator {
+
+    /**
+     * Shape of a generated program.
+     */
+    public static final class Params {
+        /**
+         * Number of classes, besides {@code Main}.
+         */
+        public final int classes;
+
+        /**
+         * Length of inheritance chains: classes are grouped into chains of this many classes.
+         */
+        public final int depth;
+
+        /**
+         * Number of methods per class.
+         */
+        public final int methods;
+
+        /**
+         * Number of statements (including nested ones) per method body.
+         */
+        public final int methodSize;
+
+        /**
+         * Max. nesting level of loops.
+         */
+        public final int loopNesting;
+
+        /**
+         * Nesting level of lambdas at the end of every method, each capturing variables of all enclosing ones.
+         */
+        public final int lambdaDepth;
+
+        /**
+         * Number of local arrays per method.
+         */
+        public final int arrays;
+
+        /**
+         * Seed of the random choices.
+         */
+        public final long seed;
+
+        public Params(int classes, int depth, int methods, int methodSize, int loopNesting, int lambdaDepth,
+                      int arrays, long seed) {
+            this.classes = classes;
+            this.depth = depth;
+            this.methods = methods;
+            this.methodSize = methodSize;
+            this.loopNesting = loopNesting;
+            this.lambdaDepth = lambdaDepth;
+            this.arrays = arrays;
+            this.seed = seed;
+        }
+
+        /**
+         * Default shape, scaled by the number of classes.
+         *
+         * @param classes number of classes
+         * @return params
+         */
+        public static Params scaled(int classes) {
+            return new Params(classes, 3, 4, 20, 2, 2, 1, 2019);
+        }
+
+        /**
+         * Copy with one parameter replaced.
+         *
+         * @param key   parameter name, as the command line option (e.g. {@code method-size})
+         * @param value new value
+         * @return params
+         * @throws IllegalArgumentException if {@code key} is unknown
+         */
+        public Params with(String key, long value) {
+            var v = (int) value;
+            return switch (key) {
+                case "classes" -> new Params(v, depth, methods, methodSize, loopNesting, lambdaDepth, arrays, seed);
+                case "depth" -> new Params(classes, v, methods, methodSize, loopNesting, lambdaDepth, arrays, seed);
+                case "methods" -> new Params(classes, depth, v, methodSize, loopNesting, lambdaDepth, arrays, seed);
+                case "method-size" -> new Params(classes, depth, methods, v, loopNesting, lambdaDepth, arrays, seed);
+                case "loop-nesting" -> new Params(classes, depth, methods, methodSize, v, lambdaDepth, arrays, seed);
+                case "lambda-depth" -> new Params(classes, depth, methods, methodSize, loopNesting, v, arrays, seed);
+                case "arrays" -> new Params(classes, depth, methods, methodSize, loopNesting, lambdaDepth, v, seed);
+                case "seed" -> new Params(classes, depth, methods, methodSize, loopNesting, lambdaDepth, arrays,
+                        value);
+                default -> throw new IllegalArgumentException("Unknown parameter: " + key);
+            };
+        }
+
+        static final List<String> KEYS = List.of("classes", "depth", "methods", "method-size", "loop-nesting",
+                "lambda-depth", "arrays", "seed");
+    }
+
+    /**
+     * Array length: indices are always taken modulo this.
+     */
+    private static final int ARRAY_LENGTH = 8;
+
+    /**
+     * Number of iterations of every loop.
+     */
+    private static final int LOOP_TRIPS = 3;
+
+    private final Params params;
+
+    private final Random random;
+
+    private final StringBuilder sb = new StringBuilder();
+
+    private int indent = 0;
+
+    /**
+     * Counter for fresh local names in the current method. Decaf forbids a local to shadow another local, so every
+     * local gets a unique name.
+     */
+    private int nextName;
+
+    /**
+     * Arrays of the current method.
+     */
+    private List<String> arrays;
+
+    private Generator(Params params) {
+        this.params = params;
+        this.random = new Random(params.seed);
+    }
+
+    /**
+     * Generate a program.
+     *
+     * @param params shape
+     * @return Decaf source
+     */
+    public static String generate(Params params) {
+        var generator = new Generator(params);
+        generator.program();
+        return generator.sb.toString();
+    }
+
+    /**
+     * Run a program with our simulator, on TAC without optimization.
+     *
+     * @param source Decaf source
+     * @return output
+     * @throws IllegalStateException if the program fails to compile or to run
+     */
+    public static String expectedOutput(String source) {
+        var diagnostics = new Diagnostics();
+        var prog = Corpus.TASKS.tacGen()
+                .apply(new ByteArrayInputStream(source.getBytes(StandardCharsets.UTF_8)), diagnostics)
+                .orElseThrow(() -> new IllegalStateException("Generated program does not compile:\n"
+                        + diagnostics.getErrors().stream().map(Object::toString).collect(Collectors.joining("\n"))));
+
+        var out = new ByteArrayOutputStream();
+        new Simulator(InputStream.nullInputStream(), out).execute(prog);
+        return out.toString(StandardCharsets.UTF_8);
+    }
+
+    private String className(int chain, int level) {
+        return String.format("K%d_%d", chain, level);
+    }
+
+    private int chains() {
+        return (params.classes + params.depth - 1) / params.depth;
+    }
+
+    private int chainLength(int chain) {
+        return Math.min(params.depth, params.classes - chain * params.depth);
+    }
+
+    private void program() {
+        for (int c = 0; c < chains(); c++) {
+            for (int d = 0; d < chainLength(c); d++) {
+                clazz(c, d);
+            }
+        }
+        main();
+    }
+
+    private void clazz(int chain, int level) {
+        if (level == 0) {
+            line("class %s {", className(chain, level));
+        } else {
+            line("class %s extends %s {", className(chain, level), className(chain, level - 1));
+        }
+        indent++;
+        if (level == 0) {
+            line("int f;");
+            line("");
+        }
+        for (int m = 0; m < params.methods; m++) {
+            method(m);
+            line("");
+        }
+        indent--;
+        line("}");
+        line("");
+    }
+
+    private void method(int index) {
+        nextName = 0;
+        line("int m%d(int x) {", index);
+        indent++;
+        var vars = new ArrayList<String>(List.of("x", "acc"));
+        line("int acc = x;");
+        arrays = new ArrayList<>();
+        for (int i = 0; i < params.arrays; i++) {
+            var a = fresh("a");
+            line("int[] %s = new int[%d];", a, ARRAY_LENGTH);
+            arrays.add(a);
+        }
+
+        block(params.methodSize, 0, vars);
+
+        // Call a sibling, but keep call chains short, or the running time would be quadratic in the methods.
+        if (index % 4 != 0) {
+            line("acc = acc + m%d(acc %% 5);", index - 1);
+        }
+        if (params.lambdaDepth > 0) {
+            var g = lambda(1, vars);
+            line("acc = acc + %s(acc %% 7);", g);
+        }
+        line("f = f + acc %% 10;");
+        line("return acc;");
+        indent--;
+        line("}");
+    }
+
+    private void block(int budget, int nesting, List<String> scope) {
+        var vars = new ArrayList<>(scope);
+        while (budget > 0) {
+            var kind = random.nextInt(10);
+            if (kind < 2 && nesting < params.loopNesting && budget >= 2) {
+                var i = fresh("i");
+                var size = 1 + random.nextInt(Math.min(budget - 1, 8));
+                line("for (int %s = 0; %s < %d; %s = %s + 1) {", i, i, LOOP_TRIPS, i, i);
+                indent++;
+                var inner = new ArrayList<>(vars);
+                inner.add(i);
+                block(size, nesting + 1, inner);
+                indent--;
+                line("}");
+                budget -= size + 1;
+            } else if (kind < 3 && budget >= 3) {
+                var size = 1 + random.nextInt(Math.min(budget - 2, 8));
+                var thenSize = (size + 1) / 2;
+                line("if (%s > %s) {", expr(vars, 1), expr(vars, 1));
+                indent++;
+                block(thenSize, nesting, vars);
+                indent--;
+                if (size > thenSize) {
+                    line("} else {");
+                    indent++;
+                    block(size - thenSize, nesting, vars);
+                    indent--;
+                }
+                line("}");
+                budget -= size + 1;
+            } else if (kind < 6) {
+                var v = fresh("v");
+                line("int %s = %s;", v, expr(vars, 0));
+                vars.add(v);
+                budget--;
+            } else if (kind < 7 && !arrays.isEmpty()) {
+                line("%s[%s] = %s;", pick(arrays), index(vars), expr(vars, 0));
+                budget--;
+            } else {
+                line("acc = %s;", expr(vars, 0));
+                budget--;
+            }
+        }
+    }
+
+    /**
+     * Define a lambda, which defines the next level of lambda (if any) and returns an expression over the parameters
+     * of all enclosing lambdas and the locals of the method.
+     *
+     * @return name of the lambda
+     */
+    private String lambda(int level, List<String> scope) {
+        var g = fresh("g");
+        var p = fresh("p");
+        var vars = new ArrayList<>(scope);
+        vars.add(p);
+        line("var %s = fun (int %s) {", g, p);
+        indent++;
+        if (level < params.lambdaDepth) {
+            var inner = lambda(level + 1, vars);
+            line("return %s(%s + 1) + %s;", inner, p, expr(vars, 1));
+        } else {
+            line("return %s + f;", expr(vars, 0));
+        }
+        indent--;
+        line("};");
+        return g;
+    }
+
+    private String expr(List<String> vars, int depth) {
+        if (depth >= 2 || random.nextInt(3) == 0) {
+            return atom(vars, depth);
+        }
+        var lhs = expr(vars, depth + 1);
+        return switch (random.nextInt(6)) {
+            case 0, 1 -> String.format("(%s + %s)", lhs, expr(vars, depth + 1));
+            case 2 -> String.format("(%s - %s)", lhs, expr(vars, depth + 1));
+            case 3 -> String.format("(%s * %d)", lhs, 1 + random.nextInt(7));
+            case 4 -> String.format("(%s / %d)", lhs, 1 + random.nextInt(7));
+            default -> String.format("(%s %% %d)", lhs, 2 + random.nextInt(97));
+        };
+    }
+
+    private String atom(List<String> vars, int depth) {
+        var kind = random.nextInt(10);
+        if (kind < 2) {
+            return Integer.toString(random.nextInt(100));
+        } else if (kind < 3) {
+            return "f";
+        } else if (kind < 4 && !arrays.isEmpty() && depth < 2) {
+            return String.format("%s[%s]", pick(arrays), index(vars));
+        }
+        return pick(vars);
+    }
+
+    /**
+     * An index expression, always in bounds.
+     */
+    private String index(List<String> vars) {
+        return String.format("(%s %% %d + %d) %% %d", pick(vars), ARRAY_LENGTH, ARRAY_LENGTH, ARRAY_LENGTH);
+    }
+
+    private void main() {
+        line("class Main {");
+        indent++;
+        line("static void main() {");
+        indent++;
+        line("int sum = 0;");
+        var o = 0;
+        for (int c = 0; c < chains(); c++) {
+            for (int d = 0; d < chainLength(c); d++) {
+                var name = "o" + o++;
+                line("class %s %s = new %s();", className(c, 0), name, className(c, d));
+                line("sum = 0;");
+                for (int m = 0; m < params.methods; m++) {
+                    line("sum = sum + %s.m%d(%d);", name, m, m);
+                }
+                line("Print(\"%s: \", sum, \"\\n\");", className(c, d));
+            }
+        }
+        indent--;
+        line("}");
+        indent--;
+        line("}");
+    }
+
+    private String fresh(String prefix) {
+        return prefix + nextName++;
+    }
+
+    private String pick(List<String> names) {
+        return names.get(random.nextInt(names.size()));
+    }
+
+    private void line(String format, Object... args) {
+        if (!format.isEmpty()) {
+            sb.append("    ".repeat(indent)).append(String.format(format, args));
+        }
+        sb.append('\n');
+    }
+
+    /**
+     * Command line entry: generate programs, their expected outputs, and a batch manifest compiling all of them with
+     * {@code --stats}, which gives curves of time and memory of every phase against the input size, and running them
+     * for PA4 into {@code p.output}, to be compared with {@code p.result}:
+     * <pre>
+     *     Generator --out dir [--name name] [--classes n] [--depth n] ... [--sweep param=v1,v2,...]
+     * </pre>
+     * Without {@code --sweep}, a single program is generated. For every program {@code p}, files {@code p.decaf} and
+     * {@code p.result} are written, and the manifest {@code dir/manifest} can be compiled with {@code decaf --batch}.
+     *
+     * @param args command line args
+     * @throws IOException if files cannot be written
+     */
+    public static void main(String[] args) throws IOException {
+        var options = new Options();
+        options.addOption(Option.builder(null).longOpt("out").hasArg().argName("dir").required()
+                .desc("output directory").build());
+        options.addOption(Option.builder(null).longOpt("name").hasArg().argName("name")
+                .desc("base name of programs (default synthetic)").build());
+        options.addOption(Option.builder(null).longOpt("sweep").hasArg().argName("param=v1,v2,...")
+                .desc("generate a program for every value of a parameter").build());
+        for (var key : Params.KEYS) {
+            options.addOption(Option.builder(null).longOpt(key).hasArg().argName("n").build());
+        }
+
+        CommandLine cli;
+        try {
+            cli = new DefaultParser().parse(options, args);
+        } catch (ParseException e) {
+            System.err.println(e.getMessage());
+            new HelpFormatter().printHelp("Generator", options);
+            System.exit(1);
+            return;
+        }
+
+        var params = Params.scaled(10);
+        for (var key : Params.KEYS) {
+            if (cli.hasOption(key)) {
+                params = params.with(key, Long.parseLong(cli.getOptionValue(key)));
+            }
+        }
+
+        var name = cli.getOptionValue("name", "synthetic");
+        var programs = new ArrayList<String>();
+        var shapes = new ArrayList<Params>();
+        if (cli.hasOption("sweep")) {
+            var sweep = cli.getOptionValue("sweep").split("=", 2);
+            for (var value : sweep[1].split(",")) {
+                programs.add(String.format("%s-%s-%s", name, sweep[0], value));
+                shapes.add(params.with(sweep[0], Long.parseLong(value)));
+            }
+        } else {
+            programs.add(name);
+            shapes.add(params);
+        }
+
+        var dir = Path.of(cli.getOptionValue("out"));
+        Files.createDirectories(dir);
+        var manifest = new ArrayList<String>();
+        manifest.add("# generated by decaf.benchmark.Generator");
+        for (int i = 0; i < programs.size(); i++) {
+            var program = programs.get(i);
+            var source = generate(shapes.get(i));
+            Files.writeString(dir.resolve(program + ".decaf"), source);
+            Files.writeString(dir.resolve(program + ".result"), expectedOutput(source));
+            manifest.add(String.format("-t PA5 --stats %s.csv %s.decaf", program, program));
+            manifest.add(String.format("-t PA4 -o %s.output %s.decaf", program, program));
+            System.err.printf("%s: %d lines%n", program, source.lines().count());
+        }
+        Files.write(dir.resolve("manifest"), manifest);
+    }
+}
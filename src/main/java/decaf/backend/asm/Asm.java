@@ -1,16 +1,32 @@
 package decaf.backend.asm;
 
+import decaf.backend.cache.FuncCache;
+import decaf.backend.dataflow.Dataflow;
+import decaf.backend.pgo.ProfileGuide;
 import decaf.backend.reg.RegAlloc;
 import decaf.driver.Config;
+import decaf.driver.Parallel;
 import decaf.driver.Phase;
+import decaf.driver.Stats;
 import decaf.lowlevel.log.Log;
+import decaf.lowlevel.tac.TacFunc;
 import decaf.lowlevel.tac.TacProg;
 
 import java.io.FileNotFoundException;
 import java.io.PrintWriter;
+import java.util.Optional;
+import java.util.function.Supplier;
 
 /**
  * The assembly code generation phase: translate a TAC program to assembly code.
+ * <p>
+ * Instruction selection and register allocation are done function by function, concurrently if
+ * {@link Config#parallelism} allows. The subroutines are always emitted in the original order of functions, so the
+ * output does not depend on the parallelism.
+ * <p>
+ * With a function cache, the code of a function is reused if it is cached, and cached otherwise.
+ * <p>
+ * With a profile guide, the register allocator is given the block weights of every function which matches the profile.
  */
 public class Asm extends Phase<TacProg, String> {
     /**
@@ -19,14 +35,35 @@ public class Asm extends Phase<TacProg, String> {
     protected final AsmEmitter emitter;
 
     /**
-     * Register allocator.
+     * Create a register allocator, one for every function.
      */
-    protected final RegAlloc regAlloc;
+    protected final Supplier<RegAlloc> regAlloc;
 
-    public Asm(AsmEmitter emitter, RegAlloc regAlloc, Config config) {
+    /**
+     * Function cache, if any. Functions are {@link FuncCache#checkIn}ed by the {@link decaf.backend.opt.Optimizer}.
+     */
+    protected final Optional<FuncCache> cache;
+
+    /**
+     * Profile guide, if any. The same as the one of the {@link decaf.backend.opt.Optimizer}.
+     */
+    protected final Optional<ProfileGuide> guide;
+
+    public Asm(AsmEmitter emitter, Supplier<RegAlloc> regAlloc, Config config) {
+        this(emitter, regAlloc, Optional.empty(), config);
+    }
+
+    public Asm(AsmEmitter emitter, Supplier<RegAlloc> regAlloc, Optional<FuncCache> cache, Config config) {
+        this(emitter, regAlloc, cache, Optional.empty(), config);
+    }
+
+    public Asm(AsmEmitter emitter, Supplier<RegAlloc> regAlloc, Optional<FuncCache> cache,
+               Optional<ProfileGuide> guide, Config config) {
         super("asm: " + emitter.toString(), config);
         this.regAlloc = regAlloc;
         this.emitter = emitter;
+        this.cache = cache;
+        this.guide = guide;
     }
 
     @Override
@@ -39,14 +76,42 @@ public class Asm extends Phase<TacProg, String> {
         }
 
         emitter.emitSubroutineBegin();
-        for (var func : prog.funcs) {
-            Log.info("emit func for %s", func.entry.prettyString());
-            regAlloc.accept(emitter.selectInstr(func));
+        emitter.prepare(prog.funcs);
+        for (var code : Parallel.map(prog.funcs, this::emitFunc, config.parallelism)) {
+            emitter.emitSubroutineCode(code);
         }
 
         return emitter.emitEnd();
     }
 
+    private String emitFunc(TacFunc func) {
+        var name = func.entry.prettyString();
+        var ticket = cache.flatMap(c -> c.ticket(func));
+        var reused = ticket.flatMap(t -> t.getAsm().flatMap(code -> emitter.relocate(code, t::label, func)));
+        if (reused.isPresent()) {
+            Log.info("reuse func for %s from cache", name);
+            return reused.get();
+        }
+
+        Log.info("emit func for %s", name);
+
+        var probe = config.stats.start("select", name).before(func);
+        var selected = emitter.selectInstr(func);
+        probe.stop();
+
+        var alloc = regAlloc.get();
+        guide.flatMap(g -> g.weights(func)).ifPresent(alloc::setWeights);
+        var allocProbe = config.stats.start(alloc.getClass().getSimpleName(), name);
+        var visits = Dataflow.visitsOnThisThread();
+        var code = alloc.apply(selected);
+        allocProbe.stop().after(Stats.Metric.DATAFLOW_VISITS, Dataflow.visitsOnThisThread() - visits);
+        // only an allocator which can spill reports them
+        alloc.getSpillCount().ifPresent(spills -> allocProbe.after(Stats.Metric.SPILLS, spills));
+
+        ticket.ifPresent(t -> t.store(func, emitter.relocatable(code, t::ordinal)));
+        return code;
+    }
+
     @Override
     public void onSucceed(String code) {
         if (config.target.equals(Config.Target.PA5)) {
@@ -3,11 +3,15 @@ package decaf.backend.asm;
 import decaf.lowlevel.AsmCodePrinter;
 import decaf.lowlevel.instr.PseudoInstr;
 import decaf.lowlevel.instr.Reg;
+import decaf.lowlevel.label.Label;
 import decaf.lowlevel.tac.TacFunc;
 import decaf.lowlevel.tac.VTable;
 import org.apache.commons.lang3.tuple.Pair;
 
 import java.util.List;
+import java.util.Optional;
+import java.util.function.Function;
+import java.util.function.IntFunction;
 
 /**
  * Emit assembly code.
@@ -57,6 +61,17 @@ public abstract class AsmEmitter {
      */
     public abstract void emitSubroutineBegin();
 
+    /**
+     * Call this before selecting instructions for {@code funcs}, which may then be done concurrently.
+     * <p>
+     * Anything program-wide that depends on the order of functions (e.g. numbering of constant strings) must be fixed
+     * here, so that the emitted code does not depend on the order functions are processed in.
+     *
+     * @param funcs all TAC functions, in order
+     */
+    public void prepare(List<TacFunc> funcs) {
+    }
+
     /**
      * Begin to emit code for a subroutine.
      *
@@ -65,6 +80,43 @@ public abstract class AsmEmitter {
      */
     public abstract SubroutineEmitter emitSubroutine(SubroutineInfo info);
 
+    /**
+     * Append the code of a subroutine, as returned by {@link SubroutineEmitter#emitEnd}.
+     *
+     * @param code assembly code of the subroutine
+     */
+    public void emitSubroutineCode(String code) {
+        printer.printRaw(code);
+    }
+
+    /**
+     * Make the code of a subroutine independent of the program it is in, so that it can be reused in another
+     * compilation (see {@link decaf.backend.cache.FuncCache}): replace anything numbered program-wide, like local
+     * labels and constant strings, by something stable.
+     * <p>
+     * By default, code is never reusable.
+     *
+     * @param code    code of a subroutine, as returned by {@link SubroutineEmitter#emitEnd}
+     * @param ordinal a stable number of a local label by its name, or {@code null} if unknown
+     * @return relocatable code, or empty if the code cannot be made relocatable
+     */
+    public Optional<String> relocatable(String code, Function<String, Integer> ordinal) {
+        return Optional.empty();
+    }
+
+    /**
+     * Reverse of {@link #relocatable}: adapt reused code of a subroutine to the current program, as if it were just
+     * emitted for {@code func}.
+     *
+     * @param code  relocatable code
+     * @param label local label of a stable number, or {@code null} if unknown
+     * @param func  the TAC function the code is for
+     * @return code of the subroutine, or empty if the code cannot be adapted
+     */
+    public Optional<String> relocate(String code, IntFunction<Label> label, TacFunc func) {
+        return Optional.empty();
+    }
+
     /**
      * Call this when all subroutines are done, and you want to finish.
      *
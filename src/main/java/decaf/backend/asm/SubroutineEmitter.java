@@ -6,22 +6,28 @@ import decaf.lowlevel.instr.Reg;
 import decaf.lowlevel.instr.Temp;
 import decaf.lowlevel.label.Label;
 
+import java.util.Set;
+import java.util.TreeSet;
+
 /**
  * Emit assembly code for a subroutine.
+ * <p>
+ * Every subroutine is printed on its own, so that different subroutines can be emitted concurrently.
  */
 public abstract class SubroutineEmitter {
 
     protected SubroutineEmitter(AsmEmitter emitter, SubroutineInfo info) {
         this.info = info;
-        this.printer = emitter.printer;
+        this.printer = new AsmCodePrinter();
     }
 
     /**
      * Append an assembly instruction that stores the value of a register to stack.
      *
-     * @param src source register
+     * @param src  source register
+     * @param temp the temp whose value is held by {@code src}
      */
-    public abstract void emitStoreToStack(Reg src);
+    public abstract void emitStoreToStack(Reg src, Temp temp);
 
     /**
      * Append an assembly instruction that loads a value from stack to a register.
@@ -53,11 +59,33 @@ public abstract class SubroutineEmitter {
      */
     public abstract void emitLabel(Label label);
 
+    /**
+     * Mark a register as used by this subroutine. The register allocation algorithm must mark every register it
+     * assigns, so that those need be saved by callee are saved.
+     *
+     * @param reg register
+     */
+    public void markUsed(Reg reg) {
+        usedRegs.add(reg);
+    }
+
+    /**
+     * Is this register used by this subroutine?
+     *
+     * @param reg register
+     * @return true/false
+     */
+    public boolean isUsed(Reg reg) {
+        return usedRegs.contains(reg);
+    }
+
     /**
      * Call this when you have appended all user and synthetic (by register allocation algorithm) instructions of
      * this subroutine.
+     *
+     * @return assembly code of this subroutine
      */
-    public abstract void emitEnd();
+    public abstract String emitEnd();
 
     public abstract int getNextLocalOffset();
 
@@ -67,7 +95,12 @@ public abstract class SubroutineEmitter {
     protected SubroutineInfo info;
 
     /**
-     * Assembly code pretty printer.
+     * Assembly code pretty printer, only for this subroutine.
      */
     protected AsmCodePrinter printer;
+
+    /**
+     * Registers used by this subroutine.
+     */
+    private final Set<Reg> usedRegs = new TreeSet<>();
 }
\ No newline at end of file
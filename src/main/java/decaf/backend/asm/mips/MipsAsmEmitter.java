@@ -12,10 +12,12 @@ import decaf.lowlevel.label.Label;
 import decaf.lowlevel.tac.*;
 import org.apache.commons.lang3.tuple.Pair;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Set;
-import java.util.TreeSet;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+import java.util.regex.Pattern;
 
 import static decaf.lowlevel.Mips.STR_PREFIX;
 
@@ -87,11 +89,102 @@ public final class MipsAsmEmitter extends AsmEmitter {
         printer.println(".text");
     }
 
+    /**
+     * Constant strings are numbered in the order they appear, so add them to the pool before any concurrent
+     * instruction selection.
+     */
+    @Override
+    public void prepare(List<TacFunc> funcs) {
+        for (var func : funcs) {
+            for (var instr : func.getInstrSeq()) {
+                if (instr instanceof TacInstr.LoadStrConst) {
+                    pool.add(((TacInstr.LoadStrConst) instr).value);
+                }
+            }
+        }
+    }
+
     @Override
     public SubroutineEmitter emitSubroutine(SubroutineInfo info) {
         return new MipsSubroutineEmitter(this, info);
     }
 
+    /**
+     * Intrinsics which the instruction selector turns into syscalls, rather than calls to subroutines.
+     */
+    private static final Set<Intrinsic.Opcode> SYSCALL_INTRINSICS = EnumSet.of(Intrinsic.Opcode.ALLOCATE,
+            Intrinsic.Opcode.READ_INT, Intrinsic.Opcode.PRINT_INT, Intrinsic.Opcode.PRINT_STRING, Intrinsic.Opcode.HALT);
+
+    /**
+     * Local labels ({@code _L<n>}) and constant strings ({@code _S<n>}) in code.
+     */
+    private static final Pattern NUMBERED = Pattern.compile("(?<![\\w.])_([LS])(\\d+)(?![\\w.])");
+
+    /**
+     * Relocations in relocatable code, enclosed in SOH (U+0001) characters: {@code L<ordinal>} for a local label,
+     * and {@code S<base64 of value>} for a constant string.
+     */
+    private static final Pattern RELOCATION = Pattern.compile("\u0001([LS])([^\u0001]*)\u0001");
+
+    @Override
+    public Optional<String> relocatable(String code, Function<String, Integer> ordinal) {
+        var matcher = NUMBERED.matcher(code);
+        var sb = new StringBuilder();
+        while (matcher.find()) {
+            String relocation;
+            if (matcher.group(1).equals("L")) {
+                var n = ordinal.apply(matcher.group());
+                if (n == null) {
+                    return Optional.empty();
+                }
+                relocation = "L" + n;
+            } else {
+                var index = Integer.parseInt(matcher.group(2));
+                var value = pool.get(index).getBytes(StandardCharsets.UTF_8);
+                relocation = "S" + Base64.getEncoder().encodeToString(value);
+            }
+            matcher.appendReplacement(sb, "\u0001" + relocation + "\u0001");
+        }
+        matcher.appendTail(sb);
+        return Optional.of(sb.toString());
+    }
+
+    @Override
+    public Optional<String> relocate(String code, IntFunction<Label> label, TacFunc func) {
+        var matcher = RELOCATION.matcher(code);
+        var sb = new StringBuilder();
+        while (matcher.find()) {
+            String name;
+            try {
+                if (matcher.group(1).equals("L")) {
+                    var l = label.apply(Integer.parseInt(matcher.group(2)));
+                    if (l == null) {
+                        return Optional.empty();
+                    }
+                    name = l.name;
+                } else {
+                    var value = new String(Base64.getDecoder().decode(matcher.group(2)), StandardCharsets.UTF_8);
+                    name = STR_PREFIX + pool.add(value);
+                }
+            } catch (IllegalArgumentException e) { // malformed number or base64
+                return Optional.empty();
+            }
+            matcher.appendReplacement(sb, name);
+        }
+        matcher.appendTail(sb);
+
+        // as if instructions were selected
+        for (var instr : func.getInstrSeq()) {
+            if (instr instanceof TacInstr.DirectCall && ((TacInstr.DirectCall) instr).entry.isIntrinsic()) {
+                var il = (IntrinsicLabel) ((TacInstr.DirectCall) instr).entry;
+                if (!SYSCALL_INTRINSICS.contains(il.opcode)) {
+                    usedIntrinsics.add(il);
+                }
+            }
+        }
+        return Optional.of(sb.toString());
+    }
+
     @Override
     public String emitEnd() {
         if (!usedIntrinsics.isEmpty()) {
@@ -378,5 +471,5 @@ public final class MipsAsmEmitter extends AsmEmitter {
 
     private StringPool pool = new StringPool();
 
-    private Set<IntrinsicLabel> usedIntrinsics = new TreeSet<>();
+    private Set<IntrinsicLabel> usedIntrinsics = new ConcurrentSkipListSet<>();
 }
@@ -44,17 +44,17 @@ public class MipsSubroutineEmitter extends SubroutineEmitter {
     }
 
     @Override
-    public void emitStoreToStack(Reg src) {
-        if (!offsets.containsKey(src.temp)) {
-            if (src.temp.index < info.numArg) { // Always map arg `i` to `SP + 4 * i`.
-                offsets.put(src.temp, 4 * src.temp.index);
+    public void emitStoreToStack(Reg src, Temp temp) {
+        if (!offsets.containsKey(temp)) {
+            if (temp.index < info.numArg) { // Always map arg `i` to `SP + 4 * i`.
+                offsets.put(temp, 4 * temp.index);
             } else {
-                offsets.put(src.temp, nextLocalOffset);
+                offsets.put(temp, nextLocalOffset);
                 nextLocalOffset += 4;
             }
         }
 
-        buf.add(new Mips.NativeStoreWord(src, Mips.SP, offsets.get(src.temp)));
+        buf.add(new Mips.NativeStoreWord(src, Mips.SP, offsets.get(temp)));
     }
 
     @Override
@@ -93,16 +93,16 @@ public class MipsSubroutineEmitter extends SubroutineEmitter {
     }
 
     @Override
-    public void emitEnd() {
+    public String emitEnd() {
         printer.printLabel(info.funcLabel, "function " + info.funcLabel.prettyString());
         printer.printComment("start of prologue");
         printer.printInstr(new Mips.SPAdd(-nextLocalOffset), "push stack frame");
-        if (Mips.RA.isUsed() || info.hasCalls) {
+        if (isUsed(Mips.RA) || info.hasCalls) {
             printer.printInstr(new Mips.NativeStoreWord(Mips.RA, Mips.SP, info.argsSize + 4 * Mips.calleeSaved.length),
                     "save the return address");
         }
         for (var i = 0; i < Mips.calleeSaved.length; i++) {
-            if (Mips.calleeSaved[i].isUsed()) {
+            if (isUsed(Mips.calleeSaved[i])) {
                 printer.printInstr(new Mips.NativeStoreWord(Mips.calleeSaved[i], Mips.SP, info.argsSize + 4 * i),
                         "save value of $S" + i);
             }
@@ -132,12 +132,12 @@ public class MipsSubroutineEmitter extends SubroutineEmitter {
         printer.printLabel(new Label(info.funcLabel.name + Mips.EPILOGUE_SUFFIX));
         printer.printComment("start of epilogue");
         for (var i = 0; i < Mips.calleeSaved.length; i++) {
-            if (Mips.calleeSaved[i].isUsed()) {
+            if (isUsed(Mips.calleeSaved[i])) {
                 printer.printInstr(new Mips.NativeLoadWord(Mips.calleeSaved[i], Mips.SP, info.argsSize + 4 * i),
                         "restore value of $S" + i);
             }
         }
-        if (Mips.RA.isUsed() || info.hasCalls) {
+        if (isUsed(Mips.RA) || info.hasCalls) {
             printer.printInstr(new Mips.NativeLoadWord(Mips.RA, Mips.SP, info.argsSize + 4 * Mips.calleeSaved.length),
                     "restore the return address");
         }
@@ -147,6 +147,8 @@ public class MipsSubroutineEmitter extends SubroutineEmitter {
 
         printer.printInstr(new Mips.NativeReturn(), "return");
         printer.println();
+
+        return printer.close();
     }
 
     public int getNextLocalOffset() {
@@ -0,0 +1,312 @@
+package decaf.backend.cache;
+
+import decaf.driver.Config;
+import decaf.lowlevel.label.Label;
+import decaf.lowlevel.log.Log;
+import decaf.lowlevel.tac.TacCodec;
+import decaf.lowlevel.tac.TacFunc;
+import decaf.lowlevel.tac.TacProg;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+/**
+ * On-disk cache of compiled functions ({@code --cache}): the optimized TAC of a function and, for PA5, its assembly
+ * code.
+ * <p>
+ * A function is identified by a hash of its unoptimized TAC, together with the compiler version and the options that
+ * affect its output. The TAC of a method already refers to everything it depends on: field offsets, virtual table
+ * offsets of methods it calls, virtual tables, global labels of functions and intrinsics. Thus, a method is
+ * recompiled if and only if its body or the layout of a class it uses changes, and unchanged methods of an edited
+ * class are still reused. Virtual tables themselves are always emitted afresh from the current program.
+ * <p>
+ * Local labels ({@code _L<n>}) and constant strings ({@code _S<n>}) are numbered program-wide, so a cached function
+ * is stored with local labels numbered from 0 in order of appearance, and mapped back to the current labels of the
+ * function when reused; constant strings in assembly code are stored by value (see
+ * {@link decaf.backend.asm.AsmEmitter#relocatable}).
+ * <p>
+ * A compilation first {@link #checkIn}s every function before optimization, and looks up its {@link Ticket} later.
+ * The cache is best-effort: a missing, stale or corrupt entry is a miss, and a failed write is only logged. Entries
+ * are written atomically, so concurrent compilations may share a cache directory.
+ */
+public final class FuncCache {
+    /**
+     * Entry format version, bump when the format or the TAC encoding changes.
+     */
+    private static final int FORMAT = 1;
+
+    private static final int MAGIC = 0xDECAFCAC;
+
+    private final Path dir;
+
+    private final Config config;
+
+    private final Map<String, Ticket> tickets = new ConcurrentHashMap<>();
+
+    public FuncCache(Path dir, Config config) {
+        this.dir = dir;
+        this.config = config;
+    }
+
+    /**
+     * Compute the ticket of a function, before it is optimized, and look it up in the cache.
+     *
+     * @param func unoptimized TAC function
+     * @return ticket
+     */
+    public Ticket checkIn(TacFunc func) {
+        var ticket = new Ticket(func);
+        tickets.put(func.entry.name, ticket);
+        return ticket;
+    }
+
+    /**
+     * Get the ticket of a function, if it was {@link #checkIn}ed.
+     *
+     * @param func TAC function
+     * @return ticket
+     */
+    public Optional<Ticket> ticket(TacFunc func) {
+        return Optional.ofNullable(tickets.get(func.entry.name));
+    }
+
+    /**
+     * Cache state of a function in this compilation.
+     */
+    public final class Ticket {
+        /**
+         * Hex digest.
+         */
+        public final String key;
+
+        /**
+         * Local labels, by the number they are stored with.
+         */
+        private final List<Label> labels = new ArrayList<>();
+
+        /**
+         * Numbers of local labels, by name.
+         */
+        private final Map<String, Integer> ordinals = new HashMap<>();
+
+        private Optional<byte[]> body = Optional.empty();
+
+        private Optional<String> asm = Optional.empty();
+
+        private Ticket(TacFunc func) {
+            MessageDigest digest;
+            try {
+                digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+
+            try (var out = new DataOutputStream(new DigestOutputStream(OutputStream.nullOutputStream(), digest))) {
+                out.writeInt(FORMAT);
+                out.write(COMPILER_VERSION);
+                out.writeInt(config.optLevel);
+                out.writeInt(config.optBudget);
+                out.writeBoolean(config.bruteForceRegAlloc);
+                out.writeUTF(func.entry.name);
+                out.writeInt(func.numArgs);
+                TacCodec.writeBody(func, out, label -> ordinals.computeIfAbsent(label.name, name -> {
+                    labels.add(label);
+                    return labels.size() - 1;
+                }));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+
+            var sb = new StringBuilder();
+            for (var b : digest.digest()) {
+                sb.append(String.format("%02x", b));
+            }
+            key = sb.toString();
+
+            load();
+        }
+
+        /**
+         * Is the optimized TAC of this function cached?
+         *
+         * @return true if so
+         */
+        public boolean isHit() {
+            return body.isPresent();
+        }
+
+        /**
+         * Cached assembly code, in the form returned by {@link decaf.backend.asm.AsmEmitter#relocatable}.
+         *
+         * @return assembly code, if cached
+         */
+        public Optional<String> getAsm() {
+            return asm;
+        }
+
+        /**
+         * Local label by the number it is stored with.
+         *
+         * @param ordinal number
+         * @return label, or {@code null} if no such label
+         */
+        public Label label(int ordinal) {
+            return ordinal >= 0 && ordinal < labels.size() ? labels.get(ordinal) : null;
+        }
+
+        /**
+         * Number a local label is stored with.
+         *
+         * @param name label name
+         * @return number, or {@code null} if no such label
+         */
+        public Integer ordinal(String name) {
+            return ordinals.get(name);
+        }
+
+        /**
+         * Replace the body of {@code func} by the cached optimized TAC.
+         *
+         * @param func TAC function, unoptimized
+         * @param prog the program {@code func} is in
+         * @return true if done, false if the entry turns out to be broken
+         */
+        public boolean restore(TacFunc func, TacProg prog) {
+            if (body.isEmpty()) {
+                return false;
+            }
+
+            var vtables = prog.vtables.stream().collect(Collectors.toMap(v -> v.className, v -> v, (a, b) -> a));
+            try (var in = new DataInputStream(new ByteArrayInputStream(body.get()))) {
+                TacCodec.readBody(func, in, this::label, vtables::get);
+                return true;
+            } catch (IOException e) {
+                Log.warn("cache: broken entry %s: %s", key, e.getMessage());
+                body = Optional.empty();
+                asm = Optional.empty();
+                return false;
+            }
+        }
+
+        /**
+         * Save the optimized TAC of a function, and its assembly code if any.
+         *
+         * @param func optimized TAC function
+         * @param asm  assembly code, in the form returned by {@link decaf.backend.asm.AsmEmitter#relocatable}
+         */
+        public void store(TacFunc func, Optional<String> asm) {
+            var bytes = new ByteArrayOutputStream();
+            try (var out = new DataOutputStream(bytes)) {
+                TacCodec.writeBody(func, out, label -> {
+                    var ordinal = ordinals.get(label.name);
+                    if (ordinal == null) { // a label the unoptimized function has not
+                        throw new IllegalArgumentException(label.name);
+                    }
+                    return ordinal;
+                });
+            } catch (IOException | IllegalArgumentException e) {
+                Log.warn("cache: cannot encode %s: %s", func.entry.prettyString(), e.getMessage());
+                return;
+            }
+
+            this.body = Optional.of(bytes.toByteArray());
+            this.asm = asm;
+            save();
+        }
+
+        private Path path() {
+            return dir.resolve(key.substring(0, 2)).resolve(key);
+        }
+
+        private void load() {
+            var path = path();
+            if (!Files.isRegularFile(path)) {
+                Log.info("cache: miss %s", key);
+                return;
+            }
+
+            try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+                if (in.readInt() != MAGIC || in.readInt() != FORMAT || !in.readUTF().equals(key)) {
+                    Log.warn("cache: stale entry %s", key);
+                    return;
+                }
+                var body = new byte[in.readInt()];
+                in.readFully(body);
+                Optional<String> asm = Optional.empty();
+                if (in.readBoolean()) {
+                    var code = new byte[in.readInt()];
+                    in.readFully(code);
+                    asm = Optional.of(new String(code, StandardCharsets.UTF_8));
+                }
+                this.body = Optional.of(body);
+                this.asm = asm;
+                Log.info("cache: hit %s", key);
+            } catch (IOException e) {
+                Log.warn("cache: broken entry %s: %s", key, e.getMessage());
+            }
+        }
+
+        private void save() {
+            var path = path();
+            try {
+                Files.createDirectories(path.getParent());
+                var tmp = Files.createTempFile(path.getParent(), key, ".tmp");
+                try (var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                    out.writeInt(MAGIC);
+                    out.writeInt(FORMAT);
+                    out.writeUTF(key);
+                    out.writeInt(body.get().length);
+                    out.write(body.get());
+                    out.writeBoolean(asm.isPresent());
+                    if (asm.isPresent()) {
+                        var code = asm.get().getBytes(StandardCharsets.UTF_8);
+                        out.writeInt(code.length);
+                        out.write(code);
+                    }
+                }
+                Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException e) {
+                Log.warn("cache: cannot write %s: %s", path, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Identity of the compiler build: where its classes are, and their sizes and modification times.
+     */
+    private static final byte[] COMPILER_VERSION = compilerVersion();
+
+    private static byte[] compilerVersion() {
+        var sb = new StringBuilder();
+        try {
+            var location = Paths.get(FuncCache.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+            sb.append(location);
+            if (Files.isDirectory(location)) {
+                try (var files = Files.walk(location)) {
+                    for (var file : files.filter(Files::isRegularFile).sorted().collect(Collectors.toList())) {
+                        sb.append('\n').append(location.relativize(file)).append(' ').append(Files.size(file))
+                                .append(' ').append(Files.getLastModifiedTime(file).toMillis());
+                    }
+                }
+            } else {
+                sb.append(' ').append(Files.size(location)).append(' ')
+                        .append(Files.getLastModifiedTime(location).toMillis());
+            }
+        } catch (Exception e) {
+            // unknown build: never hit an entry written by another process
+            Log.warn("cache: cannot identify compiler: %s", e);
+            sb.append(UUID.randomUUID());
+        }
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
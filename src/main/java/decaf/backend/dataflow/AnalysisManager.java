@@ -0,0 +1,113 @@
+package decaf.backend.dataflow;
+
+import decaf.lowlevel.instr.PseudoInstr;
+
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.function.Supplier;
+
+/**
+ * Analyses of one piece of code (a function), computed on demand and cached until invalidated.
+ * <p>
+ * The cached control flow graph is shared: a pass that keeps it valid must keep its blocks in sync with the code, i.e.
+ * emit the code from the blocks, and update the locations it changes. Whoever changes the code tells which analyses
+ * are still valid with {@link #retain}; when the code is changed by other means, {@link #invalidate} everything.
+ *
+ * @param <I> type of instructions
+ */
+public class AnalysisManager<I extends PseudoInstr> {
+    public enum Analysis {
+        /**
+         * Control flow graph, see {@link CFGBuilder}.
+         */
+        CFG,
+        /**
+         * Liveness of temps, stored in the blocks of the control flow graph, see {@link LivenessAnalyzer}. Liveness
+         * around locations is told by a {@link LiveCursor}.
+         */
+        LIVENESS
+    }
+
+    /**
+     * Current code.
+     */
+    private final Supplier<List<I>> code;
+
+    private Optional<CFG<I>> graph = Optional.empty();
+
+    private boolean liveness = false;
+
+    /**
+     * Number of control flow graphs built so far.
+     */
+    private int builds = 0;
+
+    /**
+     * Create a manager.
+     *
+     * @param code gets the current code, e.g. {@code func::getInstrSeq}
+     */
+    public AnalysisManager(Supplier<List<I>> code) {
+        this.code = code;
+    }
+
+    /**
+     * Get the control flow graph.
+     *
+     * @return control flow graph
+     */
+    public CFG<I> cfg() {
+        if (graph.isEmpty()) {
+            graph = Optional.of(new CFGBuilder<I>().buildFrom(code.get()));
+            builds++;
+        }
+        return graph.get();
+    }
+
+    /**
+     * Get the control flow graph, with liveness analyzed.
+     *
+     * @return control flow graph
+     */
+    public CFG<I> liveness() {
+        var cfg = cfg();
+        if (!liveness) {
+            new LivenessAnalyzer<I>(false).accept(cfg);
+            liveness = true;
+        }
+        return cfg;
+    }
+
+    /**
+     * Drop all analyses except the preserved ones. An analysis is only valid if those it depends on are.
+     *
+     * @param preserved analyses still valid
+     */
+    public void retain(Set<Analysis> preserved) {
+        if (!preserved.contains(Analysis.CFG)) {
+            graph = Optional.empty();
+            liveness = false;
+        }
+        if (!preserved.contains(Analysis.LIVENESS)) {
+            liveness = false;
+        }
+    }
+
+    /**
+     * Drop all analyses.
+     */
+    public void invalidate() {
+        retain(EnumSet.noneOf(Analysis.class));
+    }
+
+    /**
+     * Number of control flow graphs built so far.
+     *
+     * @return number of builds
+     */
+    public int getBuildCount() {
+        return builds;
+    }
+}
@@ -108,6 +108,13 @@ public class BasicBlock<I extends PseudoInstr> implements Iterable<Loc<I>> {
 
     public Set<Temp> liveOut;
 
+    /**
+     * Numbering of temps in the liveness sets, and live temps at the exit as bits, for {@link LiveCursor}.
+     */
+    Universe<Temp> temps;
+
+    long[] liveOutBits;
+
     // For copy prop analysis
     public Set<TempPair> copyGen;
 
@@ -115,14 +122,10 @@ public class BasicBlock<I extends PseudoInstr> implements Iterable<Loc<I>> {
 
     public Set<TempPair> copyOut;
 
-    public Set<Temp> copyKill;
-
     // For common expr analysis
     public Set<Rhs> gen;
 
     public Set<Rhs> in;
 
     public Set<Rhs> out;
-
-    public Set<Temp> kill;
 }
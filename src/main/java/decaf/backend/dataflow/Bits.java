@@ -0,0 +1,140 @@
+package decaf.backend.dataflow;
+
+import java.util.function.IntConsumer;
+
+/**
+ * Operations on dense bit vectors, stored as {@code long[]}: bit {@code i} is bit {@code i % 64} of word
+ * {@code i / 64}.
+ * <p>
+ * Vectors operated on together must have the same length, i.e. be created for the same width.
+ */
+public final class Bits {
+    private Bits() {
+    }
+
+    /**
+     * Create an empty vector.
+     *
+     * @param width number of bits
+     * @return vector
+     */
+    public static long[] empty(int width) {
+        return new long[(width + 63) >>> 6];
+    }
+
+    /**
+     * Create a vector with all bits below {@code width} set.
+     *
+     * @param width number of bits
+     * @return vector
+     */
+    public static long[] full(int width) {
+        var bits = empty(width);
+        for (var i = 0; i < bits.length; i++) {
+            bits[i] = -1L;
+        }
+        if ((width & 63) != 0) {
+            bits[bits.length - 1] = (1L << width) - 1; // shift is modulo 64
+        }
+        return bits;
+    }
+
+    public static boolean get(long[] bits, int i) {
+        return (bits[i >>> 6] & (1L << i)) != 0;
+    }
+
+    public static void set(long[] bits, int i) {
+        bits[i >>> 6] |= 1L << i;
+    }
+
+    public static void clear(long[] bits, int i) {
+        bits[i >>> 6] &= ~(1L << i);
+    }
+
+    /**
+     * {@code dst |= src}.
+     */
+    public static void or(long[] dst, long[] src) {
+        for (var i = 0; i < dst.length; i++) {
+            dst[i] |= src[i];
+        }
+    }
+
+    /**
+     * {@code dst &= src}.
+     */
+    public static void and(long[] dst, long[] src) {
+        for (var i = 0; i < dst.length; i++) {
+            dst[i] &= src[i];
+        }
+    }
+
+    /**
+     * {@code dst &= ~src}.
+     */
+    public static void andNot(long[] dst, long[] src) {
+        for (var i = 0; i < dst.length; i++) {
+            dst[i] &= ~src[i];
+        }
+    }
+
+    /**
+     * Copy {@code src} into {@code dst}.
+     *
+     * @return if {@code dst} changed
+     */
+    public static boolean assign(long[] dst, long[] src) {
+        var changed = false;
+        for (var i = 0; i < dst.length; i++) {
+            if (dst[i] != src[i]) {
+                dst[i] = src[i];
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Number of bits set.
+     */
+    public static int count(long[] bits) {
+        var count = 0;
+        for (var word : bits) {
+            count += Long.bitCount(word);
+        }
+        return count;
+    }
+
+    /**
+     * Index of the first bit set at or after {@code from}, or -1 if none.
+     */
+    public static int next(long[] bits, int from) {
+        var i = from >>> 6;
+        if (i >= bits.length) {
+            return -1;
+        }
+        var word = bits[i] & (-1L << from);
+        while (true) {
+            if (word != 0) {
+                return (i << 6) + Long.numberOfTrailingZeros(word);
+            }
+            if (++i == bits.length) {
+                return -1;
+            }
+            word = bits[i];
+        }
+    }
+
+    /**
+     * Visit the indexes of all bits set, in increasing order.
+     */
+    public static void forEach(long[] bits, IntConsumer action) {
+        for (var i = 0; i < bits.length; i++) {
+            var word = bits[i];
+            while (word != 0) {
+                action.accept((i << 6) + Long.numberOfTrailingZeros(word));
+                word &= word - 1;
+            }
+        }
+    }
+}
@@ -1,7 +1,6 @@
 package decaf.backend.dataflow;
 
 import decaf.lowlevel.instr.PseudoInstr;
-import org.apache.commons.lang3.tuple.Pair;
 
 import java.util.*;
 
@@ -10,6 +9,11 @@ import java.util.*;
  * <p>
  * In a control flow graph, the nodes are basic blocks, and an edge {@code (i, j)} indicates that basic block {@code j}
  * is a reachable successor of basic block {@code i}.
+ * <p>
+ * Blocks not reachable from the entry block (block 0) are dropped, and the others are renumbered in order. Edges are
+ * stored as compressed sparse rows: the predecessors of block {@code i} are {@code prev[prevStart[i]]} up to
+ * {@code prev[prevStart[i + 1] - 1]}, in ascending order, and likewise for the successors. Every pass builds a CFG
+ * for every function, so this is kept cheap.
  *
  * @param <I> type of the instruction stored in the block
  */
@@ -20,82 +24,163 @@ public class CFG<I extends PseudoInstr> implements Iterable<BasicBlock<I>> {
      */
     public final List<BasicBlock<I>> nodes;
 
-    /**
-     * Edges.
-     */
-    public final List<Pair<Integer, Integer>> edges;
+    private final int[] prevStart;
 
-    // fst: prev, snd: succ
-    private List<Pair<Set<Integer>, Set<Integer>>> links;
+    private final int[] prev;
 
-    CFG(List<BasicBlock<I>> nodes, List<Pair<Integer, Integer>> edges) {
-        this.nodes = new ArrayList<>();
-        this.edges = new ArrayList<>();
+    private final int[] succStart;
 
-        links = new ArrayList<>();
-        for (var i = 0; i < nodes.size(); i++) {
-            links.add(Pair.of(new TreeSet<>(), new TreeSet<>()));
+    private final int[] succ;
+
+    /**
+     * Build from blocks and edges.
+     *
+     * @param blocks blocks, where block {@code i} has id {@code i}
+     * @param from   source of every edge, overwritten
+     * @param to     target of every edge, overwritten
+     * @param edges  number of edges, which must be distinct
+     */
+    CFG(List<BasicBlock<I>> blocks, int[] from, int[] to, int edges) {
+        var n = blocks.size();
+        var start = new int[n + 1];
+        var targets = new int[edges];
+        group(n, from, to, edges, start, targets);
+
+        // dfs from the entry block to test connectivity
+        var reachable = new BitSet(n);
+        if (n > 0) {
+            var stack = new int[n];
+            var top = 0;
+            stack[0] = 0;
+            reachable.set(0);
+            while (top >= 0) {
+                var u = stack[top--];
+                for (var k = start[u]; k < start[u + 1]; k++) {
+                    var v = targets[k];
+                    if (!reachable.get(v)) {
+                        reachable.set(v);
+                        stack[++top] = v;
+                    }
+                }
+            }
         }
 
-        for (var edge : edges) {
-            var u = edge.getLeft();
-            var v = edge.getRight();
-            links.get(u).getRight().add(v); // u -> v
-            links.get(v).getLeft().add(u); // v <- u
+        // keep reachable nodes, and edges between them
+        nodes = new ArrayList<>(reachable.cardinality());
+        var index = new int[n];
+        for (var i = reachable.nextSetBit(0); i >= 0; i = reachable.nextSetBit(i + 1)) {
+            index[i] = nodes.size();
+            blocks.get(i).id = nodes.size();
+            nodes.add(blocks.get(i));
+        }
+        var m = 0;
+        for (var e = 0; e < edges; e++) {
+            if (reachable.get(from[e])) { // and so is to[e]
+                from[m] = index[from[e]];
+                to[m] = index[to[e]];
+                m++;
+            }
         }
 
-        List<Pair<Set<Integer>, Set<Integer>>> final_links = new ArrayList<>();
+        n = nodes.size();
+        group(n, from, to, m, start, targets);
+        // transposing sorts the rows
+        prevStart = new int[n + 1];
+        prev = new int[m];
+        transpose(n, start, targets, prevStart, prev);
+        succStart = new int[n + 1];
+        succ = new int[m];
+        transpose(n, prevStart, prev, succStart, succ);
+    }
 
-        List<Integer> indexMapping = new ArrayList<>(nodes.size());
+    /**
+     * Group edges by source into compressed sparse rows, which are not sorted.
+     */
+    private static void group(int n, int[] from, int[] to, int edges, int[] start, int[] list) {
+        Arrays.fill(start, 0, n + 1, 0);
+        for (var e = 0; e < edges; e++) {
+            start[from[e] + 1]++;
+        }
+        for (var i = 0; i < n; i++) {
+            start[i + 1] += start[i];
+        }
+        var next = Arrays.copyOf(start, n);
+        for (var e = 0; e < edges; e++) {
+            list[next[from[e]]++] = to[e];
+        }
+    }
 
-        var visited = new ArrayList<Boolean>(nodes.size());
-        var reachable = new ArrayList<Boolean>(nodes.size());
-        for(int i = 0; i < nodes.size(); ++i) {
-            visited.add(i, false);
-            reachable.add(i, false);
+    /**
+     * Transpose compressed sparse rows. The rows of the result are sorted, as they are filled in order.
+     */
+    private static void transpose(int n, int[] start, int[] list, int[] tStart, int[] tList) {
+        for (var k = 0; k < start[n]; k++) {
+            tStart[list[k] + 1]++;
         }
-        var queue = new ArrayDeque<Integer>();
-        // bfs to test connectivity
-        if(nodes.size() > 0) {
-            queue.push(0);
-            reachable.set(0, true);
+        for (var i = 0; i < n; i++) {
+            tStart[i + 1] += tStart[i];
         }
-        while(!queue.isEmpty()) {
-            int cand = queue.remove();
-            if(!visited.get(cand)) {
-                queue.addAll(getSucc(cand));
-                if(reachable.get(cand)) {
-                    for(var succ : getSucc(cand))
-                        reachable.set(succ, true);
-                }
-                visited.set(cand, true);
+        var next = Arrays.copyOf(tStart, n);
+        for (var u = 0; u < n; u++) {
+            for (var k = start[u]; k < start[u + 1]; k++) {
+                tList[next[list[k]]++] = u;
             }
         }
+    }
+
+    /**
+     * Predecessors or successors of a block, in ascending order. A read-only view, which allocates nothing else.
+     */
+    public static final class Neighbors implements Iterable<Integer> {
+        private final int[] list;
+
+        private final int begin;
+
+        private final int end;
 
-        // remove nodes with zero in-degree (except block zero)
-        for(int i = 0; i < nodes.size(); ++i) {
-            if(reachable.get(i)) {
-                indexMapping.add(this.nodes.size());
-                nodes.get(i).id = this.nodes.size();
-                this.nodes.add(nodes.get(i));
-                final_links.add(Pair.of(new TreeSet<>(), new TreeSet<>()));
-            } else
-                indexMapping.add(-1);
+        private Neighbors(int[] list, int begin, int end) {
+            this.list = list;
+            this.begin = begin;
+            this.end = end;
         }
 
-        for(var edge : edges) {
-            var u = edge.getLeft();
-            var v = edge.getRight();
-            if(reachable.get(u) && reachable.get(v)) {
-                u = indexMapping.get(u);
-                v = indexMapping.get(v);
-                this.edges.add(Pair.of(u, v));
-                final_links.get(u).getRight().add(v); // u -> v
-                final_links.get(v).getLeft().add(u); // v <- u
-            }
+        public int size() {
+            return end - begin;
+        }
+
+        public boolean isEmpty() {
+            return begin == end;
+        }
+
+        /**
+         * Get the i-th block.
+         *
+         * @param i index, from 0 to {@code size() - 1}
+         * @return block id
+         */
+        public int get(int i) {
+            return list[begin + i];
         }
 
-        this.links = final_links;
+        @Override
+        public PrimitiveIterator.OfInt iterator() {
+            return new PrimitiveIterator.OfInt() {
+                private int k = begin;
+
+                @Override
+                public boolean hasNext() {
+                    return k < end;
+                }
+
+                @Override
+                public int nextInt() {
+                    if (k >= end) {
+                        throw new NoSuchElementException();
+                    }
+                    return list[k++];
+                }
+            };
+        }
     }
 
     /**
@@ -114,8 +199,8 @@ public class CFG<I extends PseudoInstr> implements Iterable<BasicBlock<I>> {
      * @param id basic block id
      * @return its predecessors
      */
-    public Set<Integer> getPrev(int id) {
-        return links.get(id).getLeft();
+    public Neighbors getPrev(int id) {
+        return new Neighbors(prev, prevStart[id], prevStart[id + 1]);
     }
 
     /**
@@ -124,8 +209,8 @@ public class CFG<I extends PseudoInstr> implements Iterable<BasicBlock<I>> {
      * @param id basic block id
      * @return its successors
      */
-    public Set<Integer> getSucc(int id) {
-        return links.get(id).getRight();
+    public Neighbors getSucc(int id) {
+        return new Neighbors(succ, succStart[id], succStart[id + 1]);
     }
 
     /**
@@ -135,7 +220,7 @@ public class CFG<I extends PseudoInstr> implements Iterable<BasicBlock<I>> {
      * @return its in-degree
      */
     public int getInDegree(int id) {
-        return links.get(id).getLeft().size();
+        return prevStart[id + 1] - prevStart[id];
     }
 
     /**
@@ -145,7 +230,16 @@ public class CFG<I extends PseudoInstr> implements Iterable<BasicBlock<I>> {
      * @return its out-degree
      */
     public int getOutDegree(int id) {
-        return links.get(id).getRight().size();
+        return succStart[id + 1] - succStart[id];
+    }
+
+    /**
+     * Get number of edges.
+     *
+     * @return number of edges
+     */
+    public int getEdgeCount() {
+        return succ.length;
     }
 
     @Override
@@ -2,7 +2,6 @@ package decaf.backend.dataflow;
 
 import decaf.lowlevel.instr.PseudoInstr;
 import decaf.lowlevel.label.Label;
-import org.apache.commons.lang3.tuple.Pair;
 
 import java.util.*;
 
@@ -47,22 +46,26 @@ public class CFGBuilder<I extends PseudoInstr> {
             throw new IllegalArgumentException("encounter a non-returned basic block");
         }
 
-        var edges = new ArrayList<Pair<Integer, Integer>>();
-        var iter = bbs.iterator();
-        while (iter.hasNext()) {
-            var bb = iter.next();
+        // every block has at most 2 successors
+        var from = new int[2 * bbs.size()];
+        var to = new int[2 * bbs.size()];
+        var edges = 0;
+        for (var bb : bbs) {
+            var hasNext = bb.id + 1 < bbs.size();
             switch (bb.kind) {
                 case END_BY_JUMP -> {
                     // can only continue to execute the block we wish to jump into
-                    Objects.requireNonNull(labelsToBBs.get(bb.getLastInstr().label));
-                    edges.add(Pair.of(bb.id, labelsToBBs.get(bb.getLastInstr().label)));
+                    from[edges] = bb.id;
+                    to[edges++] = target(bb);
                 }
                 case END_BY_COND_JUMP -> {
                     // can continue to execute either the block we wish to jump into, or the next block (if exists)
-                    Objects.requireNonNull(labelsToBBs.get(bb.getLastInstr().label));
-                    edges.add(Pair.of(bb.id, labelsToBBs.get(bb.getLastInstr().label)));
-                    if (iter.hasNext()) {
-                        edges.add(Pair.of(bb.id, bb.id + 1));
+                    var target = target(bb);
+                    from[edges] = bb.id;
+                    to[edges++] = target;
+                    if (hasNext && target != bb.id + 1) {
+                        from[edges] = bb.id;
+                        to[edges++] = bb.id + 1;
                     }
                 }
                 case END_BY_RETURN -> {
@@ -70,14 +73,22 @@ public class CFGBuilder<I extends PseudoInstr> {
                 }
                 default -> {
                     // can only continue to execute the next block
-                    if (iter.hasNext()) {
-                        edges.add(Pair.of(bb.id, bb.id + 1));
+                    if (hasNext) {
+                        from[edges] = bb.id;
+                        to[edges++] = bb.id + 1;
                     }
                 }
             }
         }
 
-        return new CFG<>(bbs, edges);
+        return new CFG<>(bbs, from, to, edges);
+    }
+
+    /**
+     * Id of the block a block jumps to.
+     */
+    private int target(BasicBlock<I> bb) {
+        return Objects.requireNonNull(labelsToBBs.get(bb.getLastInstr().label.name));
     }
 
     private List<BasicBlock<I>> bbs = new ArrayList<>();
@@ -86,14 +97,17 @@ public class CFGBuilder<I extends PseudoInstr> {
 
     private Optional<Label> currentBBLabel = Optional.empty();
 
-    private Map<Label, Integer> labelsToBBs = new TreeMap<>();
+    /**
+     * Block ids by label name. Labels are matched by name, as jump targets need not be the same objects.
+     */
+    private Map<String, Integer> labelsToBBs = new HashMap<>();
 
     private void save(BasicBlock<I> bb) {
         bbs.add(bb);
         buf.clear();
         currentBBLabel = Optional.empty();
 
-        bb.label.ifPresent(lbl -> labelsToBBs.put(lbl, bb.id));
+        bb.label.ifPresent(lbl -> labelsToBBs.put(lbl.name, bb.id));
     }
 
     private void close() {
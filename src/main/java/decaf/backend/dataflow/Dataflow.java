@@ -0,0 +1,232 @@
+package decaf.backend.dataflow;
+
+import decaf.lowlevel.instr.PseudoInstr;
+
+/**
+ * A dataflow problem over a control flow graph, whose facts are sets of items of a {@link Universe}, as bit vectors.
+ * <p>
+ * The problem is given by its direction, the meet over the facts flowing into a block from its neighbors, and the
+ * transfer function of every block. Call {@link #solve} to find the fixpoint: the facts at the entry ({@link #in}) and
+ * the exit ({@link #out}) of every block.
+ * <p>
+ * For a must problem ({@link Meet#INTERSECTION}), facts start from all items and shrink; otherwise they start empty
+ * and grow.
+ */
+public class Dataflow {
+    public enum Direction {
+        /**
+         * Facts flow from the entry to the exit of a block, and into its successors.
+         */
+        FORWARD,
+        /**
+         * Facts flow from the exit to the entry of a block, and into its predecessors.
+         */
+        BACKWARD
+    }
+
+    public enum Meet {
+        /**
+         * May problems: a fact holds if it holds along any path.
+         */
+        UNION,
+        /**
+         * Must problems: a fact holds if it holds along every path.
+         */
+        INTERSECTION
+    }
+
+    /**
+     * Transfer function of blocks.
+     */
+    public interface Transfer {
+        /**
+         * Compute the facts a block lets flow out, from those flowing in.
+         *
+         * @param block  block id
+         * @param input  facts at the entry of the block (at its exit, for a backward problem)
+         * @param output facts at the exit of the block (at its entry, for a backward problem), to overwrite
+         */
+        void apply(int block, long[] input, long[] output);
+    }
+
+    /**
+     * The classic transfer function: {@code output = gen | (input & ~kill)}.
+     *
+     * @param gen  items generated by every block
+     * @param kill items killed by every block
+     * @return transfer function
+     */
+    public static Transfer genKill(long[][] gen, long[][] kill) {
+        return (block, input, output) -> {
+            var g = gen[block];
+            var k = kill[block];
+            for (var i = 0; i < output.length; i++) {
+                output[i] = g[i] | (input[i] & ~k[i]);
+            }
+        };
+    }
+
+    public final Direction direction;
+
+    public final Meet meet;
+
+    /**
+     * Number of items.
+     */
+    public final int width;
+
+    /**
+     * Facts at the entry of every block, by block id.
+     */
+    public long[][] in;
+
+    /**
+     * Facts at the exit of every block, by block id.
+     */
+    public long[][] out;
+
+    /**
+     * Number of blocks visited (i.e. transfer functions applied) by the last {@link #solve}.
+     */
+    public int visits;
+
+    /**
+     * Number of blocks visited by all solvers on each thread, see {@link #visitsOnThisThread}.
+     */
+    private static final ThreadLocal<long[]> VISITS = ThreadLocal.withInitial(() -> new long[1]);
+
+    /**
+     * Number of blocks visited by all solvers on the current thread so far. The difference before and after some
+     * work is the cost of dataflow analysis in it, see {@link decaf.driver.Stats.Metric#DATAFLOW_VISITS}.
+     *
+     * @return number of visits
+     */
+    public static long visitsOnThisThread() {
+        return VISITS.get()[0];
+    }
+
+    public Dataflow(Direction direction, Meet meet, int width) {
+        this.direction = direction;
+        this.meet = meet;
+        this.width = width;
+    }
+
+    /**
+     * Solve the problem on a graph, with a worklist.
+     * <p>
+     * Blocks are visited in reverse postorder of the graph for a forward problem, and of the reversed graph (walked
+     * from the exit blocks) for a backward one, so that a block is mostly visited after the blocks its input depends
+     * on. Only blocks whose inputs changed are visited
+     * again: the worklist is swept in that order, from where the last visit left off. Thus an acyclic graph is solved
+     * with one visit per block, and a loop costs one more sweep per level of nesting, whatever the block numbering.
+     *
+     * @param graph    control flow graph
+     * @param boundary facts flowing into the entry block (the exit blocks, for a backward problem)
+     * @param transfer transfer function of blocks
+     */
+    public <I extends PseudoInstr> void solve(CFG<I> graph, long[] boundary, Transfer transfer) {
+        var n = graph.nodes.size();
+        var forward = direction == Direction.FORWARD;
+        in = new long[n][];
+        out = new long[n][];
+        for (var i = 0; i < n; i++) {
+            in[i] = Bits.empty(width);
+            out[i] = meet == Meet.UNION ? Bits.empty(width) : Bits.full(width);
+        }
+        var inputs = forward ? in : out;
+        var outputs = forward ? out : in;
+
+        var order = postorder(graph, forward);
+        for (int i = 0, j = n - 1; i < j; i++, j--) {
+            var tmp = order[i];
+            order[i] = order[j];
+            order[j] = tmp;
+        }
+        var position = new int[n];
+        for (var i = 0; i < n; i++) {
+            position[order[i]] = i;
+        }
+
+        var pending = Bits.full(n); // by position
+        var output = Bits.empty(width);
+        visits = 0;
+        var pos = Bits.next(pending, 0);
+        while (pos != -1) {
+            Bits.clear(pending, pos);
+            var id = order[pos];
+            var input = inputs[id];
+            meet(input, forward ? graph.getPrev(id) : graph.getSucc(id), outputs, boundary);
+            transfer.apply(id, input, output);
+            visits++;
+            if (Bits.assign(outputs[id], output)) {
+                var dependents = forward ? graph.getSucc(id) : graph.getPrev(id);
+                for (var k = 0; k < dependents.size(); k++) {
+                    Bits.set(pending, position[dependents.get(k)]);
+                }
+            }
+
+            pos = Bits.next(pending, pos + 1);
+            if (pos == -1) {
+                pos = Bits.next(pending, 0);
+            }
+        }
+        VISITS.get()[0] += visits;
+    }
+
+    /**
+     * Blocks in postorder of a depth-first search. Forward, it follows successors from the entry block; backward, it
+     * follows predecessors from the exit blocks (those without successors). Blocks not reached (e.g. in an endless
+     * loop, for a backward search) are searched from afterwards, by id.
+     */
+    private static <I extends PseudoInstr> int[] postorder(CFG<I> graph, boolean forward) {
+        var n = graph.nodes.size();
+        var order = new int[n];
+        var count = 0;
+        var visited = new boolean[n];
+        var stack = new int[n];
+        var edge = new int[n]; // next neighbor to explore, of every block on the stack
+        // roots: exit blocks first for a backward search, then every block by id
+        for (var k = forward ? n : 0; k < 2 * n; k++) {
+            var root = k % n;
+            if (visited[root] || k < n && !graph.getSucc(root).isEmpty()) {
+                continue;
+            }
+            var top = 0;
+            stack[0] = root;
+            edge[0] = 0;
+            visited[root] = true;
+            while (top >= 0) {
+                var neighbors = forward ? graph.getSucc(stack[top]) : graph.getPrev(stack[top]);
+                if (edge[top] < neighbors.size()) {
+                    var next = neighbors.get(edge[top]++);
+                    if (!visited[next]) {
+                        visited[next] = true;
+                        stack[++top] = next;
+                        edge[top] = 0;
+                    }
+                } else {
+                    order[count++] = stack[top--];
+                }
+            }
+        }
+        return order;
+    }
+
+    /**
+     * Meet the facts flowing from some neighbors, or take the boundary facts if there are none.
+     */
+    private void meet(long[] input, CFG.Neighbors neighbors, long[][] outputs, long[] boundary) {
+        if (neighbors.isEmpty()) {
+            Bits.assign(input, boundary);
+            return;
+        }
+        Bits.assign(input, outputs[neighbors.get(0)]);
+        for (var k = 1; k < neighbors.size(); k++) {
+            if (meet == Meet.UNION) {
+                Bits.or(input, outputs[neighbors.get(k)]);
+            } else {
+                Bits.and(input, outputs[neighbors.get(k)]);
+            }
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package decaf.backend.dataflow;
+
+import decaf.lowlevel.instr.PseudoInstr;
+import decaf.lowlevel.instr.Temp;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * A cursor over the locations of a basic block, which tells the temps alive before and after the location it is at.
+ * <p>
+ * Only the liveness at the boundaries of blocks is stored (see {@link LivenessAnalyzer}), and the cursor derives the
+ * rest as it moves. Moving backward ({@link #atExit}, {@link #prev}) just applies the dataflow equation of every
+ * location. Moving forward ({@link #atEntry}, {@link #next}) cannot, since it has to know which of the temps read or
+ * written by a location are still alive after it: these are found by one backward walk, when the cursor is created.
+ * Either way, a step costs the size of a bit vector, and no set is kept for every location.
+ * <p>
+ * The sets returned by {@link #liveIn} and {@link #liveOut} are read-only views, which change as the cursor moves.
+ * Liveness must have been analyzed after the last change of the block.
+ *
+ * @param <I> type of instructions
+ */
+public final class LiveCursor<I extends PseudoInstr> {
+    private final BasicBlock<I> bb;
+
+    private final Universe<Temp> temps;
+
+    private final long[] in;
+
+    private final long[] out;
+
+    /**
+     * For moving forward only: the temps read or written by every location, which are alive after it.
+     */
+    private final int[][] aliveAfter;
+
+    /**
+     * Index of the current location, or {@code -1} / {@code locs.size()} if the cursor is at the entry / the exit.
+     */
+    private int index;
+
+    private LiveCursor(BasicBlock<I> bb, int[][] aliveAfter) {
+        this.bb = bb;
+        this.temps = bb.temps;
+        this.in = Bits.empty(temps.size());
+        this.out = Bits.empty(temps.size());
+        this.aliveAfter = aliveAfter;
+    }
+
+    /**
+     * Place a cursor at the exit of a block, to move backward.
+     *
+     * @param bb basic block
+     * @return cursor
+     */
+    public static <I extends PseudoInstr> LiveCursor<I> atExit(BasicBlock<I> bb) {
+        var cursor = new LiveCursor<>(bb, null);
+        Bits.assign(cursor.in, bb.liveOutBits);
+        cursor.index = bb.locs.size();
+        return cursor;
+    }
+
+    /**
+     * Place a cursor at the entry of a block, to move forward.
+     *
+     * @param bb basic block
+     * @return cursor
+     */
+    public static <I extends PseudoInstr> LiveCursor<I> atEntry(BasicBlock<I> bb) {
+        var cursor = new LiveCursor<>(bb, new int[bb.locs.size()][]);
+        Bits.assign(cursor.in, bb.liveOutBits);
+        for (var i = bb.locs.size() - 1; i >= 0; i--) {
+            var instr = bb.locs.get(i).instr;
+            var read = instr.getRead();
+            var written = instr.getWritten();
+            var alive = new int[read.size() + written.size()];
+            var count = 0;
+            for (var temp : read) {
+                var id = cursor.temps.indexOf(temp);
+                if (Bits.get(cursor.in, id)) {
+                    alive[count++] = id;
+                }
+            }
+            for (var temp : written) {
+                var id = cursor.temps.indexOf(temp);
+                if (Bits.get(cursor.in, id)) {
+                    alive[count++] = id;
+                }
+            }
+            cursor.aliveAfter[i] = count == alive.length ? alive : Arrays.copyOf(alive, count);
+            cursor.step(instr);
+        }
+        Bits.assign(cursor.out, cursor.in);
+        cursor.index = -1;
+        return cursor;
+    }
+
+    public boolean hasPrev() {
+        return index > 0;
+    }
+
+    /**
+     * Move to the previous location.
+     *
+     * @return the location
+     */
+    public Loc<I> prev() {
+        if (!hasPrev()) {
+            throw new NoSuchElementException();
+        }
+        var loc = bb.locs.get(--index);
+        Bits.assign(out, in);
+        step(loc.instr);
+        return loc;
+    }
+
+    public boolean hasNext() {
+        return aliveAfter != null && index + 1 < bb.locs.size();
+    }
+
+    /**
+     * Move to the next location. Only a cursor placed by {@link #atEntry} can.
+     *
+     * @return the location
+     */
+    public Loc<I> next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        var loc = bb.locs.get(++index);
+        Bits.assign(in, out);
+        // A temp alive after the location is either alive before it, or read or written by it, and in the latter case
+        // it is known whether the temp is still alive.
+        for (var temp : loc.instr.getRead()) {
+            Bits.clear(out, temps.indexOf(temp));
+        }
+        for (var temp : loc.instr.getWritten()) {
+            Bits.clear(out, temps.indexOf(temp));
+        }
+        for (var id : aliveAfter[index]) {
+            Bits.set(out, id);
+        }
+        return loc;
+    }
+
+    /**
+     * Temps alive before the current location.
+     *
+     * @return live temps
+     */
+    public Set<Temp> liveIn() {
+        return temps.view(in);
+    }
+
+    /**
+     * Temps alive after the current location.
+     *
+     * @return live temps
+     */
+    public Set<Temp> liveOut() {
+        return temps.view(out);
+    }
+
+    /**
+     * Turn {@link #in}, the temps alive after an instruction, into those alive before it.
+     */
+    private void step(I instr) {
+        // Order is important here, because in an instruction, one temp can be both read and written, e.g.
+        // in `_T1 = _T1 + _T2`, `_T1` must be alive before execution.
+        for (var written : instr.getWritten()) {
+            Bits.clear(in, temps.indexOf(written));
+        }
+        for (var read : instr.getRead()) {
+            Bits.set(in, temps.indexOf(read));
+        }
+    }
+}
@@ -1,44 +1,72 @@
 package decaf.backend.dataflow;
 
 import decaf.lowlevel.instr.PseudoInstr;
+import decaf.lowlevel.instr.Temp;
 
-import java.util.HashSet;
 import java.util.TreeSet;
 import java.util.function.Consumer;
 
 /**
  * Perform liveness analysis on a control flow graph.
+ * <p>
+ * The temps of the graph are numbered in order of their indexes, and sets of them are bit vectors (see
+ * {@link Dataflow}). The sets stored in blocks and locations are read-only views of these vectors.
+ * <p>
+ * By default, liveness is stored on every location too, which costs memory in the number of instructions times the
+ * number of live temps. Otherwise, only blocks have it, and a {@link LiveCursor} tells the liveness around every
+ * location when needed.
  *
  * @param <I> type of instructions in the control flow graph
  */
 public class LivenessAnalyzer<I extends PseudoInstr> implements Consumer<CFG<I>> {
+    /**
+     * Store liveness on every location?
+     */
+    private final boolean eachLoc;
+
+    public LivenessAnalyzer() {
+        this(true);
+    }
+
+    /**
+     * Create an analyzer.
+     *
+     * @param eachLoc store liveness on every location ({@link Loc#liveIn}, {@link Loc#liveOut}), or only on blocks
+     */
+    public LivenessAnalyzer(boolean eachLoc) {
+        this.eachLoc = eachLoc;
+    }
 
     @Override
     public void accept(CFG<I> graph) {
+        var temps = new TreeSet<Temp>();
         for (var bb : graph.nodes) {
-            computeDefAndLiveUseFor(bb);
-            bb.liveIn = new TreeSet<>();
-            bb.liveIn.addAll(bb.liveUse);
-            bb.liveOut = new TreeSet<>();
+            for (var loc : bb) {
+                temps.addAll(loc.instr.getRead());
+                temps.addAll(loc.instr.getWritten());
+            }
         }
+        var universe = new Universe<Temp>();
+        temps.forEach(universe::add);
 
-        var changed = true;
-        do {
-            changed = false;
-            for (var bb : graph.nodes) {
-                for (var next : graph.getSucc(bb.id)) {
-                    bb.liveOut.addAll(graph.getBlock(next).liveIn);
-                }
-                var temp = new HashSet<>(bb.liveOut);
-                temp.removeAll(bb.def);
-                if (bb.liveIn.addAll(temp)) {
-                    changed = true;
-                }
-            }
-        } while (changed);
+        var n = graph.nodes.size();
+        var def = new long[n][];
+        var liveUse = new long[n][];
+        for (var bb : graph.nodes) {
+            computeDefAndLiveUseFor(bb, universe, def, liveUse);
+        }
+
+        var dataflow = new Dataflow(Dataflow.Direction.BACKWARD, Dataflow.Meet.UNION, universe.size());
+        dataflow.solve(graph, Bits.empty(universe.size()), Dataflow.genKill(liveUse, def));
 
         for (var bb : graph.nodes) {
-            analyzeLivenessForEachLocIn(bb);
+            bb.liveIn = universe.view(dataflow.in[bb.id]);
+            bb.liveOut = universe.view(dataflow.out[bb.id]);
+            bb.temps = universe;
+            bb.liveOutBits = dataflow.out[bb.id];
+            if (eachLoc) {
+                analyzeLivenessForEachLocIn(bb, universe, dataflow.out[bb.id]);
+            }
         }
     }
 
@@ -52,21 +80,33 @@ public class LivenessAnalyzer<I extends PseudoInstr> implements Consumer<CFG<I>>
      * basic block. Note this is NOT simply equal to the union set all read temps, but only those are not yet
      * assigned/reassigned.
      *
-     * @param bb basic block
+     * @param bb       basic block
+     * @param universe numbering of temps
+     * @param def      {@code def} sets, by block id
+     * @param liveUse  {@code liveUse} sets, by block id
      */
-    private void computeDefAndLiveUseFor(BasicBlock<I> bb) {
-        bb.def = new TreeSet<>();
-        bb.liveUse = new TreeSet<>();
+    private void computeDefAndLiveUseFor(BasicBlock<I> bb, Universe<Temp> universe, long[][] def,
+                                         long[][] liveUse) {
+        var defBits = Bits.empty(universe.size());
+        var liveUseBits = Bits.empty(universe.size());
 
         for (var loc : bb) {
             for (var read : loc.instr.getRead()) {
-                if (!bb.def.contains(read)) {
+                var id = universe.indexOf(read);
+                if (!Bits.get(defBits, id)) {
                     // used before being assigned to a value
-                    bb.liveUse.add(read);
+                    Bits.set(liveUseBits, id);
                 }
             }
-            bb.def.addAll(loc.instr.getWritten());
+            for (var written : loc.instr.getWritten()) {
+                Bits.set(defBits, universe.indexOf(written));
+            }
         }
+
+        def[bb.id] = defBits;
+        liveUse[bb.id] = liveUseBits;
+        bb.def = universe.view(defBits);
+        bb.liveUse = universe.view(liveUseBits);
     }
 
     /**
@@ -81,19 +121,27 @@ public class LivenessAnalyzer<I extends PseudoInstr> implements Consumer<CFG<I>>
      * simultaneously
      * So you see, to back propagate every location solves the problem.
      *
-     * @param bb the basic block
+     * @param bb       the basic block
+     * @param universe numbering of temps
+     * @param out      live temps at the exit of the block
      */
-    private void analyzeLivenessForEachLocIn(BasicBlock<I> bb) {
-        var liveOut = new TreeSet<>(bb.liveOut);
+    private void analyzeLivenessForEachLocIn(BasicBlock<I> bb, Universe<Temp> universe, long[] out) {
+        var after = out.clone();
         var it = bb.backwardIterator();
         while (it.hasNext()) {
             var loc = it.next();
-            loc.liveOut = new TreeSet<>(liveOut);
+            loc.liveOut = universe.view(after);
             // Order is important here, because in an instruction, one temp can be both read and written, e.g.
             // in `_T1 = _T1 + _T2`, `_T1` must be alive before execution.
-            liveOut.removeAll(loc.instr.getWritten());
-            liveOut.addAll(loc.instr.getRead());
-            loc.liveIn = new TreeSet<>(liveOut);
+            var before = after.clone();
+            for (var written : loc.instr.getWritten()) {
+                Bits.clear(before, universe.indexOf(written));
+            }
+            for (var read : loc.instr.getRead()) {
+                Bits.set(before, universe.indexOf(read));
+            }
+            loc.liveIn = universe.view(before);
+            after = before; // shared with the liveOut of the previous location
         }
         // assert liveIn == bb.liveIn
     }
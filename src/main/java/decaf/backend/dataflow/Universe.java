@@ -0,0 +1,93 @@
+package decaf.backend.dataflow;
+
+import java.util.*;
+
+/**
+ * A dense numbering of the items a dataflow analysis is about (temps, copies, expressions, ...), so that a set of
+ * them is a bit vector (see {@link Bits}).
+ *
+ * @param <T> type of items
+ */
+public class Universe<T> {
+    private final Map<T, Integer> ids = new HashMap<>();
+
+    private final List<T> items = new ArrayList<>();
+
+    /**
+     * Number an item, if not yet.
+     *
+     * @param item item
+     * @return its number
+     */
+    public int add(T item) {
+        var id = ids.get(item);
+        if (id == null) {
+            id = items.size();
+            ids.put(item, id);
+            items.add(item);
+        }
+        return id;
+    }
+
+    /**
+     * Number of an item.
+     *
+     * @param item item
+     * @return its number, or -1 if it is not numbered
+     */
+    public int indexOf(Object item) {
+        return ids.getOrDefault(item, -1);
+    }
+
+    public T get(int id) {
+        return items.get(id);
+    }
+
+    public int size() {
+        return items.size();
+    }
+
+    /**
+     * View a bit vector as a set of items, in the order they were numbered. The view is read-only, and reflects later
+     * changes of the vector.
+     *
+     * @param bits vector
+     * @return set
+     */
+    public Set<T> view(long[] bits) {
+        return new AbstractSet<>() {
+            @Override
+            public boolean contains(Object item) {
+                var id = indexOf(item);
+                return id >= 0 && Bits.get(bits, id);
+            }
+
+            @Override
+            public Iterator<T> iterator() {
+                return new Iterator<>() {
+                    private int next = Bits.next(bits, 0);
+
+                    @Override
+                    public boolean hasNext() {
+                        return next != -1;
+                    }
+
+                    @Override
+                    public T next() {
+                        if (next == -1) {
+                            throw new NoSuchElementException();
+                        }
+                        var item = items.get(next);
+                        next = Bits.next(bits, next + 1);
+                        return item;
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return Bits.count(bits);
+            }
+        };
+    }
+}
@@ -1,51 +1,73 @@
 package decaf.backend.opt;
 
-import decaf.backend.dataflow.BasicBlock;
-import decaf.backend.dataflow.CFG;
-import decaf.backend.dataflow.CFGBuilder;
-import decaf.backend.dataflow.Loc;
+import decaf.backend.dataflow.*;
 import decaf.lowlevel.instr.Temp;
+import decaf.lowlevel.tac.TacFunc;
 import decaf.lowlevel.tac.TacInstr;
-import decaf.lowlevel.tac.TacProg;
 
-import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.Optional;
+import java.util.*;
 import java.util.function.Consumer;
 
 class CommonExprAnalyzer implements Consumer<CFG<TacInstr>> {
+    /**
+     * All expressions in the graph.
+     */
+    private Universe<Rhs> exprs;
+
+    /**
+     * Expressions killed by a write to each temp, i.e. those which use the temp.
+     */
+    private Map<Temp, long[]> killedBy;
+
     @Override
     public void accept(CFG<TacInstr> graph) {
-        var uSet = new HashSet<Rhs>();
-        for(var bb : graph.nodes) {
-            computeGenKill(bb);
-            bb.out = new HashSet<>();
-            bb.out.addAll(bb.gen);
-            uSet.addAll(bb.gen);
-            bb.in = new HashSet<>();
+        number(graph);
+
+        var n = graph.nodes.size();
+        var gen = new long[n][];
+        var kill = new long[n][];
+        for (var bb : graph.nodes) {
+            computeGenKill(bb, gen, kill);
         }
 
-        var changed = true;
+        var dataflow = new Dataflow(Dataflow.Direction.FORWARD, Dataflow.Meet.INTERSECTION, exprs.size());
+        dataflow.solve(graph, Bits.empty(exprs.size()), Dataflow.genKill(gen, kill));
 
-        for(int i = 1; i < graph.nodes.size(); ++i) {
-            graph.nodes.get(i).in.addAll(uSet);
+        for (var bb : graph.nodes) {
+            bb.gen = exprs.view(gen[bb.id]);
+            bb.in = exprs.view(dataflow.in[bb.id]);
+            bb.out = exprs.view(dataflow.out[bb.id]);
+            analyzeInOutForEachLoc(bb, dataflow.in[bb.id]);
         }
+    }
 
-        do {
-            changed = false;
-            for(var bb : graph.nodes) {
-                for(var prev : graph.getPrev(bb.id)) {
-                    bb.in.retainAll(graph.getBlock(prev).out);
+    /**
+     * Number all expressions.
+     */
+    private void number(CFG<TacInstr> graph) {
+        exprs = new Universe<>();
+        var users = new HashMap<Temp, List<Integer>>();
+        for (var bb : graph.nodes) {
+            for (var loc : bb) {
+                var rhs = getRhs(loc.instr);
+                if (rhs.isPresent()) {
+                    var size = exprs.size();
+                    var id = exprs.add(rhs.get());
+                    if (id == size) {
+                        for (var read : loc.instr.getRead()) { // operands of the expression
+                            users.computeIfAbsent(read, t -> new ArrayList<>()).add(id);
+                        }
+                    }
                 }
-                var temp = new HashSet<>(bb.in);
-                temp.removeIf(v -> bb.kill.contains(v));
-                if(bb.out.addAll(temp))
-                    changed = true;
             }
-        } while (changed);
+        }
 
-        for(var bb : graph.nodes)
-            analyzeInOutForEachLoc(bb);
+        killedBy = new HashMap<>();
+        users.forEach((temp, ids) -> {
+            var bits = Bits.empty(exprs.size());
+            ids.forEach(id -> Bits.set(bits, id));
+            killedBy.put(temp, bits);
+        });
     }
 
     static Optional<Rhs> getRhs(TacInstr instr) {
@@ -103,65 +125,89 @@ class CommonExprAnalyzer implements Consumer<CFG<TacInstr>> {
         CommonExprAnalyzer.dfsInner(visited, graph, currBlk, currLoc - 1, rhs, newReg);
     }
 
-    private void analyzeInOutForEachLoc(BasicBlock<TacInstr> bb) {
-        var in = new HashSet<>(bb.in);
-        for(var loc : bb.locs) {
-            loc.in = new HashSet<>(in);
-            if(loc.instr.getWritten().size() > 0)
-                in.removeIf(v -> v.uses(loc.instr.getWritten().get(0)));
-            getRhs(loc.instr).ifPresent(in::add);
-            loc.out = new HashSet<>(in);
+    /**
+     * Update the available expressions after an instruction.
+     */
+    private void step(long[] in, TacInstr instr) {
+        for (var written : instr.getWritten()) {
+            var killed = killedBy.get(written);
+            if (killed != null) {
+                Bits.andNot(in, killed);
+            }
+        }
+        getRhs(instr).ifPresent(rhs -> Bits.set(in, exprs.indexOf(rhs)));
+    }
+
+    private void analyzeInOutForEachLoc(BasicBlock<TacInstr> bb, long[] blockIn) {
+        var in = blockIn.clone();
+        for (var loc : bb.locs) {
+            loc.in = exprs.view(in);
+            var out = in.clone();
+            step(out, loc.instr);
+            loc.out = exprs.view(out);
+            in = out; // shared with the in of the next location
         }
     }
 
-    private void computeGenKill(BasicBlock<TacInstr> bb) {
-        bb.gen = new HashSet<>();
-        bb.kill = new HashSet<>();
-        for(var loc : bb.locs) {
-            // add kill
-            bb.kill.addAll(loc.instr.getWritten());
-            // remove kill from gen
-            if(loc.instr.getWritten().size() > 0)
-                bb.gen.removeIf(v -> v.uses(loc.instr.getWritten().get(0)));
-            // add gen
-            getRhs(loc.instr).ifPresent(bb.gen::add);
+    private void computeGenKill(BasicBlock<TacInstr> bb, long[][] gen, long[][] kill) {
+        var genBits = Bits.empty(exprs.size());
+        var killBits = Bits.empty(exprs.size());
+        for (var loc : bb.locs) {
+            for (var written : loc.instr.getWritten()) {
+                var killed = killedBy.get(written);
+                if (killed != null) {
+                    Bits.or(killBits, killed);
+                }
+            }
+            step(genBits, loc.instr);
         }
+        gen[bb.id] = genBits;
+        kill[bb.id] = killBits;
     }
 }
 
-public class CommonExprOpt implements Consumer<TacProg> {
-    public void accept(TacProg input) {
+public class CommonExprOpt implements OptPass {
+    @Override
+    public boolean transform(TacFunc func, AnalysisManager<TacInstr> analyses) {
         var analyzer = new CommonExprAnalyzer();
-        for(var func : input.funcs) {
-            var builder = new CFGBuilder<TacInstr>();
-            var cfg = builder.buildFrom(func.getInstrSeq());
-            analyzer.accept(cfg);
-
-            for(var bb : cfg.nodes) {
-                for(int i = 0; i < bb.locs.size(); ++i) {
-                    var curr = bb.locs.get(i);
-                    var rhs = CommonExprAnalyzer.getRhs(curr.instr);
-                    if(rhs.isPresent() && curr.in.contains(rhs.get())) {
-                        int oldSize = bb.locs.size();
-                        Temp reg = func.getFreshTemp();
-                        CommonExprAnalyzer.dfs(cfg, bb.id, i, rhs.get(), reg);
-                        i += (bb.locs.size() - oldSize);
-                        // new index of curr
-                        var oldDst = curr.instr.getWritten().get(0);
-                        curr.instr = new TacInstr.Assign(oldDst, reg);
-                    }
+        var cfg = analyses.cfg();
+        analyzer.accept(cfg);
+
+        var changed = false;
+        for(var bb : cfg.nodes) {
+            for(int i = 0; i < bb.locs.size(); ++i) {
+                var curr = bb.locs.get(i);
+                var rhs = CommonExprAnalyzer.getRhs(curr.instr);
+                if(rhs.isPresent() && curr.in.contains(rhs.get())) {
+                    int oldSize = bb.locs.size();
+                    Temp reg = func.getFreshTemp();
+                    CommonExprAnalyzer.dfs(cfg, bb.id, i, rhs.get(), reg);
+                    i += (bb.locs.size() - oldSize);
+                    // new index of curr
+                    var oldDst = curr.instr.getWritten().get(0);
+                    curr.instr = new TacInstr.Assign(oldDst, reg);
+                    changed = true;
                 }
             }
+        }
 
-            var instSeq = new ArrayList<TacInstr>();
-            instSeq.add(func.getInstrSeq().get(0));
-            for(var bb : cfg.nodes) {
-                bb.label.ifPresent(e -> instSeq.add(new TacInstr.Mark(e)));
-                for(var loc : bb.locs) {
-                    instSeq.add(loc.instr);
-                }
+        var instSeq = new ArrayList<TacInstr>();
+        instSeq.add(func.getInstrSeq().get(0));
+        for(var bb : cfg.nodes) {
+            bb.label.ifPresent(e -> instSeq.add(new TacInstr.Mark(e)));
+            for(var loc : bb.locs) {
+                instSeq.add(loc.instr);
             }
-            func.setInstrSeq(instSeq);
         }
+        func.setInstrSeq(instSeq);
+        return changed;
+    }
+
+    /**
+     * Instructions are replaced and added within blocks, and the code is emitted from them.
+     */
+    @Override
+    public Set<AnalysisManager.Analysis> preserved() {
+        return EnumSet.of(AnalysisManager.Analysis.CFG);
     }
 }
@@ -1,12 +1,11 @@
 package decaf.backend.opt;
 
-import decaf.backend.dataflow.CFGBuilder;
+import decaf.backend.dataflow.AnalysisManager;
+import decaf.lowlevel.tac.TacFunc;
 import decaf.lowlevel.tac.TacInstr;
-import decaf.lowlevel.tac.TacProg;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.function.Consumer;
 
 
 class IntValue implements Cloneable {
@@ -51,7 +50,7 @@ class IntValue implements Cloneable {
     }
 }
 
-public class ConstPropOpt implements Consumer<TacProg> {
+public class ConstPropOpt implements OptPass {
     private IntValue meet(IntValue a, IntValue b) {
         if (a.kind == IntValue.Kind.CONST && b.kind == IntValue.Kind.CONST && a.value == b.value)
             return new IntValue(IntValue.Kind.CONST, a.value);
@@ -275,63 +274,65 @@ public class ConstPropOpt implements Consumer<TacProg> {
         }
     }
 
-    public void accept(TacProg input) {
-        for (var func : input.funcs) {
-            var builder = new CFGBuilder<TacInstr>();
-            var cfg = builder.buildFrom(func.getInstrSeq());
-            var each = func.getUsedTempCount();
-            var flow = new ArrayList<IntValue>(each * cfg.nodes.size());
-            for (int i = 0; i < each * cfg.nodes.size(); ++i) {
-                flow.add(new IntValue(IntValue.Kind.UNDEF));
-            }
-            for (int i = 0; i < func.numArgs; ++i)
-                flow.get(i).kind = IntValue.Kind.NAC;
-            var temp = new ArrayList<>();
-            for (var i : flow)
-                temp.add(i.clone());
-            while (true) {
-                for (int idx = 0; idx < cfg.nodes.size(); ++idx) {
-                    for (var next : cfg.getSucc(idx)) {
-                        var off = idx * each;
-                        var off1 = next * each;
-                        for (int i = 0; i < each; ++i)
-                            flow.set(off1 + i, meet(flow.get(off + i), flow.get(off1 + i)));
-                    }
-                }
-                for (int idx = 0; idx < cfg.nodes.size(); ++idx) {
-                    var arr = flow.subList(idx * each, (idx + 1) * each);
-                    for (var loc : cfg.nodes.get(idx).locs)
-                        transform(loc.instr, arr);
-                }
-                boolean hasChange = false;
-                for (int i = 0; i < flow.size(); ++i) {
-                    if (!flow.get(i).equals(temp.get(i))) {
-                        hasChange = true;
-                        break;
-                    }
-                }
-                if (!hasChange)
-                    break;
-                else {
-                    temp = new ArrayList<>();
-                    for (var i : flow)
-                        temp.add(i.clone());
+    @Override
+    public boolean transform(TacFunc func, AnalysisManager<TacInstr> analyses) {
+        var cfg = analyses.cfg();
+        var each = func.getUsedTempCount();
+        var flow = new ArrayList<IntValue>(each * cfg.nodes.size());
+        for (int i = 0; i < each * cfg.nodes.size(); ++i) {
+            flow.add(new IntValue(IntValue.Kind.UNDEF));
+        }
+        for (int i = 0; i < func.numArgs; ++i)
+            flow.get(i).kind = IntValue.Kind.NAC;
+        var temp = new ArrayList<>();
+        for (var i : flow)
+            temp.add(i.clone());
+        while (true) {
+            for (int idx = 0; idx < cfg.nodes.size(); ++idx) {
+                for (var next : cfg.getSucc(idx)) {
+                    var off = idx * each;
+                    var off1 = next * each;
+                    for (int i = 0; i < each; ++i)
+                        flow.set(off1 + i, meet(flow.get(off + i), flow.get(off1 + i)));
                 }
             }
-            var instSeq = new ArrayList<TacInstr>();
-            instSeq.add(func.getInstrSeq().get(0));
             for (int idx = 0; idx < cfg.nodes.size(); ++idx) {
-                cfg.nodes.get(idx).label.ifPresent(e -> instSeq.add(new TacInstr.Mark(e)));
                 var arr = flow.subList(idx * each, (idx + 1) * each);
-                for (var loc : cfg.nodes.get(idx).locs) {
-                    var res = transform(loc.instr, arr);
-                    if (res != null) {
-                        res.hint = loc.instr.hint;
-                        instSeq.add(res);
-                    }
+                for (var loc : cfg.nodes.get(idx).locs)
+                    transform(loc.instr, arr);
+            }
+            boolean hasChange = false;
+            for (int i = 0; i < flow.size(); ++i) {
+                if (!flow.get(i).equals(temp.get(i))) {
+                    hasChange = true;
+                    break;
+                }
+            }
+            if (!hasChange)
+                break;
+            else {
+                temp = new ArrayList<>();
+                for (var i : flow)
+                    temp.add(i.clone());
+            }
+        }
+        var changed = false;
+        var instSeq = new ArrayList<TacInstr>();
+        instSeq.add(func.getInstrSeq().get(0));
+        for (int idx = 0; idx < cfg.nodes.size(); ++idx) {
+            cfg.nodes.get(idx).label.ifPresent(e -> instSeq.add(new TacInstr.Mark(e)));
+            var arr = flow.subList(idx * each, (idx + 1) * each);
+            for (var loc : cfg.nodes.get(idx).locs) {
+                var res = transform(loc.instr, arr);
+                if (res != loc.instr)
+                    changed = true;
+                if (res != null) {
+                    res.hint = loc.instr.hint;
+                    instSeq.add(res);
                 }
             }
-            func.setInstrSeq(instSeq);
         }
+        func.setInstrSeq(instSeq);
+        return changed;
     }
 }
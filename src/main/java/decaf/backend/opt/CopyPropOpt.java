@@ -1,111 +1,160 @@
 package decaf.backend.opt;
 
-import decaf.backend.dataflow.BasicBlock;
-import decaf.backend.dataflow.CFG;
-import decaf.backend.dataflow.CFGBuilder;
-import decaf.backend.dataflow.TempPair;
+import decaf.backend.dataflow.*;
+import decaf.lowlevel.instr.Temp;
+import decaf.lowlevel.tac.TacFunc;
 import decaf.lowlevel.tac.TacInstr;
-import decaf.lowlevel.tac.TacProg;
 
-import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.*;
 import java.util.function.Consumer;
 
 class CopyAnalyzer implements Consumer<CFG<TacInstr>> {
+    /**
+     * Have self assignments (which are useless) been removed from the last analyzed graph?
+     */
+    boolean removedSelfAssign;
+
+    /**
+     * All copies in the graph.
+     */
+    private Universe<TempPair> copies;
+
+    /**
+     * Copies killed by a write to each temp, i.e. those which mention the temp.
+     */
+    private Map<Temp, long[]> killedBy;
+
     @Override
     public void accept(CFG<TacInstr> graph) {
-        var uSet = new HashSet<TempPair>();
-
-        for(var bb : graph.nodes) {
-            computeGenKill(bb);
-            bb.copyOut = new HashSet<>();
-            bb.copyOut.addAll(bb.copyGen);
-            uSet.addAll(bb.copyGen);
-            bb.copyIn = new HashSet<>();
+        removedSelfAssign = false;
+        number(graph);
+
+        var n = graph.nodes.size();
+        var gen = new long[n][];
+        var kill = new long[n][];
+        for (var bb : graph.nodes) {
+            computeGenKill(bb, gen, kill);
         }
 
-        var changed = true;
+        var dataflow = new Dataflow(Dataflow.Direction.FORWARD, Dataflow.Meet.INTERSECTION, copies.size());
+        dataflow.solve(graph, Bits.empty(copies.size()), Dataflow.genKill(gen, kill));
 
-        for(int i = 1; i < graph.nodes.size(); ++i) {
-            graph.nodes.get(i).copyIn.addAll(uSet);
+        for (var bb : graph.nodes) {
+            bb.copyGen = copies.view(gen[bb.id]);
+            bb.copyIn = copies.view(dataflow.in[bb.id]);
+            bb.copyOut = copies.view(dataflow.out[bb.id]);
+            analyzeCopyForEachLoc(bb, dataflow.in[bb.id]);
         }
+    }
 
-        do {
-            changed = false;
-            for (var bb : graph.nodes) {
-                for (var prev : graph.getPrev(bb.id)) {
-                    bb.copyIn.retainAll(graph.getBlock(prev).copyOut);
-                }
-                var temp = new HashSet<>(bb.copyIn);
-                temp.removeIf(v -> bb.copyKill.contains(v.dst) || bb.copyKill.contains(v.src));
-                if (bb.copyOut.addAll(temp)) {
-                    changed = true;
+    /**
+     * Number all copies, and remove self assignments on the way.
+     */
+    private void number(CFG<TacInstr> graph) {
+        copies = new Universe<>();
+        var mentions = new HashMap<Temp, List<Integer>>();
+        for (var bb : graph.nodes) {
+            var it = bb.iterator();
+            while (it.hasNext()) {
+                var loc = it.next();
+                if (loc.instr.type.equals(TacInstr.TacType.ASSIGN)) {
+                    var assign = (TacInstr.Assign) loc.instr;
+                    if (assign.src.compareTo(assign.dst) == 0) {
+                        it.remove();
+                        removedSelfAssign = true;
+                        continue;
+                    }
+                    var size = copies.size();
+                    var id = copies.add(new TempPair(assign.dst, assign.src));
+                    if (id == size) {
+                        mentions.computeIfAbsent(assign.dst, t -> new ArrayList<>()).add(id);
+                        mentions.computeIfAbsent(assign.src, t -> new ArrayList<>()).add(id);
+                    }
                 }
             }
-        } while (changed);
-
-        for(var bb : graph.nodes) {
-            analyzeCopyForEachLoc(bb);
         }
+
+        killedBy = new HashMap<>();
+        mentions.forEach((temp, ids) -> {
+            var bits = Bits.empty(copies.size());
+            ids.forEach(id -> Bits.set(bits, id));
+            killedBy.put(temp, bits);
+        });
     }
 
-    private void analyzeCopyForEachLoc(BasicBlock<TacInstr> bb) {
-        var copyIn = new HashSet<>(bb.copyIn);
-        var it = bb.iterator();
-        while (it.hasNext()) {
-            var loc = it.next();
-            loc.copyIn = new HashSet<>(copyIn);
-            copyIn.removeIf(v -> loc.instr.getWritten().size() > 0 && v.contains(loc.instr.getWritten().get(0)));
-            if(loc.instr.type == TacInstr.TacType.ASSIGN) {
-                var assign = (TacInstr.Assign)loc.instr;
-                copyIn.add(new TempPair(assign.dst, assign.src));
+    /**
+     * Update the available copies after an instruction.
+     */
+    private void step(long[] copyIn, TacInstr instr) {
+        for (var written : instr.getWritten()) {
+            var killed = killedBy.get(written);
+            if (killed != null) {
+                Bits.andNot(copyIn, killed);
             }
-            loc.copyOut = new HashSet<>(copyIn);
+        }
+        if (instr.type == TacInstr.TacType.ASSIGN) {
+            var assign = (TacInstr.Assign) instr;
+            Bits.set(copyIn, copies.indexOf(new TempPair(assign.dst, assign.src)));
         }
     }
 
-    private void computeGenKill(BasicBlock<TacInstr> bb) {
-        bb.copyGen = new HashSet<>();
-        bb.copyKill = new HashSet<>();
-        var it = bb.iterator();
-        while (it.hasNext()) {
-            var loc = it.next();
-            if(loc.instr.type.equals(TacInstr.TacType.ASSIGN)) {
-                var assign = (TacInstr.Assign)loc.instr;
-                if(assign.src.compareTo(assign.dst) == 0) {
-                    it.remove();
-                    continue;
+    private void analyzeCopyForEachLoc(BasicBlock<TacInstr> bb, long[] in) {
+        var copyIn = in.clone();
+        for (var loc : bb) {
+            loc.copyIn = copies.view(copyIn);
+            var copyOut = copyIn.clone();
+            step(copyOut, loc.instr);
+            loc.copyOut = copies.view(copyOut);
+            copyIn = copyOut; // shared with the copyIn of the next location
+        }
+    }
+
+    private void computeGenKill(BasicBlock<TacInstr> bb, long[][] gen, long[][] kill) {
+        var genBits = Bits.empty(copies.size());
+        var killBits = Bits.empty(copies.size());
+        for (var loc : bb) {
+            for (var written : loc.instr.getWritten()) {
+                var killed = killedBy.get(written);
+                if (killed != null) {
+                    Bits.or(killBits, killed);
                 }
             }
-            bb.copyKill.addAll(loc.instr.getWritten());
-            if(loc.instr.getWritten().size() > 0) {
-                bb.copyGen.removeIf(v -> v.contains(loc.instr.getWritten().get(0)));
-            }
-            if(loc.instr.type.equals(TacInstr.TacType.ASSIGN)) {
-                var assign = (TacInstr.Assign)loc.instr;
-                bb.copyGen.add(new TempPair(assign.dst, assign.src));
-            }
+            step(genBits, loc.instr);
         }
+        gen[bb.id] = genBits;
+        kill[bb.id] = killBits;
     }
 }
 
-public class CopyPropOpt implements Consumer<TacProg> {
+public class CopyPropOpt implements OptPass {
     @Override
-    public void accept(TacProg input) {
+    public boolean transform(TacFunc func, AnalysisManager<TacInstr> analyses) {
         var analyzer = new CopyAnalyzer();
-        for(var func : input.funcs) {
-            var builder = new CFGBuilder<TacInstr>();
-            var cfg = builder.buildFrom(func.getInstrSeq());
-            analyzer.accept(cfg);
-            var instSeq = new ArrayList<TacInstr>();
-            instSeq.add(func.getInstrSeq().get(0));
-            for(var bb : cfg.nodes) {
-                bb.label.ifPresent(e -> instSeq.add(new TacInstr.Mark(e)));
-                for(var inst : bb.locs) {
-                    instSeq.add(inst.instr.updateReadReg(inst.copyIn));
+        var cfg = analyses.cfg();
+        analyzer.accept(cfg);
+        var changed = analyzer.removedSelfAssign;
+        var instSeq = new ArrayList<TacInstr>();
+        instSeq.add(func.getInstrSeq().get(0));
+        for(var bb : cfg.nodes) {
+            bb.label.ifPresent(e -> instSeq.add(new TacInstr.Mark(e)));
+            for(var inst : bb.locs) {
+                var res = inst.instr.updateReadReg(inst.copyIn);
+                if(res != inst.instr) {
+                    inst.instr = res;
+                    changed = true;
                 }
+                instSeq.add(res);
             }
-            func.setInstrSeq(instSeq);
         }
+        func.setInstrSeq(instSeq);
+        return changed;
+    }
+
+    /**
+     * Only operands are replaced, and self assignments (never the last of a block) removed, all within blocks.
+     */
+    @Override
+    public Set<AnalysisManager.Analysis> preserved() {
+        return EnumSet.of(AnalysisManager.Analysis.CFG);
     }
 }
@@ -1,52 +1,75 @@
 package decaf.backend.opt;
 
-import decaf.backend.dataflow.CFGBuilder;
-import decaf.backend.dataflow.LivenessAnalyzer;
+import decaf.backend.dataflow.AnalysisManager;
+import decaf.backend.dataflow.LiveCursor;
+import decaf.backend.dataflow.Loc;
+import decaf.lowlevel.tac.TacFunc;
 import decaf.lowlevel.tac.TacInstr;
-import decaf.lowlevel.tac.TacProg;
 
 import java.util.ArrayList;
+import java.util.EnumSet;
 import java.util.Optional;
-import java.util.function.Consumer;
+import java.util.Set;
 
-public class LivenessOpt implements Consumer<TacProg> {
-    public void accept(TacProg input) {
-        var analyzer = new LivenessAnalyzer<TacInstr>();
-        for (var func : input.funcs) {
-            var builder = new CFGBuilder<TacInstr>();
-            var cfg = builder.buildFrom(func.getInstrSeq());
-            analyzer.accept(cfg);
-            // iterate over basic blocks
-            var instSeq = new ArrayList<TacInstr>();
-            instSeq.add(func.getInstrSeq().get(0));
-            for (var bb : cfg.nodes) {
-                bb.label.ifPresent(e -> instSeq.add(new TacInstr.Mark(e)));
-                for (var inst : bb.locs) {
-                    boolean optimizedOut = false;
-                    switch (inst.instr.type) {
-                        case DIRECT_CALL -> {
-                            var call = (TacInstr.DirectCall) inst.instr;
-                            var dst = call.getWritten();
-                            if (dst.size() > 0 && !inst.liveOut.contains(dst.get(0)))
-                                call.dst = Optional.empty();
+public class LivenessOpt implements OptPass {
+    @Override
+    public boolean transform(TacFunc func, AnalysisManager<TacInstr> analyses) {
+        var cfg = analyses.liveness();
+        var changed = false;
+        // iterate over basic blocks
+        var instSeq = new ArrayList<TacInstr>();
+        instSeq.add(func.getInstrSeq().get(0));
+        for (var bb : cfg.nodes) {
+            bb.label.ifPresent(e -> instSeq.add(new TacInstr.Mark(e)));
+            var kept = new ArrayList<Loc<TacInstr>>(bb.locs.size());
+            var cursor = LiveCursor.atEntry(bb);
+            while (cursor.hasNext()) {
+                var inst = cursor.next();
+                var liveOut = cursor.liveOut();
+                boolean optimizedOut = false;
+                switch (inst.instr.type) {
+                    case DIRECT_CALL -> {
+                        var call = (TacInstr.DirectCall) inst.instr;
+                        var dst = call.getWritten();
+                        if (dst.size() > 0 && !liveOut.contains(dst.get(0))) {
+                            call.dst = Optional.empty();
+                            changed = true;
                         }
-                        case INDIRECT_CALL -> {
-                            var call = (TacInstr.IndirectCall) inst.instr;
-                            var dst = call.getWritten();
-                            if (dst.size() > 0 && !inst.liveOut.contains(dst.get(0)))
-                                call.dst = Optional.empty();
-                        }
-                        default -> {
-                            var dst = inst.instr.getWritten();
-                            if (dst.size() > 0 && !inst.liveOut.contains(dst.get(0)))
-                                optimizedOut = true;
+                    }
+                    case INDIRECT_CALL -> {
+                        var call = (TacInstr.IndirectCall) inst.instr;
+                        var dst = call.getWritten();
+                        if (dst.size() > 0 && !liveOut.contains(dst.get(0))) {
+                            call.dst = Optional.empty();
+                            changed = true;
                         }
                     }
-                    if (!optimizedOut)
-                        instSeq.add(inst.instr);
+                    default -> {
+                        var dst = inst.instr.getWritten();
+                        if (dst.size() > 0 && !liveOut.contains(dst.get(0)))
+                            optimizedOut = true;
+                    }
                 }
+                if (!optimizedOut) {
+                    instSeq.add(inst.instr);
+                    kept.add(inst);
+                } else
+                    changed = true;
+            }
+            if (kept.size() < bb.locs.size()) {
+                bb.locs.clear();
+                bb.locs.addAll(kept);
             }
-            func.setInstrSeq(instSeq);
         }
+        func.setInstrSeq(instSeq);
+        return changed;
+    }
+
+    /**
+     * Dead instructions, which never end a block, are removed from blocks, and the code is emitted from them.
+     */
+    @Override
+    public Set<AnalysisManager.Analysis> preserved() {
+        return EnumSet.of(AnalysisManager.Analysis.CFG);
     }
 }
@@ -0,0 +1,48 @@
+package decaf.backend.opt;
+
+import decaf.backend.dataflow.AnalysisManager;
+import decaf.lowlevel.tac.TacFunc;
+import decaf.lowlevel.tac.TacInstr;
+
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * An intraprocedural optimization pass, which transforms a TAC function in place.
+ */
+public interface OptPass extends Consumer<TacFunc> {
+    /**
+     * Run the pass on a function.
+     *
+     * @param func     TAC function
+     * @param analyses analyses of the function, which the pass may use and update, see {@link #preserved}
+     * @return true if the function is changed
+     */
+    boolean transform(TacFunc func, AnalysisManager<TacInstr> analyses);
+
+    /**
+     * Run the pass on a function, computing every analysis it needs from scratch.
+     *
+     * @param func TAC function
+     * @return true if the function is changed
+     */
+    default boolean transform(TacFunc func) {
+        return transform(func, new AnalysisManager<>(func::getInstrSeq));
+    }
+
+    /**
+     * Analyses which stay valid when this pass changes a function. A pass which reports no change must leave the
+     * function, and the analyses it got, as they were.
+     *
+     * @return preserved analyses, none by default
+     */
+    default Set<AnalysisManager.Analysis> preserved() {
+        return EnumSet.noneOf(AnalysisManager.Analysis.class);
+    }
+
+    @Override
+    default void accept(TacFunc func) {
+        transform(func);
+    }
+}
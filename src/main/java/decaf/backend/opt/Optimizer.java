@@ -1,57 +1,106 @@
 package decaf.backend.opt;
 
+import decaf.backend.cache.FuncCache;
+import decaf.backend.pgo.ProfileGuide;
 import decaf.driver.Config;
+import decaf.driver.Parallel;
 import decaf.driver.Phase;
+import decaf.lowlevel.log.Log;
 import decaf.lowlevel.tac.Simulator;
+import decaf.lowlevel.tac.TacFunc;
 import decaf.lowlevel.tac.TacProg;
 
 import java.io.FileNotFoundException;
 import java.io.FileWriter;
 import java.io.PrintWriter;
+import java.util.Optional;
 
 /**
  * TAC optimization phase: optimize a TAC program.
  * <p>
- * The original decaf compiler has NO optimization, thus, we implement the transformation as identity function.
+ * All passes are intraprocedural, so different functions are optimized concurrently, each by its own pass instances
+ * (see {@link PassManager}). Which passes run, and how many times, is determined by {@link Config#optLevel}.
+ * <p>
+ * With a function cache, a function whose optimized TAC is cached is not optimized again, but restored from the cache.
+ * <p>
+ * With a profile guide, the program is prepared by it before the passes (see {@link ProfileGuide#prepare}), and the
+ * blocks of every function are laid out by it after the passes.
  */
 public class Optimizer extends Phase<TacProg, TacProg> {
+    /**
+     * Function cache, if any.
+     */
+    protected final Optional<FuncCache> cache;
+
+    /**
+     * Profile guide, if any.
+     */
+    protected final Optional<ProfileGuide> guide;
+
     public Optimizer(Config config) {
+        this(Optional.empty(), config);
+    }
+
+    public Optimizer(Optional<FuncCache> cache, Config config) {
+        this(cache, Optional.empty(), config);
+    }
+
+    public Optimizer(Optional<FuncCache> cache, Optional<ProfileGuide> guide, Config config) {
         super("optimizer", config);
+        this.cache = cache;
+        this.guide = guide;
     }
 
     @Override
     public TacProg transform(TacProg input) {
-        var copyProp = new CopyPropOpt();
-        var constProp = new ConstPropOpt();
-        var commonExpr = new CommonExprOpt();
-        var liveness = new LivenessOpt();
-        var peepHole = new PeepHoleOpt();
-        for (int round = 0; round < 3; ++round) {
-            commonExpr.accept(input);
-            constProp.accept(input);
-            copyProp.accept(input);
-            liveness.accept(input);
-            peepHole.accept(input);
-        }
+        var passManager = PassManager.ofLevel(config.optLevel, config.optBudget, config.stats);
+        guide.ifPresent(g -> g.prepare(input));
+        Parallel.map(input.funcs, func -> optimize(func, input, passManager), config.parallelism);
         return input;
     }
 
+    private int optimize(TacFunc func, TacProg prog, PassManager passManager) {
+        if (cache.isEmpty()) {
+            var rounds = passManager.run(func);
+            guide.ifPresent(g -> g.layout(func));
+            return rounds;
+        }
+
+        var ticket = cache.get().checkIn(func);
+        if (ticket.restore(func, prog)) {
+            Log.info("optimizer: reuse %s from cache", func.entry.prettyString());
+            return 0;
+        }
+
+        var rounds = passManager.run(func);
+        if (!config.target.equals(Config.Target.PA5)) { // otherwise, stored with the assembly code
+            ticket.store(func, Optional.empty());
+        }
+        return rounds;
+    }
+
     @Override
     public void onSucceed(TacProg program) {
         if (config.target.equals(Config.Target.PA4)) {
             // First dump the tac program to file,
             var path = config.dstPath.resolve(config.getSourceBaseName() + ".tac");
-            try {
-                var printer = new PrintWriter(path.toFile());
-                program.printTo(printer);
-                printer.close();
-            } catch (FileNotFoundException e) {
-                e.printStackTrace();
+            if (!config.isSource(path)) { // the input may be TAC
+                try {
+                    var printer = new PrintWriter(path.toFile());
+                    program.printTo(printer);
+                    printer.close();
+                } catch (FileNotFoundException e) {
+                    e.printStackTrace();
+                }
             }
 
             // and then execute it using our simulator.
-            var simulator = new Simulator(System.in, config.output);
-            int lines = simulator.execute(program);
+            var simulator = new Simulator(config.env.stdin, config.output, config.simHeapLimit);
+            int lines = simulator.execute(program, config.profile);
+            simulator.getProfile().ifPresent(profile -> profile.save(config.dstPath, config.getSourceBaseName()));
+            if (config.gcStats) {
+                config.env.stderr.println(simulator.getGcStats());
+            }
             path = config.dstPath.resolve(config.getSourceBaseName() + ".info");
             try (var printer = new PrintWriter(new FileWriter(path.toFile(), true))) {
                 printer.format("Lines executed after optimization: %d\n", lines);
@@ -0,0 +1,128 @@
+package decaf.backend.opt;
+
+import decaf.backend.dataflow.AnalysisManager;
+import decaf.backend.dataflow.Dataflow;
+import decaf.driver.Stats;
+import decaf.lowlevel.log.Log;
+import decaf.lowlevel.tac.TacFunc;
+import decaf.lowlevel.tac.TacInstr;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * Pass manager: run a pipeline of passes over a function, round after round, until it reaches a fixpoint.
+ * <p>
+ * A pass that reported no change is skipped until some other pass changes the function again, since it would not
+ * find anything new. The function reaches a fixpoint once a whole round changes nothing. To bound the compile time
+ * (and to stop passes which might undo each other), at most {@code budget} rounds are run.
+ * <p>
+ * Analyses, like the control flow graph, are shared by the passes on a function through an {@link AnalysisManager}:
+ * after a pass changes the function, only those it declares {@link OptPass#preserved} are kept.
+ * <p>
+ * The predefined pipelines are given by {@link #ofLevel}.
+ */
+public final class PassManager {
+    /**
+     * Passes of the pipeline, in order.
+     */
+    private final List<Supplier<OptPass>> pipeline;
+
+    /**
+     * Max. number of rounds per function.
+     */
+    private final int budget;
+
+    /**
+     * Every run of a pass is measured here.
+     */
+    private final Stats stats;
+
+    /**
+     * Create a pass manager.
+     *
+     * @param pipeline passes of the pipeline, in order; instantiated once per function, thus passes of different
+     *                 functions never share state
+     * @param budget   max. number of rounds per function
+     * @param stats    compilation statistics
+     */
+    public PassManager(List<Supplier<OptPass>> pipeline, int budget, Stats stats) {
+        this.pipeline = pipeline;
+        this.budget = budget;
+        this.stats = stats;
+    }
+
+    /**
+     * The predefined pipeline of an optimization level.
+     * <ul>
+     *     <li>0: no pass at all</li>
+     *     <li>1: every pass once</li>
+     *     <li>2: every pass, until a fixpoint or until {@code budget} rounds are run</li>
+     * </ul>
+     *
+     * @param level  optimization level
+     * @param budget max. number of rounds at level 2
+     * @param stats  compilation statistics
+     * @return pass manager
+     */
+    public static PassManager ofLevel(int level, int budget, Stats stats) {
+        List<Supplier<OptPass>> passes = List.of(CommonExprOpt::new, ConstPropOpt::new, CopyPropOpt::new,
+                LivenessOpt::new, PeepHoleOpt::new);
+        return switch (level) {
+            case 0 -> new PassManager(List.of(), 0, stats);
+            case 1 -> new PassManager(passes, 1, stats);
+            default -> new PassManager(passes, budget, stats);
+        };
+    }
+
+    /**
+     * Optimize a function in place.
+     *
+     * @param func TAC function
+     * @return number of rounds run
+     */
+    public int run(TacFunc func) {
+        var passes = pipeline.stream().map(Supplier::get).toArray(OptPass[]::new);
+        var analyses = new AnalysisManager<TacInstr>(func::getInstrSeq);
+
+        // Every change bumps the version of the function. A pass which changed nothing at version v need not run
+        // again while the function stays at version v.
+        var version = 0;
+        var cleanAt = new int[passes.length];
+        Arrays.fill(cleanAt, -1);
+
+        var rounds = 0;
+        while (rounds < budget) {
+            ++rounds;
+            var progress = false;
+            for (int i = 0; i < passes.length; ++i) {
+                if (cleanAt[i] == version) continue;
+
+                var probe = stats.start(passes[i].getClass().getSimpleName(), func.entry.prettyString()).before(func);
+                var visits = Dataflow.visitsOnThisThread();
+                var changed = passes[i].transform(func, analyses);
+                probe.stop().after(func).after(Stats.Metric.DATAFLOW_VISITS, Dataflow.visitsOnThisThread() - visits);
+                if (changed) {
+                    analyses.retain(passes[i].preserved());
+                    ++version;
+                    progress = true;
+                } else {
+                    cleanAt[i] = version;
+                }
+            }
+
+            if (!progress) {
+                Log.info("optimize %s: fixpoint after %d round(s), %d CFG(s) built", func.entry.prettyString(), rounds,
+                        analyses.getBuildCount());
+                return rounds;
+            }
+        }
+
+        if (budget > 0) {
+            Log.info("optimize %s: budget of %d round(s) used up, %d CFG(s) built", func.entry.prettyString(), budget,
+                    analyses.getBuildCount());
+        }
+        return rounds;
+    }
+}
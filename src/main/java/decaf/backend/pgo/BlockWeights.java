@@ -0,0 +1,55 @@
+package decaf.backend.pgo;
+
+import decaf.backend.dataflow.BasicBlock;
+import decaf.lowlevel.instr.PseudoInstr;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Execution counts of the basic blocks of one function, as observed in a profile.
+ * <p>
+ * Blocks are identified by their labels, which, unlike block indexes, survive optimization and instruction selection.
+ * The entry block has no label, and a block without a known label is assumed to run as often as the block before it.
+ */
+public class BlockWeights {
+    /**
+     * Execution count of the entry block, i.e. number of calls.
+     */
+    public final long entry;
+
+    /**
+     * Execution count of every labeled block, by label name.
+     */
+    private final Map<String, Long> labels = new HashMap<>();
+
+    BlockWeights(long entry) {
+        this.entry = entry;
+    }
+
+    void put(String label, long count) {
+        labels.put(label, count);
+    }
+
+    boolean has(String label) {
+        return labels.containsKey(label);
+    }
+
+    long get(String label) {
+        return labels.getOrDefault(label, 0L);
+    }
+
+    /**
+     * Weight of a block.
+     *
+     * @param bb       basic block
+     * @param previous weight of the block laid out before it
+     * @return weight
+     */
+    public long of(BasicBlock<? extends PseudoInstr> bb, long previous) {
+        if (bb.label.isPresent() && labels.containsKey(bb.label.get().name)) {
+            return labels.get(bb.label.get().name);
+        }
+        return bb.id == 0 ? entry : previous;
+    }
+}
@@ -0,0 +1,577 @@
+package decaf.backend.pgo;
+
+import decaf.backend.dataflow.BasicBlock;
+import decaf.backend.dataflow.CFGBuilder;
+import decaf.lowlevel.instr.Temp;
+import decaf.lowlevel.label.Label;
+import decaf.lowlevel.log.Log;
+import decaf.lowlevel.tac.*;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+/**
+ * Profile-guided optimization: feed a profile written by the simulator (see {@link Profile}) back into the optimizer
+ * and the assembly phase.
+ * <p>
+ * The profile identifies blocks by their index in a function, which is only meaningful for the TAC it was collected
+ * on. So before any pass, {@link #prepare} matches the profile against the unoptimized program once, and turns block
+ * indexes into {@link BlockWeights} keyed by labels, giving a fresh label to every block which has none. A function
+ * whose blocks do not match its profile (its source was edited since) is left alone. Then, on the whole program:
+ * <ol>
+ *     <li>hot indirect calls which almost always call the same function are devirtualized behind a guard on the
+ *     virtual table of the receiver;</li>
+ *     <li>small functions are inlined into hot call sites.</li>
+ * </ol>
+ * After the passes, {@link #layout} moves the blocks which never ran to the end of every function. The weights are
+ * finally used by {@link decaf.backend.reg.GraphColorRegAlloc} to estimate spill costs.
+ */
+public class ProfileGuide {
+    /**
+     * A count is hot if it is at least {@code 1 / HOT_RATIO} of the count of the hottest block in the program.
+     */
+    static final long HOT_RATIO = 1000;
+
+    /**
+     * An indirect call site is monomorphic if at least {@code MONO_PERCENT}% of its calls go to the same function.
+     */
+    static final long MONO_PERCENT = 90;
+
+    /**
+     * Max. number of instructions of an inlined function.
+     */
+    static final int INLINE_SIZE = 40;
+
+    /**
+     * A function may grow by its own size or this many instructions, whichever is larger, by inlining.
+     */
+    static final int INLINE_GROWTH = 200;
+
+    private final Profile profile;
+
+    /**
+     * Weights of every function which matches the profile, by entry label name.
+     */
+    private final Map<String, BlockWeights> weights = new HashMap<>();
+
+    /**
+     * Number of the next fresh label, shared by all functions.
+     */
+    private final AtomicInteger nextLabel = new AtomicInteger();
+
+    private final long hot;
+
+    public ProfileGuide(Profile profile) {
+        this.profile = profile;
+
+        var max = 0L;
+        for (var func : profile.funcs.values()) {
+            for (var count : func.blocks) {
+                max = Math.max(max, count);
+            }
+        }
+        this.hot = Math.max(1, max / HOT_RATIO);
+    }
+
+    /**
+     * Read a profile.
+     *
+     * @param path profile file
+     * @return guide, or nothing if the profile cannot be read
+     */
+    public static Optional<ProfileGuide> load(Path path) {
+        try {
+            return Optional.of(new ProfileGuide(Profile.read(path)));
+        } catch (IOException e) {
+            Log.warn("pgo: ignore profile: %s", e.getMessage());
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Block weights of a function, if it matches the profile.
+     *
+     * @param func function
+     * @return weights
+     */
+    public Optional<BlockWeights> weights(TacFunc func) {
+        return Optional.ofNullable(weights.get(func.entry.name));
+    }
+
+    /**
+     * Match the profile against a program, and then devirtualize and inline hot calls. Must run before any pass, and
+     * on the whole program at once, since a call site is inlined with the body of another function.
+     *
+     * @param prog program
+     */
+    public void prepare(TacProg prog) {
+        var labelPattern = Pattern.compile("_L(\\d+)");
+        var max = 0;
+        for (var func : prog.funcs) {
+            for (var instr : func.getInstrSeq()) {
+                if (instr.isLabel() && !instr.label.isFunc()) {
+                    var matcher = labelPattern.matcher(instr.label.name);
+                    if (matcher.matches()) {
+                        max = Math.max(max, Integer.parseInt(matcher.group(1)));
+                    }
+                }
+            }
+        }
+        nextLabel.set(max + 1);
+
+        var sites = new HashMap<String, Profile.Site>();
+        for (var site : profile.sites) {
+            sites.put(site.func + "/" + site.block + "/" + site.ordinal, site);
+        }
+
+        var funcs = new HashMap<String, TacFunc>();
+        for (var func : prog.funcs) {
+            funcs.put(func.entry.name, func);
+        }
+
+        // Execution count of every direct call to a function, and the profile of every indirect call
+        var calls = new IdentityHashMap<TacInstr, Long>();
+        var indirectCalls = new IdentityHashMap<TacInstr, Profile.Site>();
+        for (var func : prog.funcs) {
+            match(func, sites, calls, indirectCalls);
+        }
+
+        var devirtualized = 0;
+        for (var func : prog.funcs) {
+            if (weights.containsKey(func.entry.name)) {
+                devirtualized += devirtualize(func, prog, funcs, calls, indirectCalls);
+            }
+        }
+
+        var bodies = new HashMap<String, List<TacInstr>>();
+        for (var func : prog.funcs) {
+            bodies.put(func.entry.name, new ArrayList<>(func.getInstrSeq()));
+        }
+        var inlined = 0;
+        for (var func : prog.funcs) {
+            if (weights.containsKey(func.entry.name)) {
+                inlined += inline(func, funcs, bodies, calls);
+            }
+        }
+
+        Log.info("pgo: %d functions match the profile, %d call sites devirtualized, %d inlined", weights.size(),
+                devirtualized, inlined);
+    }
+
+    /**
+     * Number blocks like {@link CFGBuilder} and {@link Profile} do, and label them with their counts.
+     */
+    private void match(TacFunc func, Map<String, Profile.Site> sites, Map<TacInstr, Long> calls,
+                       Map<TacInstr, Profile.Site> indirectCalls) {
+        var info = profile.funcs.get(func.entry.name);
+        if (info == null) {
+            return;
+        }
+
+        var counts = info.blocks;
+        var weights = new BlockWeights(info.calls);
+        var seq = new ArrayList<TacInstr>();
+        var funcCalls = new IdentityHashMap<TacInstr, Long>();
+        var funcIndirectCalls = new IdentityHashMap<TacInstr, Profile.Site>();
+        var size = 0; // number of blocks
+        var open = false;
+        var labeled = false;
+        var block = 0;
+        var ordinal = 0;
+        for (var instr : func.getInstrSeq()) {
+            if (instr.isLabel()) {
+                if (!instr.label.isFunc()) {
+                    if (!open) { // an empty block
+                        size++;
+                    }
+                    open = false;
+                    labeled = true;
+                    if (size < counts.length) {
+                        weights.put(instr.label.name, counts[size]);
+                    }
+                }
+                seq.add(instr);
+                continue;
+            }
+
+            if (!open) {
+                block = size++;
+                open = true;
+                ordinal = 0;
+                if (!labeled && block > 0 && block < counts.length) {
+                    var label = freshLabel();
+                    weights.put(label.name, counts[block]);
+                    seq.add(new TacInstr.Mark(label));
+                }
+                labeled = false;
+            }
+            if (block < counts.length) {
+                if (instr instanceof TacInstr.DirectCall && ((TacInstr.DirectCall) instr).entry.isFunc()) {
+                    funcCalls.put(instr, counts[block]);
+                } else if (instr instanceof TacInstr.IndirectCall) {
+                    var site = sites.get(func.entry.name + "/" + block + "/" + ordinal++);
+                    if (site != null) {
+                        funcIndirectCalls.put(instr, site);
+                    }
+                }
+            }
+            seq.add(instr);
+            if (!instr.isSequential()) {
+                open = false;
+            }
+        }
+
+        if (size != counts.length) {
+            Log.warn("pgo: profile of %s is stale (%d blocks, but %d in profile), ignored",
+                    func.entry.prettyString(), size, counts.length);
+            return;
+        }
+        func.setInstrSeq(seq);
+        this.weights.put(func.entry.name, weights);
+        calls.putAll(funcCalls);
+        indirectCalls.putAll(funcIndirectCalls);
+    }
+
+    /**
+     * Guarded devirtualization of monomorphic member calls:
+     * <pre>
+     *     _T1 = *(_T0 + 0)
+     *     _T2 = *(_T1 + 8)
+     *     parm _T0
+     *     _T3 = call _T2
+     * </pre>
+     * where {@code _T2} is almost always {@code A.f}, becomes
+     * <pre>
+     *     _T1 = *(_T0 + 0)
+     *     _T2 = *(_T1 + 8)
+     *     _T4 = VTABLE&lt;A&gt;
+     *     _T5 = (_T1 == _T4)
+     *     if (_T5 == 0) branch _L2
+     * _L1:
+     *     parm _T0
+     *     _T3 = call FUNCTION&lt;A.f&gt;
+     *     branch _L3
+     * _L2:
+     *     parm _T0
+     *     _T3 = call _T2
+     * _L3:
+     * </pre>
+     */
+    private int devirtualize(TacFunc func, TacProg prog, Map<String, TacFunc> funcs, Map<TacInstr, Long> calls,
+                             Map<TacInstr, Profile.Site> indirectCalls) {
+        var weights = this.weights.get(func.entry.name);
+        var seq = func.getInstrSeq();
+        var result = new ArrayList<TacInstr>();
+        var count = 0;
+        for (var i = 0; i < seq.size(); i++) {
+            var instr = seq.get(i);
+            var site = indirectCalls.get(instr);
+            if (site == null || site.calls < hot || site.hits * 100 < site.calls * MONO_PERCENT
+                    || !funcs.containsKey(site.callee)) {
+                result.add(instr);
+                continue;
+            }
+
+            var call = (TacInstr.IndirectCall) instr;
+            var callee = funcs.get(site.callee);
+            var entryLoad = definition(seq, i, call.entry);
+            var vtblLoad = entryLoad.flatMap(load -> definition(seq, seq.indexOf(load), load.base))
+                    .filter(load -> load.offset == 0);
+            var vtbl = prog.vtables.stream().filter(v -> v.className.equals(callee.entry.clazz)).findFirst();
+            var parms = 0;
+            while (parms < i && seq.get(i - parms - 1) instanceof TacInstr.Parm) {
+                parms++;
+            }
+            if (vtblLoad.isEmpty() || vtbl.isEmpty() || parms != callee.numArgs
+                    || !vtbl.get().getItems().contains(callee.entry)
+                    || 8 + 4 * vtbl.get().getItems().indexOf(callee.entry) != entryLoad.get().offset) {
+                result.add(instr);
+                continue;
+            }
+
+            var args = new ArrayList<>(result.subList(result.size() - parms, result.size()));
+            result.subList(result.size() - parms, result.size()).clear();
+            var expected = func.getFreshTemp();
+            var cond = func.getFreshTemp();
+            var fast = freshLabel();
+            var slow = freshLabel();
+            var join = freshLabel();
+            result.add(new TacInstr.LoadVTbl(expected, vtbl.get()));
+            result.add(new TacInstr.Binary(TacInstr.Binary.Op.EQU, cond, vtblLoad.get().dst, expected));
+            result.add(new TacInstr.CondBranch(TacInstr.CondBranch.Op.BEQZ, cond, slow));
+            result.add(new TacInstr.Mark(fast));
+            result.addAll(args);
+            var direct = call.dst.isPresent() ? new TacInstr.DirectCall(call.dst.get(), callee.entry)
+                    : new TacInstr.DirectCall(callee.entry);
+            result.add(direct.setHint(call.hint));
+            result.add(new TacInstr.Branch(join));
+            result.add(new TacInstr.Mark(slow));
+            for (var arg : args) {
+                result.add(new TacInstr.Parm(((TacInstr.Parm) arg).value).setHint(arg.hint));
+            }
+            result.add(call);
+            result.add(new TacInstr.Mark(join));
+
+            weights.put(fast.name, site.hits);
+            weights.put(slow.name, site.calls - site.hits);
+            weights.put(join.name, site.calls);
+            calls.put(direct, site.hits);
+            count++;
+        }
+        func.setInstrSeq(result);
+        return count;
+    }
+
+    /**
+     * The load which defines a temp read by the {@code index}-th instruction, if in the same block.
+     */
+    private static Optional<TacInstr.Memory> definition(List<TacInstr> seq, int index, Temp temp) {
+        for (var i = index - 1; i >= 0; i--) {
+            var instr = seq.get(i);
+            if (instr.isLabel() || !instr.isSequential()) {
+                break;
+            }
+            if (instr.getWritten().contains(temp)) {
+                return instr instanceof TacInstr.Memory && ((TacInstr.Memory) instr).op == TacInstr.Memory.Op.LOAD
+                        ? Optional.of((TacInstr.Memory) instr) : Optional.empty();
+            }
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Inline small functions into hot call sites, with their bodies before any inlining.
+     */
+    private int inline(TacFunc func, Map<String, TacFunc> funcs, Map<String, List<TacInstr>> bodies,
+                       Map<TacInstr, Long> calls) {
+        var weights = this.weights.get(func.entry.name);
+        var seq = func.getInstrSeq();
+        var budget = Math.max(seq.size(), INLINE_GROWTH);
+        var result = new ArrayList<TacInstr>();
+        var count = 0;
+        for (var i = 0; i < seq.size(); i++) {
+            var instr = seq.get(i);
+            var times = calls.get(instr);
+            if (times == null || times < hot) {
+                result.add(instr);
+                continue;
+            }
+
+            var call = (TacInstr.DirectCall) instr;
+            var callee = funcs.get(call.entry.name);
+            if (callee == null || callee == func) {
+                result.add(instr);
+                continue;
+            }
+            var body = bodies.get(callee.entry.name);
+            var size = body.stream().filter(x -> !x.isLabel() && !(x instanceof TacInstr.Memo)).count();
+            var k = callee.numArgs;
+            var parms = 0;
+            while (parms < i && seq.get(i - parms - 1) instanceof TacInstr.Parm) {
+                parms++;
+            }
+            if (size > INLINE_SIZE || size > budget || parms != k) {
+                result.add(instr);
+                continue;
+            }
+            budget -= size;
+
+            var temps = new Temp[callee.getUsedTempCount()];
+            var labels = new HashMap<String, Label>();
+            var ret = freshLabel();
+            var args = result.subList(result.size() - k, result.size());
+            for (var j = 0; j < k; j++) {
+                temps[j] = func.getFreshTemp();
+                args.set(j, new TacInstr.Assign(temps[j], ((TacInstr.Parm) args.get(j)).value));
+            }
+            var calleeWeights = this.weights.get(callee.entry.name);
+            for (var x : body) {
+                if (x.isLabel() && x.label.isFunc() || x instanceof TacInstr.Memo) {
+                    continue;
+                }
+                if (x instanceof TacInstr.Return) {
+                    var value = ((TacInstr.Return) x).value;
+                    if (value.isPresent() && call.dst.isPresent()) {
+                        result.add(new TacInstr.Assign(call.dst.get(), rename(value.get(), temps, func)));
+                    }
+                    result.add(new TacInstr.Branch(ret));
+                    continue;
+                }
+                var copy = copy(x, temps, labels, func);
+                if (copy.isLabel() && calleeWeights != null && calleeWeights.entry > 0
+                        && calleeWeights.has(x.label.name)) {
+                    weights.put(copy.label.name, calleeWeights.get(x.label.name) * times / calleeWeights.entry);
+                }
+                result.add(copy);
+            }
+            result.add(new TacInstr.Mark(ret));
+            weights.put(ret.name, times);
+            count++;
+        }
+        func.setInstrSeq(result);
+        return count;
+    }
+
+    /**
+     * Copy an instruction of an inlined function: its temps and labels are renamed, so as not to clash with those of
+     * the caller.
+     */
+    private TacInstr copy(TacInstr instr, Temp[] temps, Map<String, Label> labels, TacFunc func) {
+        TacInstr copy;
+        switch (instr.type) {
+            case ASSIGN -> {
+                var x = (TacInstr.Assign) instr;
+                copy = new TacInstr.Assign(rename(x.dst, temps, func), rename(x.src, temps, func));
+            }
+            case LOAD_VTBL -> {
+                var x = (TacInstr.LoadVTbl) instr;
+                copy = new TacInstr.LoadVTbl(rename(x.dst, temps, func), x.vtbl);
+            }
+            case LOAD_IMM -> {
+                var x = (TacInstr.LoadImm4) instr;
+                copy = new TacInstr.LoadImm4(rename(x.dst, temps, func), x.value);
+            }
+            case LOAD_STR -> {
+                var x = (TacInstr.LoadStrConst) instr;
+                copy = new TacInstr.LoadStrConst(rename(x.dst, temps, func), x.value);
+            }
+            case UNARY -> {
+                var x = (TacInstr.Unary) instr;
+                copy = new TacInstr.Unary(x.op, rename(x.dst, temps, func), rename(x.operand, temps, func));
+            }
+            case BINARY -> {
+                var x = (TacInstr.Binary) instr;
+                copy = new TacInstr.Binary(x.op, rename(x.dst, temps, func), rename(x.lhs, temps, func),
+                        rename(x.rhs, temps, func));
+            }
+            case BRANCH -> copy = new TacInstr.Branch(relabel(((TacInstr.Branch) instr).target, labels));
+            case COND_BRANCH -> {
+                var x = (TacInstr.CondBranch) instr;
+                copy = new TacInstr.CondBranch(x.op, rename(x.cond, temps, func), relabel(x.target, labels));
+            }
+            case PARM -> copy = new TacInstr.Parm(rename(((TacInstr.Parm) instr).value, temps, func));
+            case INDIRECT_CALL -> {
+                var x = (TacInstr.IndirectCall) instr;
+                var entry = rename(x.entry, temps, func);
+                copy = x.dst.isPresent() ? new TacInstr.IndirectCall(rename(x.dst.get(), temps, func), entry)
+                        : new TacInstr.IndirectCall(entry);
+            }
+            case DIRECT_CALL -> {
+                var x = (TacInstr.DirectCall) instr;
+                copy = x.dst.isPresent() ? new TacInstr.DirectCall(rename(x.dst.get(), temps, func), x.entry)
+                        : new TacInstr.DirectCall(x.entry);
+            }
+            case LOAD, STORE -> {
+                var x = (TacInstr.Memory) instr;
+                copy = new TacInstr.Memory(x.op, rename(x.dst, temps, func), rename(x.base, temps, func), x.offset);
+            }
+            case MARK -> copy = new TacInstr.Mark(relabel(instr.label, labels));
+            default -> throw new IllegalArgumentException("cannot inline " + instr);
+        }
+        return copy.setHint(instr.hint);
+    }
+
+    private static Temp rename(Temp temp, Temp[] temps, TacFunc func) {
+        if (temps[temp.index] == null) {
+            temps[temp.index] = func.getFreshTemp();
+        }
+        return temps[temp.index];
+    }
+
+    private Label relabel(Label label, Map<String, Label> labels) {
+        return labels.computeIfAbsent(label.name, name -> freshLabel());
+    }
+
+    private Label freshLabel() {
+        return new Label("_L" + nextLabel.getAndIncrement());
+    }
+
+    /**
+     * Move the blocks of a function which never ran to its end, but before the last block, which must return. The
+     * order of the others is kept. Falling through to a block which is no longer next is replaced with a branch, or
+     * by inverting the conditional branch before it, and a branch to the block which is now next is removed.
+     *
+     * @param func function, after all passes
+     */
+    public void layout(TacFunc func) {
+        var weights = this.weights.get(func.entry.name);
+        if (weights == null || weights.entry == 0) {
+            return;
+        }
+
+        var cfg = new CFGBuilder<TacInstr>().buildFrom(func.getInstrSeq());
+        var n = cfg.nodes.size();
+        if (n == 0 || cfg.getBlock(n - 1).kind != BasicBlock.Kind.END_BY_RETURN) {
+            return;
+        }
+        var weight = new long[n];
+        var order = new ArrayList<Integer>();
+        var cold = new ArrayList<Integer>();
+        var previous = weights.entry;
+        for (var bb : cfg) {
+            weight[bb.id] = previous = weights.of(bb, previous);
+            if (previous > 0 || bb.id == 0 || bb.id == n - 1) {
+                order.add(bb.id);
+            } else {
+                cold.add(bb.id);
+            }
+        }
+        if (cold.isEmpty()) {
+            return;
+        }
+        order.addAll(order.size() - 1, cold);
+
+        // A block which is no longer fallen through into needs a label
+        var labels = new Label[n];
+        for (var bb : cfg) {
+            labels[bb.id] = bb.label.orElse(null);
+        }
+        for (var pos = 0; pos < n; pos++) {
+            var id = order.get(pos);
+            if (fallsThrough(cfg.getBlock(id), n) && (pos + 1 == n || order.get(pos + 1) != id + 1)
+                    && labels[id + 1] == null) {
+                labels[id + 1] = freshLabel();
+                weights.put(labels[id + 1].name, weight[id + 1]);
+            }
+        }
+
+        var seq = new ArrayList<TacInstr>();
+        seq.add(func.getInstrSeq().get(0));
+        for (var pos = 0; pos < n; pos++) {
+            var bb = cfg.getBlock(order.get(pos));
+            var next = pos + 1 < n ? order.get(pos + 1) : -1;
+            if (labels[bb.id] != null) {
+                seq.add(new TacInstr.Mark(labels[bb.id]));
+            }
+            for (var loc : bb.locs) {
+                seq.add(loc.instr);
+            }
+            if (bb.kind == BasicBlock.Kind.END_BY_JUMP && next != -1 && labels[next] != null
+                    && bb.getLastInstr().label.name.equals(labels[next].name)) { // jump to the next block
+                seq.remove(seq.size() - 1);
+            }
+            if (!fallsThrough(bb, n) || next == bb.id + 1) {
+                continue;
+            }
+
+            var target = labels[bb.id + 1];
+            if (bb.kind == BasicBlock.Kind.END_BY_COND_JUMP && next != -1 && labels[next] != null
+                    && bb.getLastInstr().label.name.equals(labels[next].name)) {
+                var branch = (TacInstr.CondBranch) bb.getLastInstr();
+                var op = branch.op == TacInstr.CondBranch.Op.BEQZ ? TacInstr.CondBranch.Op.BNEZ
+                        : TacInstr.CondBranch.Op.BEQZ;
+                seq.set(seq.size() - 1, new TacInstr.CondBranch(op, branch.cond, target).setHint(branch.hint));
+            } else {
+                seq.add(new TacInstr.Branch(target));
+            }
+        }
+        func.setInstrSeq(seq);
+    }
+
+    private static boolean fallsThrough(BasicBlock<TacInstr> bb, int n) {
+        return (bb.kind == BasicBlock.Kind.CONTINUOUS || bb.kind == BasicBlock.Kind.END_BY_COND_JUMP) && bb.id + 1 < n;
+    }
+}
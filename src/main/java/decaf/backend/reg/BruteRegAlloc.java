@@ -19,19 +19,21 @@ import java.util.logging.Level;
  * Brute force greedy register allocation algorithm.
  * <p>
  * To make our life easier, don't consider any special registers that may be used during call.
+ * <p>
+ * An instance allocates registers for only one subroutine.
  */
 public final class BruteRegAlloc extends RegAlloc {
 
     public BruteRegAlloc(AsmEmitter emitter) {
         super(emitter);
-        for (var reg : emitter.allocatableRegs) {
-            reg.used = false;
-        }
     }
 
     @Override
-    public void accept(Pair<List<PseudoInstr>, SubroutineInfo> input) {
-        var analyzer = new LivenessAnalyzer<>();
+    public String apply(Pair<List<PseudoInstr>, SubroutineInfo> input) {
+        // Seed by the subroutine, so that the same subroutine is always allocated the same way.
+        random = new Random(input.getRight().funcLabel.name.hashCode());
+
+        var analyzer = new LivenessAnalyzer<>(false);
         var builder = new CFGBuilder<>();
         var cfg = builder.buildFrom(input.getLeft());
         analyzer.accept(cfg);
@@ -42,22 +44,36 @@ public final class BruteRegAlloc extends RegAlloc {
             bb.label.ifPresent(subEmitter::emitLabel);
             localAlloc(bb, subEmitter);
         }
-        subEmitter.emitEnd();
+        return subEmitter.emitEnd();
+    }
+
+    /**
+     * Number of values spilled to stack so far.
+     */
+    private int spills;
+
+    @Override
+    public OptionalInt getSpillCount() {
+        return OptionalInt.of(spills);
     }
 
     private Map<Temp, Reg> bindings = new TreeMap<>();
 
-    private void bind(Temp temp, Reg reg) {
-        reg.used = true;
+    /**
+     * Occupied registers, and the temps they are bound to.
+     */
+    private Map<Reg, Temp> occupants = new TreeMap<>();
+
+    private void bind(Temp temp, Reg reg, SubroutineEmitter subEmitter) {
+        subEmitter.markUsed(reg);
 
         bindings.put(temp, reg);
-        reg.occupied = true;
-        reg.temp = temp;
+        occupants.put(reg, temp);
     }
 
     private void unbind(Temp temp) {
         if (bindings.containsKey(temp)) {
-            bindings.get(temp).occupied = false;
+            occupants.remove(bindings.get(temp));
             bindings.remove(temp);
         }
     }
@@ -85,22 +101,22 @@ public final class BruteRegAlloc extends RegAlloc {
      */
     private void localAlloc(BasicBlock<PseudoInstr> bb, SubroutineEmitter subEmitter) {
         bindings.clear();
-        for (var reg : emitter.allocatableRegs) {
-            reg.used = false;
-            reg.occupied = false;
-        }
+        occupants.clear();
 
         var callerNeedSave = new ArrayList<Reg>();
 
-        for (var loc : bb.allSeq()) {
+        var cursor = LiveCursor.atEntry(bb);
+        var seq = bb.allSeq().size();
+        for (var i = 0; i < seq; i++) {
+            var loc = cursor.next();
             // Handle special instructions on caller save/restore.
 
             if (loc.instr instanceof HoleInstr) {
                 if (loc.instr.equals(HoleInstr.CallerSave)) {
                     for (var reg : emitter.callerSaveRegs) {
-                        if (reg.occupied && loc.liveOut.contains(reg.temp)) {
+                        if (occupants.containsKey(reg) && cursor.liveOut().contains(occupants.get(reg))) {
                             callerNeedSave.add(reg);
-                            subEmitter.emitStoreToStack(reg);
+                            subEmitter.emitStoreToStack(reg, occupants.get(reg));
                         }
                     }
                     continue;
@@ -108,7 +124,7 @@ public final class BruteRegAlloc extends RegAlloc {
 
                 if (loc.instr.equals(HoleInstr.CallerRestore)) {
                     for (var reg : callerNeedSave) {
-                        subEmitter.emitLoadFromStack(reg, reg.temp);
+                        subEmitter.emitLoadFromStack(reg, occupants.get(reg));
                     }
                     callerNeedSave.clear();
                     continue;
@@ -117,24 +133,32 @@ public final class BruteRegAlloc extends RegAlloc {
 
             // For normal instructions: allocate registers for every read/written temp. Skip the already specified
             // special registers.
-            allocForLoc(loc, subEmitter);
+            allocForLoc(loc, cursor.liveIn(), subEmitter);
         }
 
         // Before we leave a basic block, we must copy values of all live variables from registers (if exist)
         // to stack, as all these registers will be reset (as unoccupied) when entering another basic block.
         for (var temp : bb.liveOut) {
             if (bindings.containsKey(temp)) {
-                subEmitter.emitStoreToStack(bindings.get(temp));
+                subEmitter.emitStoreToStack(bindings.get(temp), temp);
+                ++spills;
             }
         }
 
         // Handle the last instruction, if it is a branch/return block.
         if (!bb.isEmpty() && !bb.kind.equals(BasicBlock.Kind.CONTINUOUS)) {
-            allocForLoc(bb.locs.get(bb.locs.size() - 1), subEmitter);
+            allocForLoc(cursor.next(), cursor.liveIn(), subEmitter);
         }
     }
 
-    private void allocForLoc(Loc<PseudoInstr> loc, SubroutineEmitter subEmitter) {
+    /**
+     * Allocate registers for the temps of a location.
+     *
+     * @param loc        location
+     * @param live       set of live temps before executing it
+     * @param subEmitter current subroutine emitter
+     */
+    private void allocForLoc(Loc<PseudoInstr> loc, Set<Temp> live, SubroutineEmitter subEmitter) {
         var instr = loc.instr;
         var srcRegs = new Reg[instr.srcs.length];
         var dstRegs = new Reg[instr.dsts.length];
@@ -144,7 +168,7 @@ public final class BruteRegAlloc extends RegAlloc {
             if (temp instanceof Reg) {
                 srcRegs[i] = (Reg) temp;
             } else {
-                srcRegs[i] = allocRegFor(temp, true, loc.liveIn, subEmitter);
+                srcRegs[i] = allocRegFor(temp, true, live, subEmitter);
             }
         }
 
@@ -153,7 +177,7 @@ public final class BruteRegAlloc extends RegAlloc {
             if (temp instanceof Reg) {
                 dstRegs[i] = ((Reg) temp);
             } else {
-                dstRegs[i] = allocRegFor(temp, false, loc.liveIn, subEmitter);
+                dstRegs[i] = allocRegFor(temp, false, live, subEmitter);
             }
         }
 
@@ -177,15 +201,15 @@ public final class BruteRegAlloc extends RegAlloc {
 
         // First attempt: find an unoccupied register, or one whose value is no longer alive at this location.
         for (var reg : emitter.allocatableRegs) {
-            if (!reg.occupied || !live.contains(reg.temp)) {
+            if (!occupants.containsKey(reg) || !live.contains(occupants.get(reg))) {
                 if (isRead) {
                     // Since `reg` is uninitialized, we must load the latest value of `temp`, from stack, to `reg`.
                     subEmitter.emitLoadFromStack(reg, temp);
                 }
-                if (reg.occupied) {
-                    unbind(reg.temp);
+                if (occupants.containsKey(reg)) {
+                    unbind(occupants.get(reg));
                 }
-                bind(temp, reg);
+                bind(temp, reg, subEmitter);
                 return reg;
             }
         }
@@ -194,9 +218,10 @@ public final class BruteRegAlloc extends RegAlloc {
         // To avoid the situation where the first register is consecutively spilled, a reasonable heuristic
         // is to randomize our choice among all of them.
         var reg = emitter.allocatableRegs[random.nextInt(emitter.allocatableRegs.length)];
-        subEmitter.emitStoreToStack(reg);
-        unbind(reg.temp);
-        bind(temp, reg);
+        subEmitter.emitStoreToStack(reg, occupants.get(reg));
+        ++spills;
+        unbind(occupants.get(reg));
+        bind(temp, reg, subEmitter);
         if (isRead) {
             subEmitter.emitLoadFromStack(reg, temp);
         }
@@ -206,5 +231,5 @@ public final class BruteRegAlloc extends RegAlloc {
     /**
      * Random number generator.
      */
-    private Random random = new Random();
+    private Random random;
 }
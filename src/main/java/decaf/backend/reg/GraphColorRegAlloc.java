@@ -4,9 +4,9 @@ import decaf.backend.asm.AsmEmitter;
 import decaf.backend.asm.HoleInstr;
 import decaf.backend.asm.SubroutineInfo;
 import decaf.backend.asm.mips.MipsSubroutineEmitter;
+import decaf.backend.dataflow.AnalysisManager;
 import decaf.backend.dataflow.CFG;
-import decaf.backend.dataflow.CFGBuilder;
-import decaf.backend.dataflow.LivenessAnalyzer;
+import decaf.backend.dataflow.LiveCursor;
 import decaf.backend.dataflow.TempPair;
 import decaf.lowlevel.Mips;
 import decaf.lowlevel.instr.PseudoInstr;
@@ -16,6 +16,16 @@ import org.apache.commons.lang3.tuple.Pair;
 
 import java.util.*;
 
+/**
+ * Graph coloring register allocation algorithm, with coalescing (iterated register coalescing).
+ * <p>
+ * A potential spill is the node of max. degree, or, if the blocks are weighed (see {@link RegAlloc#weights}), the node
+ * of min. spill cost over degree, where the spill cost of a temp is the total weight of its uses and definitions.
+ * Spilling is not implemented (see {@link #rewriteProgram}), so allocation fails once an actual spill is left, and the
+ * costs only change which potential spills are tried first.
+ * <p>
+ * An instance allocates registers for only one subroutine.
+ */
 public class GraphColorRegAlloc extends RegAlloc {
     private Set<Temp> initial;
     private Set<Temp> simplifyWorkList;
@@ -35,6 +45,7 @@ public class GraphColorRegAlloc extends RegAlloc {
     private Set<TempPair> adjSet;
     private Map<Temp, Set<Temp>> adjList;
     private Map<Temp, Integer> degree;
+    private Map<Temp, Long> spillCost;
 
     private Map<Temp, Set<Mips.Move>> moveList;
     private Map<Temp, Temp> alias;
@@ -44,14 +55,11 @@ public class GraphColorRegAlloc extends RegAlloc {
 
     public GraphColorRegAlloc(AsmEmitter emitter) {
         super(emitter);
-        for (var reg : emitter.allocatableRegs) {
-            reg.used = false;
-        }
         K = emitter.allocatableRegs.length;
     }
 
     @Override
-    public void accept(Pair<List<PseudoInstr>, SubroutineInfo> input) {
+    public String apply(Pair<List<PseudoInstr>, SubroutineInfo> input) {
         initial = new HashSet<>();
 
         var instrList = new ArrayList<PseudoInstr>();
@@ -76,6 +84,7 @@ public class GraphColorRegAlloc extends RegAlloc {
             instrList.add(input.getLeft().get(i));
         }
 
+        var analyses = new AnalysisManager<PseudoInstr>(() -> instrList);
         do {
             simplifyWorkList = new HashSet<>();
             freezeWorkList = new HashSet<>();
@@ -97,13 +106,11 @@ public class GraphColorRegAlloc extends RegAlloc {
             adjSet = new HashSet<>();
             adjList = new HashMap<>();
             degree = new HashMap<>();
+            spillCost = new HashMap<>();
 
             coloredTemp = new HashMap<>();
 
-            var analyzer = new LivenessAnalyzer<>();
-            var builder = new CFGBuilder<>();
-            var cfg = builder.buildFrom(instrList);
-            analyzer.accept(cfg);
+            var cfg = analyses.liveness();
 
             for (var instr : instrList) {
                 for (var reg : instr.getRead()) {
@@ -138,6 +145,9 @@ public class GraphColorRegAlloc extends RegAlloc {
                 if (subEmitter instanceof MipsSubroutineEmitter) {
                     ((MipsSubroutineEmitter) subEmitter).setBruteForce(false);
                 }
+                for (var reg : coloredTemp.values()) {
+                    subEmitter.markUsed(reg);
+                }
 
                 for (int i = 0; i < backPatchList.size(); ++i) {
                     backPatchList.get(i).setOffset(subEmitter.getNextLocalOffset() + 4 * (i + Mips.argRegs.length));
@@ -177,10 +187,10 @@ public class GraphColorRegAlloc extends RegAlloc {
                         instr.toNative(dstRegs, srcRegs).ifPresent(subEmitter::emitNative);
                     }
                 }
-                subEmitter.emitEnd();
-                break;
-            } else
+                return subEmitter.emitEnd();
+            } else {
                 rewriteProgram();
+            }
         } while (true);
     }
 
@@ -217,12 +227,23 @@ public class GraphColorRegAlloc extends RegAlloc {
             var idx = Optional.ofNullable(coloredTemp.get(alias));
             idx.ifPresentOrElse(v -> coloredTemp.put(n, v), () -> coloredTemp.put(n, (Reg) alias));
         }
-        for (var entry : coloredTemp.entrySet()) {
-            entry.getValue().used = true;
-        }
     }
 
     private void selectSpill() {
+        if (weights.isPresent()) {
+            Temp best = null;
+            for (var m : spillWorkList) {
+                if (best == null || spillCost.getOrDefault(m, 0L) * degree.get(best)
+                        < spillCost.getOrDefault(best, 0L) * degree.get(m)) {
+                    best = m;
+                }
+            }
+            spillWorkList.remove(best);
+            simplifyWorkList.add(best);
+            freezeMoves(best);
+            return;
+        }
+
         int deg = 0;
         for (var m : spillWorkList) {
             if (degree.get(m) > deg)
@@ -365,11 +386,15 @@ public class GraphColorRegAlloc extends RegAlloc {
     }
 
     private void build(CFG<PseudoInstr> cfg) {
+        var weight = weights.map(w -> w.entry).orElse(0L);
         for (var bb : cfg) {
-            var it = bb.backwardIterator();
-            while (it.hasNext()) {
-                var loc = it.next();
-                var live = new HashSet<>(loc.liveOut);
+            if (weights.isPresent()) {
+                weight = weights.get().of(bb, weight);
+            }
+            var cursor = LiveCursor.atExit(bb);
+            while (cursor.hasPrev()) {
+                var loc = cursor.prev();
+                var live = new HashSet<>(cursor.liveOut());
                 // initial null ptr
                 var def = loc.instr.getWritten();
                 var use = loc.instr.getRead();
@@ -377,6 +402,12 @@ public class GraphColorRegAlloc extends RegAlloc {
                     initializeSet(n);
                 for (var n : use)
                     initializeSet(n);
+                if (weights.isPresent()) {
+                    for (var n : def)
+                        spillCost.merge(n, weight + 1, Long::sum);
+                    for (var n : use)
+                        spillCost.merge(n, weight + 1, Long::sum);
+                }
                 if (loc.instr instanceof Mips.Move) {
                     live.removeIf(use::contains);
                     var tmp = new HashSet<>(def);
@@ -2,16 +2,23 @@ package decaf.backend.reg;
 
 import decaf.backend.asm.AsmEmitter;
 import decaf.backend.asm.SubroutineInfo;
+import decaf.backend.pgo.BlockWeights;
 import decaf.lowlevel.instr.PseudoInstr;
 import org.apache.commons.lang3.tuple.Pair;
 
 import java.util.List;
-import java.util.function.Consumer;
+import java.util.Optional;
+import java.util.OptionalInt;
+import java.util.function.Function;
 
 /**
  * Register allocation.
+ * <p>
+ * Given the instruction sequence and the basic info of a subroutine (see {@link AsmEmitter#selectInstr}), allocate
+ * registers for it and return its assembly code. The state of allocation is kept in the allocator, so create a new
+ * allocator for every subroutine.
  */
-public abstract class RegAlloc implements Consumer<Pair<List<PseudoInstr>, SubroutineInfo>> {
+public abstract class RegAlloc implements Function<Pair<List<PseudoInstr>, SubroutineInfo>, String> {
 
     public RegAlloc(AsmEmitter emitter) {
         this.emitter = emitter;
@@ -21,4 +28,23 @@ public abstract class RegAlloc implements Consumer<Pair<List<PseudoInstr>, Subro
      * Assembly emitter.
      */
     protected AsmEmitter emitter;
+
+    /**
+     * Execution counts of the blocks of the subroutine, if profiled. An allocator may use them to estimate the cost
+     * of spilling a value.
+     */
+    protected Optional<BlockWeights> weights = Optional.empty();
+
+    public void setWeights(BlockWeights weights) {
+        this.weights = Optional.of(weights);
+    }
+
+    /**
+     * Number of values the allocation spilled to stack, because they are not kept in registers. Only for statistics.
+     *
+     * @return number of spills, or nothing if the allocator never spills (it fails instead)
+     */
+    public OptionalInt getSpillCount() {
+        return OptionalInt.empty();
+    }
 }
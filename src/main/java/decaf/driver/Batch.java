@@ -0,0 +1,173 @@
+package decaf.driver;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.ParseException;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+
+/**
+ * Batch compilation: compile many independent Decaf programs concurrently in one JVM.
+ * <p>
+ * Jobs are given either by
+ * <ul>
+ *     <li>a directory: every {@code .decaf} file in it is compiled with the other options of the batch command line,
+ *     or</li>
+ *     <li>a manifest file: every non-empty line not starting with {@code #} is a full command line (split by
+ *     whitespace) of a single compilation, with relative paths resolved against the folder of the manifest.</li>
+ * </ul>
+ * Every job writes its files exactly as a single compilation does. What a job prints to stdout/stderr is buffered,
+ * and then dumped in job order, so the console output is the same as compiling them one by one. Jobs read no stdin.
+ */
+public class Batch {
+    /**
+     * A single compilation.
+     */
+    private static class Job {
+        final Path pwd;
+
+        final String[] args;
+
+        Job(Path pwd, String[] args) {
+            this.pwd = pwd;
+            this.args = args;
+        }
+    }
+
+    private final List<Job> jobs;
+
+    private final int nThreads;
+
+    private Batch(List<Job> jobs, int nThreads) {
+        this.jobs = jobs;
+        this.nThreads = nThreads;
+    }
+
+    /**
+     * Options of the batch command line that are not passed on to the jobs of a directory.
+     */
+    private static final List<String> BATCH_ONLY_OPTIONS = List.of(OptParser.BATCH, OptParser.JOBS,
+            OptParser.LOG_LEVEL, OptParser.LOG_FILE, OptParser.LOG_COLORFUL);
+
+    /**
+     * Build a batch from command line. Print the reason if fails.
+     *
+     * @param parser option parser
+     * @param cli    command line, with option {@code --batch}
+     * @return batch
+     */
+    static Optional<Batch> fromCLI(OptParser parser, CommandLine cli) {
+        var nThreads = parser.getJobs(cli);
+        if (nThreads.isEmpty()) {
+            return Optional.empty();
+        }
+
+        var pwd = Config.Environment.system().pwd;
+        var file = pwd.resolve(cli.getOptionValue(OptParser.BATCH)).toFile();
+        try {
+            Config.setupLog(cli);
+            var jobs = file.isDirectory() ? jobsInDirectory(file.toPath(), pwd, cli) : jobsInManifest(file.toPath());
+            return Optional.of(new Batch(jobs, nThreads.get()));
+        } catch (ParseException e) {
+            System.err.println(e.getMessage());
+            parser.printHelp();
+        } catch (IOException e) {
+            System.err.println("Invalid file: " + e.getMessage());
+        }
+
+        return Optional.empty();
+    }
+
+    private static List<Job> jobsInDirectory(Path dir, Path pwd, CommandLine cli) throws ParseException, IOException {
+        if (!cli.getArgList().isEmpty()) {
+            throw new ParseException("No input files expected when compiling a directory");
+        }
+        if (cli.hasOption(OptParser.OUTPUT)) {
+            throw new ParseException("Option -o is not supported when compiling a directory, use a manifest instead");
+        }
+        if (cli.hasOption(OptParser.STATS)) {
+            throw new ParseException("Option --stats is not supported when compiling a directory, use a manifest "
+                    + "instead");
+        }
+
+        var shared = new ArrayList<String>();
+        for (var option : cli.getOptions()) {
+            if (BATCH_ONLY_OPTIONS.contains(key(option))) {
+                continue;
+            }
+            shared.add(option.getOpt() != null ? "-" + option.getOpt() : "--" + option.getLongOpt());
+            if (option.hasArg()) {
+                shared.add(option.getValue());
+            }
+        }
+
+        try (var files = Files.list(dir)) {
+            return files
+                    .filter(path -> path.getFileName().toString().endsWith(".decaf") && Files.isRegularFile(path))
+                    .sorted()
+                    .map(path -> {
+                        var args = new ArrayList<>(shared);
+                        args.add(path.toString());
+                        return new Job(pwd, args.toArray(new String[0]));
+                    })
+                    .collect(Collectors.toList());
+        }
+    }
+
+    private static List<Job> jobsInManifest(Path manifest) throws IOException {
+        var pwd = manifest.toAbsolutePath().getParent();
+        return Files.readAllLines(manifest).stream()
+                .map(String::strip)
+                .filter(line -> !line.isEmpty() && !line.startsWith("#"))
+                .map(line -> new Job(pwd, line.split("\\s+")))
+                .collect(Collectors.toList());
+    }
+
+    private static String key(Option option) {
+        return option.getOpt() != null ? option.getOpt() : option.getLongOpt();
+    }
+
+    /**
+     * Run all jobs, and dump their console output in job order.
+     *
+     * @return exit code: nonzero if any job exits abnormally
+     */
+    int run() {
+        var pool = Executors.newFixedThreadPool(nThreads);
+        var results = new ArrayList<Future<Integer>>();
+        var outputs = new ArrayList<ByteArrayOutputStream[]>();
+        for (var job : jobs) {
+            var out = new ByteArrayOutputStream();
+            var err = new ByteArrayOutputStream();
+            var env = new Config.Environment(job.pwd, InputStream.nullInputStream(), new PrintStream(out, true),
+                    new PrintStream(err, true));
+            results.add(pool.submit(() -> Launcher.compile(job.args, env, Optional.empty())));
+            outputs.add(new ByteArrayOutputStream[]{out, err});
+        }
+        pool.shutdown();
+
+        var exitCode = 0;
+        for (var i = 0; i < jobs.size(); i++) {
+            try {
+                exitCode = Math.max(exitCode, results.get(i).get());
+            } catch (InterruptedException | ExecutionException e) {
+                e.printStackTrace();
+                exitCode = 1;
+            }
+            System.out.write(outputs.get(i)[0].toByteArray(), 0, outputs.get(i)[0].size());
+            System.out.flush();
+            System.err.write(outputs.get(i)[1].toByteArray(), 0, outputs.get(i)[1].size());
+            System.err.flush();
+        }
+        return exitCode;
+    }
+}
@@ -1,24 +1,73 @@
 package decaf.driver;
 
 import decaf.lowlevel.log.Log;
+import decaf.lowlevel.tac.Simulator;
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.ParseException;
 import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.IOUtils;
 
 import java.io.*;
 import java.nio.file.Path;
+import java.util.Optional;
 import java.util.logging.Level;
 
 /**
  * Compiler configuration.
+ * <p>
+ * A configuration owns the source and output files it opens, so {@link #close} it after the compilation: a compile
+ * server or a batch runs many compilations in one JVM.
  */
-public class Config {
+public class Config implements Closeable {
     public static class NullOutputStream extends OutputStream {
         @Override
         public void write(int b) throws IOException {
         }
     }
 
+    /**
+     * Process environment a compilation sees: working directory and standard streams. The command line compiler uses
+     * the ones of the JVM, while a batch job or a compile request has its own.
+     */
+    public static class Environment {
+        /**
+         * Path of present working directory. Relative paths given in the command line are resolved against it.
+         */
+        public final Path pwd;
+
+        /**
+         * Stdin, read by the simulator.
+         */
+        public final InputStream stdin;
+
+        /**
+         * Stdout.
+         */
+        public final PrintStream stdout;
+
+        /**
+         * Stderr, where errors are reported.
+         */
+        public final PrintStream stderr;
+
+        public Environment(Path pwd, InputStream stdin, PrintStream stdout, PrintStream stderr) {
+            this.pwd = pwd;
+            this.stdin = stdin;
+            this.stdout = stdout;
+            this.stderr = stderr;
+        }
+
+        /**
+         * The environment of this JVM.
+         *
+         * @return environment
+         */
+        public static Environment system() {
+            return new Environment(new File(System.getProperty("user.dir")).toPath(), System.in, System.out,
+                    System.err);
+        }
+    }
+
     /**
      * Target/task. Options: PA1, PA1_LL, PA2, PA3, PA4, PA5.
      */
@@ -29,7 +78,12 @@ public class Config {
     /**
      * Input Decaf source.
      */
-    public final FileInputStream source;
+    public final InputStream source;
+
+    /**
+     * Was {@link #source} opened by this configuration, rather than passed in?
+     */
+    private final boolean ownsSource;
 
     /**
      * Input Decaf source file path.
@@ -55,61 +109,208 @@ public class Config {
 
     public final boolean bruteForceRegAlloc;
 
-    private Config(FileInputStream source, Path sourcePath, OutputStream output, Path dstPath, Target target, boolean bruteForceRegAlloc) {
+    /**
+     * Error cap: abort the compilation once so many errors are issued. {@link Diagnostics#UNLIMITED} by default.
+     */
+    public final int maxErrors;
+
+    /**
+     * Max. number of threads working on different functions of a program at the same time. 1 by default.
+     */
+    public final int parallelism;
+
+    /**
+     * Optimization level (PA4, PA5): 0 runs no pass, 1 runs every pass once, and 2 (default) iterates passes until
+     * every function reaches a fixpoint, within {@link #optBudget}.
+     */
+    public final int optLevel;
+
+    /**
+     * Max. number of rounds of passes over one function, at optimization level 2.
+     */
+    public final int optBudget;
+
+    /**
+     * Compilation statistics, {@link Stats#DISABLED} unless asked for.
+     */
+    public final Stats stats;
+
+    /**
+     * Directory of the function cache (PA4, PA5), if asked for. See {@link decaf.backend.cache.FuncCache}.
+     */
+    public final Optional<Path> cacheDir;
+
+    /**
+     * Also write the TAC program in binary (PA3, PA4, PA5). See {@link decaf.lowlevel.tac.TacBinary}.
+     */
+    public final boolean emitTacBinary;
+
+    /**
+     * Max. heap size of the TAC simulator in bytes, {@link Simulator#UNLIMITED} by default.
+     */
+    public final int simHeapLimit;
+
+    /**
+     * Print garbage collection statistics of the TAC simulator.
+     */
+    public final boolean gcStats;
+
+    /**
+     * Profile the TAC simulator. See {@link decaf.lowlevel.tac.Profile}.
+     */
+    public final boolean profile;
+
+    /**
+     * Profile to guide the optimizer and the assembly phase (PA4, PA5), if asked for. See
+     * {@link decaf.backend.pgo.ProfileGuide}.
+     */
+    public final Optional<Path> profileUse;
+
+    /**
+     * Environment.
+     */
+    public final Environment env;
+
+    private Config(InputStream source, boolean ownsSource, Path sourcePath, OutputStream output, Path dstPath, Target target,
+                   boolean bruteForceRegAlloc, int maxErrors, int parallelism, int optLevel, int optBudget,
+                   Stats stats, Optional<Path> cacheDir, boolean emitTacBinary, int simHeapLimit, boolean gcStats,
+                   boolean profile, Optional<Path> profileUse, Environment env) {
         this.source = source;
+        this.ownsSource = ownsSource;
         this.sourcePath = sourcePath;
         this.output = output;
         this.dstPath = dstPath;
         this.target = target;
         this.bruteForceRegAlloc = bruteForceRegAlloc;
+        this.maxErrors = maxErrors;
+        this.parallelism = parallelism;
+        this.optLevel = optLevel;
+        this.optBudget = optBudget;
+        this.stats = stats;
+        this.cacheDir = cacheDir;
+        this.emitTacBinary = emitTacBinary;
+        this.simHeapLimit = simHeapLimit;
+        this.gcStats = gcStats;
+        this.profile = profile;
+        this.profileUse = profileUse;
+        this.env = env;
     }
 
     /**
-     * Path of present working directory.
-     */
-    public static Path PWD = new File(System.getProperty("user.dir")).toPath();
-
-    /**
-     * Stdout.
+     * Parse configuration from command line, in the environment of this JVM.
+     *
+     * @param cli command line
+     * @return configuration
+     * @throws ParseException        if parse or validation fails
+     * @throws FileNotFoundException if cannot locate a file
      */
-    public static OutputStream STDOUT = System.out;
+    public static Config fromCLI(CommandLine cli) throws ParseException, FileNotFoundException {
+        return fromCLI(cli, Environment.system(), Optional.empty());
+    }
 
     /**
-     * Parse configuration from command line.
+     * Parse configuration from command line, but take the Decaf source from {@code inlineSource} if given. In that
+     * case, the input file is only used to name the outputs, and it need not exist.
+     * <p>
+     * Relative paths are resolved against the working directory of {@code env}.
      *
-     * @param cli command line
+     * @param cli          command line
+     * @param env          environment
+     * @param inlineSource Decaf source passed in directly, if any
      * @return configuration
      * @throws ParseException        if parse or validation fails
      * @throws FileNotFoundException if cannot locate a file
      */
-    public static Config fromCLI(CommandLine cli) throws ParseException, FileNotFoundException {
+    public static Config fromCLI(CommandLine cli, Environment env, Optional<InputStream> inlineSource)
+            throws ParseException, FileNotFoundException {
         if (cli.getArgList().isEmpty()) {
             throw new ParseException("No input files");
         }
 
-        var sourceFile = new File(cli.getArgList().get(0));
-        var source = new FileInputStream(sourceFile);
+        var sourceFile = env.pwd.resolve(cli.getArgList().get(0)).toFile();
         var sourcePath = sourceFile.toPath();
+        var ownsSource = inlineSource.isEmpty();
+        InputStream source = ownsSource ? new FileInputStream(sourceFile) : inlineSource.get();
+        OutputStream output = env.stdout;
+        try {
+            var target = Target.PA5;
+            if (cli.hasOption(OptParser.TARGET)) {
+                target = parseTarget(cli.getOptionValue(OptParser.TARGET));
+            }
 
-        var target = Target.PA5;
-        if (cli.hasOption(OptParser.TARGET)) {
-            target = parseTarget(cli.getOptionValue(OptParser.TARGET));
-        }
+            if (cli.hasOption(OptParser.OUTPUT)) {
+                output = new FileOutputStream(env.pwd.resolve(cli.getOptionValue(OptParser.OUTPUT)).toFile());
+            }
 
-        var output = STDOUT;
-        if (cli.hasOption(OptParser.OUTPUT)) {
-            output = new FileOutputStream(cli.getOptionValue(OptParser.OUTPUT));
-        }
+            var dstPath = env.pwd;
+            if (cli.hasOption(OptParser.DST)) {
+                var dir = env.pwd.resolve(cli.getOptionValue(OptParser.DST)).toFile();
+                if (!dir.isDirectory()) {
+                    throw new FileNotFoundException(dir.getPath() + " (Not an existed directory)");
+                }
+                dstPath = dir.toPath();
+            }
+
+            setupLog(cli);
 
-        var dstPath = PWD;
-        if (cli.hasOption(OptParser.DST)) {
-            var dir = new File(cli.getOptionValue(OptParser.DST));
-            if (!dir.isDirectory()) {
-                throw new FileNotFoundException(dir.getPath() + " (Not an existed directory)");
+            boolean bruteForce = cli.hasOption(OptParser.BRUTE_FORCE);
+
+            var maxErrors = parseInt(cli, OptParser.MAX_ERRORS, Diagnostics.UNLIMITED, 0, "max errors");
+            var parallelism = parseInt(cli, OptParser.PARALLEL, 1, 1, "parallelism");
+            var optLevel = parseInt(cli, OptParser.OPT_LEVEL, 2, 0, 2, "optimization level");
+            var optBudget = parseInt(cli, OptParser.OPT_BUDGET, 16, 1, "optimization budget");
+            var stats = cli.hasOption(OptParser.STATS)
+                    ? new Stats(env.pwd.resolve(cli.getOptionValue(OptParser.STATS)))
+                    : Stats.DISABLED;
+            var cacheDir = Optional.ofNullable(cli.getOptionValue(OptParser.CACHE)).map(env.pwd::resolve);
+            var emitTacBinary = cli.hasOption(OptParser.TACB);
+            var simHeapLimit = parseInt(cli, OptParser.SIM_HEAP, Simulator.UNLIMITED, 0, Integer.MAX_VALUE / 1024,
+                    "simulator heap size") * 1024;
+            var gcStats = cli.hasOption(OptParser.GC_STATS);
+            var profile = cli.hasOption(OptParser.PROFILE);
+            var profileUse = Optional.ofNullable(cli.getOptionValue(OptParser.PROFILE_USE)).map(env.pwd::resolve);
+            if (profileUse.isPresent() && !profileUse.get().toFile().isFile()) {
+                throw new FileNotFoundException(profileUse.get() + " (No such profile)");
             }
-            dstPath = dir.toPath();
+
+            return new Config(source, ownsSource, sourcePath, output, dstPath, target, bruteForce, maxErrors,
+                    parallelism, optLevel, optBudget, stats, cacheDir, emitTacBinary, simHeapLimit, gcStats, profile,
+                    profileUse, env);
+        } catch (ParseException | FileNotFoundException | RuntimeException e) {
+            close(source, ownsSource, output, env);
+            throw e;
         }
+    }
+
+    /**
+     * Close the source if owned, and the output unless it is stdout.
+     */
+    private static void close(InputStream source, boolean ownsSource, OutputStream output, Environment env) {
+        if (ownsSource) {
+            IOUtils.closeQuietly(source);
+        }
+        if (output != env.stdout) {
+            IOUtils.closeQuietly(output);
+        }
+    }
+
+    /**
+     * Close the source and output files opened for this compilation. Neither the standard streams of the
+     * environment, nor a source passed in directly, which belongs to the caller, are closed.
+     */
+    @Override
+    public void close() {
+        close(source, ownsSource, output, env);
+    }
 
+    /**
+     * Setup the (process-wide) logger from command line, if asked.
+     *
+     * @param cli command line
+     * @throws ParseException        if the log level is invalid
+     * @throws FileNotFoundException if cannot open the log file
+     */
+    static void setupLog(CommandLine cli) throws ParseException, FileNotFoundException {
         if (cli.hasOption(OptParser.LOG_LEVEL)) {
             var showColor = cli.hasOption(OptParser.LOG_COLORFUL);
             var l = cli.getOptionValue(OptParser.LOG_LEVEL);
@@ -126,10 +327,6 @@ public class Config {
                 throw new FileNotFoundException(e.toString());
             }
         }
-
-        boolean bruteForce = cli.hasOption(OptParser.BRUTE_FORCE);
-
-        return new Config(source, sourcePath, output, dstPath, target, bruteForce);
     }
 
     /**
@@ -143,6 +340,62 @@ public class Config {
         return FilenameUtils.getBaseName(sourcePath.getFileName().toString());
     }
 
+    /**
+     * Is {@code path} the input file? An output must not overwrite it.
+     *
+     * @param path path
+     * @return true if so
+     */
+    public boolean isSource(Path path) {
+        return path.toAbsolutePath().normalize().equals(sourcePath.toAbsolutePath().normalize());
+    }
+
+    /**
+     * Parse an integer option.
+     *
+     * @param cli          command line
+     * @param option       option name
+     * @param defaultValue value if the option is absent
+     * @param min          min. valid value
+     * @param what         what the option means, for error message
+     * @return value
+     * @throws ParseException if the value is invalid
+     */
+    private static int parseInt(CommandLine cli, String option, int defaultValue, int min, String what)
+            throws ParseException {
+        return parseInt(cli, option, defaultValue, min, Integer.MAX_VALUE, what);
+    }
+
+    /**
+     * Parse a bounded integer option.
+     *
+     * @param cli          command line
+     * @param option       option name
+     * @param defaultValue value if the option is absent
+     * @param min          min. valid value
+     * @param max          max. valid value
+     * @param what         what the option means, for error message
+     * @return value
+     * @throws ParseException if the value is invalid
+     */
+    private static int parseInt(CommandLine cli, String option, int defaultValue, int min, int max, String what)
+            throws ParseException {
+        if (!cli.hasOption(option)) {
+            return defaultValue;
+        }
+
+        var value = cli.getOptionValue(option);
+        try {
+            var n = Integer.parseInt(value);
+            if (n >= min && n <= max) {
+                return n;
+            }
+        } catch (NumberFormatException e) {
+            // fall through
+        }
+        throw new ParseException(String.format("Invalid %s: '%s'", what, value));
+    }
+
     /**
      * Parse target from string.
      *
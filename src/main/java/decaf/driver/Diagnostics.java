@@ -0,0 +1,121 @@
+package decaf.driver;
+
+import decaf.driver.error.DecafError;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Diagnostics of a compilation: collects the errors issued by all its phases.
+ * <p>
+ * Every compilation owns one, which is passed through its task pipeline (see {@link Task#apply(Object, Diagnostics)}),
+ * so that compilations in the same JVM never see each other's errors. It is thread-safe, and can be reset for reuse.
+ * <p>
+ * An error cap may be set: once that many errors are issued, the compilation is aborted by throwing
+ * {@link TooManyErrors} from {@link #issue}, which is then caught by {@link Phase#apply}.
+ */
+public final class Diagnostics {
+    /**
+     * Thrown to abort a compilation when the error cap is reached.
+     */
+    public static final class TooManyErrors extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        TooManyErrors(int maxErrors) {
+            super(String.format("Too many errors (%d), compilation aborted", maxErrors));
+        }
+    }
+
+    /**
+     * No error cap.
+     */
+    public static final int UNLIMITED = 0;
+
+    private final int maxErrors;
+
+    private final List<DecafError> errors = new ArrayList<>();
+
+    /**
+     * Create diagnostics without error cap.
+     */
+    public Diagnostics() {
+        this(UNLIMITED);
+    }
+
+    /**
+     * Create diagnostics.
+     *
+     * @param maxErrors error cap, or {@link #UNLIMITED}
+     */
+    public Diagnostics(int maxErrors) {
+        this.maxErrors = maxErrors;
+    }
+
+    /**
+     * Add an error.
+     *
+     * @param error Decaf error
+     * @throws TooManyErrors if the error cap is reached
+     */
+    public synchronized void issue(DecafError error) {
+        if (isFull()) {
+            throw new TooManyErrors(maxErrors);
+        }
+
+        errors.add(error);
+        if (isFull()) {
+            throw new TooManyErrors(maxErrors);
+        }
+    }
+
+    private boolean isFull() {
+        return maxErrors != UNLIMITED && errors.size() >= maxErrors;
+    }
+
+    /**
+     * Has any error been added?
+     *
+     * @return true/false
+     */
+    public synchronized boolean hasError() {
+        return !errors.isEmpty();
+    }
+
+    /**
+     * The most recently added error, if any.
+     *
+     * @return error
+     */
+    public synchronized Optional<DecafError> getLast() {
+        return errors.isEmpty() ? Optional.empty() : Optional.of(errors.get(errors.size() - 1));
+    }
+
+    /**
+     * A snapshot of the errors added so far, in order of issuing.
+     *
+     * @return errors
+     */
+    public synchronized List<DecafError> getErrors() {
+        return new ArrayList<>(errors);
+    }
+
+    /**
+     * Remove all errors, so that another compilation can use it.
+     */
+    public synchronized void reset() {
+        errors.clear();
+    }
+
+    /**
+     * Print out error messages, sorted by their error positions.
+     *
+     * @param to where to print
+     */
+    public synchronized void printTo(PrintStream to) {
+        errors.sort(Comparator.comparing(o -> o.pos));
+        errors.forEach(to::println);
+    }
+}
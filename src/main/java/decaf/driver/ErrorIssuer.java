@@ -3,22 +3,26 @@ package decaf.driver;
 import decaf.driver.error.DecafError;
 
 import java.io.PrintStream;
-import java.util.ArrayList;
-import java.util.Comparator;
 
 /**
  * Decaf error issuer. The error must be a subclass of {@link DecafError}.
  */
 public interface ErrorIssuer {
-    ArrayList<DecafError> errors = new ArrayList<>();
+    /**
+     * Diagnostics of the current compilation, where errors go.
+     *
+     * @return diagnostics
+     */
+    Diagnostics getDiagnostics();
 
     /**
      * Add an error.
      *
      * @param error Decaf error
+     * @throws Diagnostics.TooManyErrors if the error cap is reached
      */
     default void issue(DecafError error) {
-        errors.add(error);
+        getDiagnostics().issue(error);
     }
 
     /**
@@ -27,7 +31,7 @@ public interface ErrorIssuer {
      * @return true/false
      */
     default boolean hasError() {
-        return !errors.isEmpty();
+        return getDiagnostics().hasError();
     }
 
     /**
@@ -36,7 +40,6 @@ public interface ErrorIssuer {
      * @param to where to print
      */
     default void printErrors(PrintStream to) {
-        errors.sort(Comparator.comparing(o -> o.pos));
-        errors.forEach(to::println);
+        getDiagnostics().printTo(to);
     }
 }
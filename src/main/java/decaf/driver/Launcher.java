@@ -1,5 +1,14 @@
 package decaf.driver;
 
+import decaf.driver.server.CompileClient;
+import decaf.driver.server.CompileServer;
+
+import org.apache.commons.cli.ParseException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Optional;
+
 /**
  * Entry of the compiler.
  */
@@ -7,29 +16,98 @@ public class Launcher {
 
     /**
      * Launch the compiler with command line args.
+     * <p>
+     * Besides compiling, the compiler may instead run as a compile server ({@code --server}), forward the
+     * compilation to a running server ({@code --connect}), or compile many programs at once ({@code --batch}).
      *
      * @param args command line args and options
      */
     public static void withArgs(String[] args) {
         var parser = new OptParser();
-        parser.parse(args).ifPresent(Launcher::withConfig);
+        parser.parseCommandLine(args).ifPresent(cli -> {
+            if (cli.hasOption(OptParser.SERVER)) {
+                parser.getPort(cli, OptParser.SERVER).ifPresent(port -> {
+                    try {
+                        Config.setupLog(cli);
+                        new CompileServer(port).serve();
+                    } catch (ParseException e) {
+                        System.err.println(e.getMessage());
+                        System.exit(1);
+                    } catch (IOException e) {
+                        System.err.println("Compile server failed: " + e.getMessage());
+                        System.exit(1);
+                    }
+                });
+            } else if (cli.hasOption(OptParser.CONNECT)) {
+                parser.getPort(cli, OptParser.CONNECT).ifPresent(port -> System.exit(CompileClient.forward(port, args)));
+            } else if (cli.hasOption(OptParser.BATCH)) {
+                Batch.fromCLI(parser, cli).ifPresent(batch -> System.exit(batch.run()));
+            } else {
+                parser.toConfig(cli, Config.Environment.system(), Optional.empty()).ifPresent(Launcher::withConfig);
+            }
+        });
+    }
+
+    /**
+     * Compile as if launched with command line args in the given environment, but never start a compile server or
+     * a batch. This is what a compile request or a batch job runs.
+     * <p>
+     * The log is process-wide, so it is set up once by the server or the batch, and logging options are refused here:
+     * concurrent compilations would overwrite each other's settings.
+     * <p>
+     * Like the command line compiler, an uncaught exception is reported to stderr instead of being thrown.
+     *
+     * @param args         command line args and options
+     * @param env          environment
+     * @param inlineSource Decaf source passed in directly, if any
+     * @return exit code, as the command line compiler would have
+     */
+    public static int compile(String[] args, Config.Environment env, Optional<InputStream> inlineSource) {
+        try {
+            var parser = new OptParser();
+            parser.parseCommandLine(args, env).ifPresent(cli -> {
+                if (cli.hasOption(OptParser.SERVER) || cli.hasOption(OptParser.BATCH)) {
+                    env.stderr.println("Cannot start a compile server or a batch from a single compilation");
+                    return;
+                }
+                if (cli.hasOption(OptParser.LOG_LEVEL) || cli.hasOption(OptParser.LOG_FILE)
+                        || cli.hasOption(OptParser.LOG_COLORFUL)) {
+                    env.stderr.println("Logging options are given to the compile server or the batch, not to a single "
+                            + "compilation");
+                    return;
+                }
+                parser.toConfig(cli, env, inlineSource).ifPresent(Launcher::withConfig);
+            });
+            return 0;
+        } catch (Throwable e) {
+            env.stderr.print("Exception in thread \"main\" ");
+            e.printStackTrace(env.stderr);
+            return 1;
+        }
     }
 
     /**
-     * Launch the compiler with configuration.
+     * Launch the compiler with configuration, and close it afterwards.
      *
      * @param config compiler configuration
      */
     public static void withConfig(Config config) {
-        var tasks = new TaskFactory(config);
-        var task = switch (config.target) {
-            case PA1 -> tasks.parse();
-            case PA1_LL -> tasks.parseLL();
-            case PA2 -> tasks.typeCheck();
-            case PA3 -> tasks.tacGen();
-            case PA4 -> tasks.optimize();
-            case PA5 -> tasks.mips();
-        };
-        task.apply(config.source);
+        try (config) {
+            var tasks = new TaskFactory(config);
+            var task = switch (config.target) {
+                case PA1 -> tasks.parse();
+                case PA1_LL -> tasks.parseLL();
+                case PA2 -> tasks.typeCheck();
+                case PA3 -> tasks.tac();
+                case PA4 -> tasks.optimize();
+                case PA5 -> tasks.mips();
+            };
+            task.apply(config.source, new Diagnostics(config.maxErrors));
+            try {
+                config.stats.dump();
+            } catch (IOException e) {
+                config.env.stderr.println("Cannot write stats: " + e.getMessage());
+            }
+        }
     }
 }
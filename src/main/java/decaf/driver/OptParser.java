@@ -3,6 +3,9 @@ package decaf.driver;
 import org.apache.commons.cli.*;
 
 import java.io.FileNotFoundException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
 import java.util.Optional;
 
 /**
@@ -78,6 +81,141 @@ public class OptParser {
             .desc("use brute force register allocation, default is graph coloring allocation")
             .build();
 
+    static final String MAX_ERRORS = "max-errors";
+    final Option maxErrors = Option
+            .builder(null)
+            .longOpt(MAX_ERRORS)
+            .hasArg()
+            .argName("n")
+            .desc("abort compilation after n errors, 0 for no limit (default 0)")
+            .build();
+
+    static final String PARALLEL = "p";
+    final Option parallel = Option
+            .builder(PARALLEL)
+            .longOpt("parallel")
+            .hasArg()
+            .argName("n")
+            .desc("number of threads working on different functions of a program (default 1)")
+            .build();
+
+    static final String OPT_LEVEL = "O";
+    final Option optLevel = Option
+            .builder(OPT_LEVEL)
+            .hasArg()
+            .argName("level")
+            .desc("optimization level, available >= PA4: 0 (none), 1 (every pass once), or 2 (default, repeat passes "
+                    + "until nothing changes)")
+            .build();
+
+    static final String OPT_BUDGET = "opt-budget";
+    final Option optBudget = Option
+            .builder(null)
+            .longOpt(OPT_BUDGET)
+            .hasArg()
+            .argName("n")
+            .desc("max. rounds of optimization passes over a function at level 2 (default 16)")
+            .build();
+
+    static final String STATS = "stats";
+    final Option stats = Option
+            .builder(null)
+            .longOpt(STATS)
+            .hasArg()
+            .argName("file")
+            .desc("dump time, allocation and IR size of every phase and pass to a file, as CSV if named *.csv, "
+                    + "otherwise as JSON")
+            .build();
+
+    static final String TACB = "tacb";
+    final Option tacb = Option
+            .builder(null)
+            .longOpt(TACB)
+            .desc("also write the TAC program in binary to <input name>.tacb, available >= PA3; a .tacb file can be "
+                    + "compiled again as input, which skips the frontend")
+            .build();
+
+    static final String CACHE = "cache";
+    final Option cache = Option
+            .builder(null)
+            .longOpt(CACHE)
+            .hasArg()
+            .argName("dir")
+            .desc("reuse the optimized TAC and assembly code of unchanged functions across compilations, "
+                    + "cached in a directory, available >= PA4")
+            .build();
+
+    static final String SIM_HEAP = "sim-heap";
+    final Option simHeap = Option
+            .builder(null)
+            .longOpt(SIM_HEAP)
+            .hasArg()
+            .argName("KiB")
+            .desc("max. heap size of the TAC simulator, available PA3 and PA4 (default 0, unlimited)")
+            .build();
+
+    static final String GC_STATS = "gc-stats";
+    final Option gcStats = Option
+            .builder(null)
+            .longOpt(GC_STATS)
+            .desc("print garbage collection statistics of the TAC simulator to stderr, available PA3 and PA4")
+            .build();
+
+    static final String PROFILE = "profile";
+    final Option profile = Option
+            .builder(null)
+            .longOpt(PROFILE)
+            .desc("profile the TAC simulator, available PA3 and PA4: write per-function and per-block counts and the "
+                    + "call graph to <input name>.prof, and collapsed stacks for flame graphs to <input name>.folded")
+            .build();
+
+    static final String PROFILE_USE = "profile-use";
+    final Option profileUse = Option
+            .builder(null)
+            .longOpt(PROFILE_USE)
+            .hasArg()
+            .argName("file")
+            .desc("optimize with a profile written by --profile, available >= PA4: lay out cold blocks last, inline "
+                    + "hot calls, devirtualize monomorphic call sites and weigh register spill costs")
+            .build();
+
+    static final String SERVER = "server";
+    final Option server = Option
+            .builder(null)
+            .longOpt(SERVER)
+            .hasArg()
+            .argName("port")
+            .desc("run as a compile server, listening on the given local port")
+            .build();
+
+    static final String CONNECT = "connect";
+    final Option connect = Option
+            .builder(null)
+            .longOpt(CONNECT)
+            .hasArg()
+            .argName("port")
+            .desc("send this compilation to the compile server on the given local port")
+            .build();
+
+    static final String BATCH = "batch";
+    final Option batch = Option
+            .builder(null)
+            .longOpt(BATCH)
+            .hasArg()
+            .argName("dir|manifest")
+            .desc("compile every .decaf file in a directory with the other options given, or every command line "
+                    + "listed in a manifest file (one per line)")
+            .build();
+
+    static final String JOBS = "j";
+    final Option jobs = Option
+            .builder(JOBS)
+            .longOpt("jobs")
+            .hasArg()
+            .argName("n")
+            .desc("number of programs compiled concurrently in batch mode (default number of processors)")
+            .build();
+
     Options options;
 
     public OptParser() {
@@ -91,32 +229,146 @@ public class OptParser {
         options.addOption(logFile);
         options.addOption(logColorful);
         options.addOption(bruteForce);
+        options.addOption(maxErrors);
+        options.addOption(parallel);
+        // optimization related
+        options.addOption(optLevel);
+        options.addOption(optBudget);
+        options.addOption(stats);
+        options.addOption(cache);
+        options.addOption(tacb);
+        // simulator related
+        options.addOption(simHeap);
+        options.addOption(gcStats);
+        options.addOption(profile);
+        options.addOption(profileUse);
+        // compile server related
+        options.addOption(server);
+        options.addOption(connect);
+        // batch related
+        options.addOption(batch);
+        options.addOption(jobs);
     }
 
     public void printHelp() {
+        printHelp(System.out);
+    }
+
+    public void printHelp(PrintStream to) {
         String header = "options:\n\n";
         HelpFormatter formatter = new HelpFormatter();
-        formatter.printHelp("decaf [options] <input file>", header, options, "");
+        var writer = new PrintWriter(to);
+        formatter.printHelp(writer, formatter.getWidth(), "decaf [options] <input file>", header, options,
+                formatter.getLeftPadding(), formatter.getDescPadding(), "");
+        writer.flush();
     }
 
     public Optional<Config> parse(String[] args) {
+        return parseCommandLine(args).flatMap(cli -> toConfig(cli, Config.Environment.system(), Optional.empty()));
+    }
+
+    /**
+     * Parse the command line only, without building a configuration. Print help if asked, or if parse fails.
+     *
+     * @param args command line args
+     * @return command line, or empty if nothing should be compiled
+     */
+    public Optional<CommandLine> parseCommandLine(String[] args) {
+        return parseCommandLine(args, Config.Environment.system());
+    }
+
+    /**
+     * Parse the command line only, reporting to the streams of {@code env}.
+     *
+     * @param args command line args
+     * @param env  environment
+     * @return command line, or empty if nothing should be compiled
+     */
+    public Optional<CommandLine> parseCommandLine(String[] args, Config.Environment env) {
         var parser = new DefaultParser();
         try {
             var cli = parser.parse(options, args);
 
             if (cli.hasOption(HELP)) {
-                printHelp();
-                System.exit(0);
+                printHelp(env.stdout);
+                return Optional.empty();
             }
 
-            return Optional.of(Config.fromCLI(cli));
+            return Optional.of(cli);
         } catch (ParseException e) {
-            System.err.println(e.getMessage());
-            printHelp();
+            env.stderr.println(e.getMessage());
+            printHelp(env.stdout);
+        }
+
+        return Optional.empty();
+    }
+
+    /**
+     * Build configuration from a parsed command line.
+     *
+     * @param cli          command line
+     * @param env          environment
+     * @param inlineSource Decaf source passed in directly, if any
+     * @return configuration, or empty if validation fails
+     * @see Config#fromCLI(CommandLine, Config.Environment, Optional)
+     */
+    public Optional<Config> toConfig(CommandLine cli, Config.Environment env, Optional<InputStream> inlineSource) {
+        try {
+            return Optional.of(Config.fromCLI(cli, env, inlineSource));
+        } catch (ParseException e) {
+            env.stderr.println(e.getMessage());
+            printHelp(env.stdout);
         } catch (FileNotFoundException e) {
-            System.err.println("Invalid file: " + e.getMessage());
+            env.stderr.println("Invalid file: " + e.getMessage());
+        }
+
+        return Optional.empty();
+    }
+
+    /**
+     * Get the port number given by an option.
+     *
+     * @param cli    command line
+     * @param option option name, {@link #SERVER} or {@link #CONNECT}
+     * @return port, or empty if invalid
+     */
+    public Optional<Integer> getPort(CommandLine cli, String option) {
+        var value = cli.getOptionValue(option);
+        try {
+            var port = Integer.parseInt(value);
+            if (port > 0 && port < 65536) {
+                return Optional.of(port);
+            }
+        } catch (NumberFormatException e) {
+            // fall through
+        }
+
+        System.err.println(String.format("Invalid port: '%s'", value));
+        return Optional.empty();
+    }
+
+    /**
+     * Get the number of concurrent jobs in batch mode.
+     *
+     * @param cli command line
+     * @return number of jobs, or empty if invalid
+     */
+    public Optional<Integer> getJobs(CommandLine cli) {
+        if (!cli.hasOption(JOBS)) {
+            return Optional.of(Runtime.getRuntime().availableProcessors());
+        }
+
+        var value = cli.getOptionValue(JOBS);
+        try {
+            var jobs = Integer.parseInt(value);
+            if (jobs > 0) {
+                return Optional.of(jobs);
+            }
+        } catch (NumberFormatException e) {
+            // fall through
         }
 
+        System.err.println(String.format("Invalid number of jobs: '%s'", value));
         return Optional.empty();
     }
 }
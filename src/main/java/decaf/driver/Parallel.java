@@ -0,0 +1,62 @@
+package decaf.driver;
+
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Helper for running independent work items (e.g. functions of a program) concurrently.
+ */
+public final class Parallel {
+
+    private Parallel() {
+    }
+
+    /**
+     * Apply {@code f} to every item, with at most {@code parallelism} threads. With parallelism 1, everything runs
+     * in the calling thread, in order.
+     *
+     * @param items       items
+     * @param f           function, must be safe to run concurrently on different items
+     * @param parallelism max. number of threads
+     * @return results, in the same order as {@code items}
+     */
+    public static <T, R> List<R> map(List<T> items, Function<T, R> f, int parallelism) {
+        if (parallelism == 1 || items.size() <= 1) {
+            return items.stream().map(f).collect(Collectors.toList());
+        }
+
+        var pool = new ForkJoinPool(parallelism);
+        try {
+            return pool.submit(() -> items.parallelStream().map(f).collect(Collectors.toList())).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        } catch (ExecutionException e) {
+            var cause = thrown(e.getCause());
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Find the exception originally thrown by a worker. When an exception crosses threads, ForkJoin may rethrow a
+     * new instance of the same class, whose cause is the original one, so that serial and parallel runs would report
+     * different exceptions.
+     */
+    private static Throwable thrown(Throwable e) {
+        while (e.getCause() != null && e.getCause().getClass() == e.getClass()) {
+            e = e.getCause();
+        }
+        return e;
+    }
+}
@@ -1,5 +1,9 @@
 package decaf.driver;
 
+import decaf.driver.error.BadTacError;
+import decaf.frontend.tree.Pos;
+import decaf.lowlevel.tac.TacBinary;
+
 import java.io.PrintStream;
 import java.util.Optional;
 
@@ -23,11 +27,21 @@ public abstract class Phase<In, Out> implements Task<In, Out>, ErrorIssuer {
      */
     protected final Config config;
 
+    /**
+     * Diagnostics of the compilation in progress, only available during {@link #apply}.
+     */
+    private Diagnostics diagnostics;
+
     public Phase(String name, Config config) {
         this.name = name;
         this.config = config;
     }
 
+    @Override
+    public Diagnostics getDiagnostics() {
+        return diagnostics;
+    }
+
     /**
      * Entry of the actual transformation.
      *
@@ -46,23 +60,54 @@ public abstract class Phase<In, Out> implements Task<In, Out>, ErrorIssuer {
     }
 
     /**
-     * Entry of running the phase.
+     * Entry of running the phase. If the error cap of {@code diagnostics} is reached, or a malformed function of a
+     * loaded TAC binary is met, the transformation is aborted, and the phase fails. The transformation is measured, if {@link Config#stats} are asked for.
      *
-     * @param in input
+     * @param in          input
+     * @param diagnostics diagnostics of the compilation
      * @return output (if succeeds)
      */
     @Override
-    public Optional<Out> apply(In in) {
-        var out = transform(in);
-        if (hasError()) {
-            printErrors(System.err);
-            if (!config.output.equals(Config.STDOUT) && config.target.compareTo(Config.Target.PA3) <= 0) {
-                printErrors(new PrintStream(config.output));
+    public Optional<Out> apply(In in, Diagnostics diagnostics) {
+        this.diagnostics = diagnostics;
+        var probe = config.stats.start(name).before(in);
+        Out out = null;
+        try {
+            out = transform(in);
+        } catch (Diagnostics.TooManyErrors e) {
+            reportErrors();
+            config.env.stderr.println(e.getMessage());
+            return Optional.empty();
+        } catch (TacBinary.MalformedFuncException e) {
+            // functions of a loaded TAC binary are decoded when first used, which can be in any phase
+            issue(new BadTacError(Pos.NoPos, e.getMessage()));
+        } finally {
+            // aborted or not, the phase is recorded
+            probe.stop();
+            if (out != null) {
+                probe.after(out);
             }
+        }
+
+        if (hasError()) {
+            reportErrors();
             return Optional.empty();
         }
 
-        onSucceed(out);
+        try {
+            onSucceed(out);
+        } catch (TacBinary.MalformedFuncException e) {
+            issue(new BadTacError(Pos.NoPos, e.getMessage()));
+            reportErrors();
+            return Optional.empty();
+        }
         return Optional.of(out);
     }
+
+    private void reportErrors() {
+        printErrors(config.env.stderr);
+        if (!config.output.equals(config.env.stdout) && config.target.compareTo(Config.Target.PA3) <= 0) {
+            printErrors(new PrintStream(config.output));
+        }
+    }
 }
@@ -0,0 +1,407 @@
+package decaf.driver;
+
+import decaf.backend.dataflow.CFGBuilder;
+import decaf.frontend.tree.TreeNode;
+import decaf.lowlevel.tac.TacFunc;
+import decaf.lowlevel.tac.TacInstr;
+import decaf.lowlevel.tac.TacProg;
+import org.apache.commons.io.FilenameUtils;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+/**
+ * Compilation statistics ({@code --stats}): how much time and memory every phase and every pass costs, and how large
+ * the IR is before and after it.
+ * <p>
+ * A record is taken by a {@link Probe}: {@link #start} it right before the work, feed it IR sizes, and {@link
+ * Probe#stop} it right after. Every record has:
+ * <ul>
+ *     <li>wall time,</li>
+ *     <li>CPU time of the current thread,</li>
+ *     <li>bytes allocated by the current thread (if the JVM supports it, otherwise -1),</li>
+ *     <li>IR sizes before and after (see {@link Metric}), where meaningful.</li>
+ * </ul>
+ * CPU time and allocation are per thread, so a probe must be started and stopped in the same thread. A record of a
+ * phase whose functions are processed concurrently ({@code -p}) only counts the calling thread; the records of the
+ * passes on every function are exact in any case.
+ * <p>
+ * Records are dumped as JSON, or as CSV if the file name ends with {@code .csv}, in the order they are started. When
+ * statistics are not asked for, {@link #DISABLED} is used, whose probes do nothing at all.
+ */
+public final class Stats {
+    /**
+     * Kinds of IR size.
+     */
+    public enum Metric {
+        AST_NODES("ast_nodes"),
+        TAC_INSTRS("tac_instrs"),
+        TEMPS("temps"),
+        BASIC_BLOCKS("basic_blocks"),
+        /**
+         * Values spilled by register allocation, only reported by allocators which can spill (see
+         * {@link decaf.backend.reg.RegAlloc#getSpillCount}).
+         */
+        SPILLS("spills"),
+        DATAFLOW_VISITS("dataflow_visits");
+
+        public final String key;
+
+        Metric(String key) {
+            this.key = key;
+        }
+    }
+
+    /**
+     * Collects nothing.
+     */
+    public static final Stats DISABLED = new Stats(null);
+
+    /**
+     * Where to dump, {@code null} if disabled.
+     */
+    private final Path path;
+
+    private final List<Record> records = new ArrayList<>();
+
+    private final AtomicInteger nextSeq = new AtomicInteger();
+
+    private static final java.lang.management.ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    private static final com.sun.management.ThreadMXBean ALLOCATION;
+
+    static {
+        if (THREADS instanceof com.sun.management.ThreadMXBean
+                && ((com.sun.management.ThreadMXBean) THREADS).isThreadAllocatedMemorySupported()) {
+            ALLOCATION = (com.sun.management.ThreadMXBean) THREADS;
+        } else {
+            ALLOCATION = null;
+        }
+    }
+
+    /**
+     * Collect statistics, to be dumped to {@code path}. Measuring CPU time and allocation per thread is enabled for
+     * the whole JVM from now on, so only do this when statistics are asked for.
+     *
+     * @param path dump file
+     */
+    public Stats(Path path) {
+        this.path = path;
+        if (path != null) {
+            enableThreadCounters();
+        }
+    }
+
+    private static void enableThreadCounters() {
+        if (ALLOCATION != null && !ALLOCATION.isThreadAllocatedMemoryEnabled()) {
+            ALLOCATION.setThreadAllocatedMemoryEnabled(true);
+        }
+        if (THREADS.isCurrentThreadCpuTimeSupported() && !THREADS.isThreadCpuTimeEnabled()) {
+            THREADS.setThreadCpuTimeEnabled(true);
+        }
+    }
+
+    public boolean isEnabled() {
+        return path != null;
+    }
+
+    /**
+     * Start a probe on a whole program.
+     *
+     * @param name phase or pass name
+     * @return probe
+     */
+    public Probe start(String name) {
+        return start(name, "");
+    }
+
+    /**
+     * Start a probe on a function.
+     *
+     * @param name     phase or pass name
+     * @param function function name
+     * @return probe
+     */
+    public Probe start(String name, String function) {
+        if (!isEnabled()) {
+            return NOOP;
+        }
+        return new Probe(this, new Record(nextSeq.getAndIncrement(), name, function));
+    }
+
+    /**
+     * Measure the size of an IR, if its kind is known:
+     * <ul>
+     *     <li>an AST: number of nodes,</li>
+     *     <li>a TAC program or function: number of instructions, temps and basic blocks.</li>
+     * </ul>
+     *
+     * @param ir     IR
+     * @param metric receive (metric, value) pairs
+     */
+    public static void measure(Object ir, BiConsumer<Metric, Long> metric) {
+        if (ir instanceof TreeNode) {
+            metric.accept(Metric.AST_NODES, countNodes(ir));
+        } else if (ir instanceof TacProg) {
+            long instrs = 0, temps = 0, blocks = 0;
+            for (var func : ((TacProg) ir).funcs) {
+                instrs += func.getInstrSeq().size();
+                temps += func.getUsedTempCount();
+                blocks += countBlocks(func);
+            }
+            metric.accept(Metric.TAC_INSTRS, instrs);
+            metric.accept(Metric.TEMPS, temps);
+            metric.accept(Metric.BASIC_BLOCKS, blocks);
+        } else if (ir instanceof TacFunc) {
+            var func = (TacFunc) ir;
+            metric.accept(Metric.TAC_INSTRS, (long) func.getInstrSeq().size());
+            metric.accept(Metric.TEMPS, (long) func.getUsedTempCount());
+            metric.accept(Metric.BASIC_BLOCKS, countBlocks(func));
+        }
+    }
+
+    private static long countNodes(Object element) {
+        if (element instanceof TreeNode) {
+            long count = 1;
+            for (var child : (TreeNode) element) {
+                count += countNodes(child);
+            }
+            return count;
+        } else if (element instanceof Optional) {
+            return ((Optional<?>) element).map(Stats::countNodes).orElse(0L);
+        } else if (element instanceof List) {
+            long count = 0;
+            for (var item : (List<?>) element) {
+                count += countNodes(item);
+            }
+            return count;
+        }
+        return 0;
+    }
+
+    private static long countBlocks(TacFunc func) {
+        return new CFGBuilder<TacInstr>().buildFrom(func.getInstrSeq()).nodes.size();
+    }
+
+    /**
+     * Dump all records, if enabled.
+     *
+     * @throws IOException if the file cannot be written
+     */
+    public void dump() throws IOException {
+        if (!isEnabled()) {
+            return;
+        }
+
+        List<Record> sorted;
+        synchronized (records) {
+            sorted = new ArrayList<>(records);
+        }
+        sorted.sort(Comparator.comparingInt(r -> r.seq));
+
+        try (var writer = new PrintWriter(Files.newBufferedWriter(path))) {
+            if (FilenameUtils.isExtension(path.getFileName().toString(), "csv")) {
+                dumpCSV(sorted, writer);
+            } else {
+                dumpJSON(sorted, writer);
+            }
+        }
+    }
+
+    private static void dumpCSV(List<Record> records, PrintWriter to) {
+        to.print("name,function,wall_ns,cpu_ns,alloc_bytes");
+        for (var metric : Metric.values()) {
+            to.format(",%s_before,%s_after", metric.key, metric.key);
+        }
+        to.println();
+
+        for (var record : records) {
+            to.format("%s,%s,%d,%d,%d", csvString(record.name), csvString(record.function), record.wallNanos,
+                    record.cpuNanos, record.allocatedBytes);
+            for (var metric : Metric.values()) {
+                to.print(',');
+                Optional.ofNullable(record.before.get(metric)).ifPresent(to::print);
+                to.print(',');
+                Optional.ofNullable(record.after.get(metric)).ifPresent(to::print);
+            }
+            to.println();
+        }
+    }
+
+    private static String csvString(String s) {
+        if (s.contains(",") || s.contains("\"") || s.contains("\n")) {
+            return '"' + s.replace("\"", "\"\"") + '"';
+        }
+        return s;
+    }
+
+    private static void dumpJSON(List<Record> records, PrintWriter to) {
+        to.println("[");
+        for (int i = 0; i < records.size(); i++) {
+            var record = records.get(i);
+            to.format("  {\"name\": %s, \"function\": %s, \"wall_ns\": %d, \"cpu_ns\": %d, \"alloc_bytes\": %d, "
+                            + "\"before\": %s, \"after\": %s}%s%n", jsonString(record.name),
+                    jsonString(record.function), record.wallNanos, record.cpuNanos, record.allocatedBytes,
+                    jsonObject(record.before), jsonObject(record.after), i + 1 < records.size() ? "," : "");
+        }
+        to.println("]");
+    }
+
+    private static String jsonObject(Map<Metric, Long> metrics) {
+        var sb = new StringBuilder("{");
+        var first = true;
+        for (var entry : metrics.entrySet()) {
+            if (!first) sb.append(", ");
+            sb.append('"').append(entry.getKey().key).append("\": ").append(entry.getValue());
+            first = false;
+        }
+        return sb.append('}').toString();
+    }
+
+    private static String jsonString(String s) {
+        var sb = new StringBuilder("\"");
+        for (var c : s.toCharArray()) {
+            switch (c) {
+                case '"' -> sb.append("\\\"");
+                case '\\' -> sb.append("\\\\");
+                case '\n' -> sb.append("\\n");
+                case '\t' -> sb.append("\\t");
+                default -> {
+                    if (c < 0x20) sb.append(String.format("\\u%04x", (int) c));
+                    else sb.append(c);
+                }
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+    private static long allocatedBytes() {
+        return ALLOCATION == null ? -1 : ALLOCATION.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static long cpuTime() {
+        return THREADS.isCurrentThreadCpuTimeSupported() ? THREADS.getCurrentThreadCpuTime() : -1;
+    }
+
+    private static final class Record {
+        final int seq;
+        final String name;
+        final String function;
+        long wallNanos;
+        long cpuNanos;
+        long allocatedBytes;
+        final Map<Metric, Long> before = new EnumMap<>(Metric.class);
+        final Map<Metric, Long> after = new EnumMap<>(Metric.class);
+
+        Record(int seq, String name, String function) {
+            this.seq = seq;
+            this.name = name;
+            this.function = function;
+        }
+    }
+
+    private static final Probe NOOP = new Probe(null, null);
+
+    /**
+     * An ongoing measurement. Not thread-safe: use it in one thread only.
+     */
+    public static final class Probe {
+        private final Stats owner;
+
+        private final Record record;
+
+        private final long wallStart;
+        private final long cpuStart;
+        private final long allocStart;
+
+        private Probe(Stats owner, Record record) {
+            this.owner = owner;
+            this.record = record;
+            if (record != null) {
+                wallStart = System.nanoTime();
+                cpuStart = cpuTime();
+                allocStart = allocatedBytes();
+            } else {
+                wallStart = cpuStart = allocStart = 0;
+            }
+        }
+
+        public boolean isEnabled() {
+            return record != null;
+        }
+
+        /**
+         * Record the size of the IR before the work. Must be called before {@link #stop}.
+         *
+         * @param ir IR
+         * @return this
+         */
+        public Probe before(Object ir) {
+            if (record != null) {
+                // don't count the measurement itself
+                var wall = System.nanoTime();
+                var cpu = cpuTime();
+                var alloc = allocatedBytes();
+                measure(ir, record.before::put);
+                adjust(wall, cpu, alloc);
+            }
+            return this;
+        }
+
+        /**
+         * Record the size of the IR after the work. Must be called after {@link #stop}.
+         *
+         * @param ir IR
+         * @return this
+         */
+        public Probe after(Object ir) {
+            if (record != null) {
+                measure(ir, record.after::put);
+            }
+            return this;
+        }
+
+        /**
+         * Record a metric which is known after the work. Must be called after {@link #stop}.
+         *
+         * @param metric metric
+         * @param value  value
+         * @return this
+         */
+        public Probe after(Metric metric, long value) {
+            if (record != null) {
+                record.after.put(metric, value);
+            }
+            return this;
+        }
+
+        /**
+         * Stop timing, and save the record.
+         *
+         * @return this
+         */
+        public Probe stop() {
+            if (record != null) {
+                record.wallNanos += System.nanoTime() - wallStart;
+                record.cpuNanos = cpuStart < 0 ? -1 : record.cpuNanos + cpuTime() - cpuStart;
+                record.allocatedBytes = allocStart < 0 ? -1 : record.allocatedBytes + allocatedBytes() - allocStart;
+                synchronized (owner.records) {
+                    owner.records.add(record);
+                }
+            }
+            return this;
+        }
+
+        private void adjust(long wall, long cpu, long alloc) {
+            record.wallNanos -= System.nanoTime() - wall;
+            record.cpuNanos -= cpuTime() - cpu;
+            record.allocatedBytes -= allocatedBytes() - alloc;
+        }
+    }
+}
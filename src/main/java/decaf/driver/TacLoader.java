@@ -0,0 +1,93 @@
+package decaf.driver;
+
+import decaf.driver.error.BadTacError;
+import decaf.frontend.tree.Pos;
+import decaf.lowlevel.tac.Simulator;
+import decaf.lowlevel.tac.TacBinary;
+import decaf.lowlevel.tac.TacProg;
+import decaf.lowlevel.tac.TacReader;
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.IOUtils;
+
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+
+/**
+ * The TAC loading phase: load a TAC program built before, instead of compiling a Decaf source. It replaces the whole
+ * frontend, so that the optimizer, the assembly phase and the simulator can run on their own.
+ * <p>
+ * The input is recognized by the extension of its file name:
+ * <ul>
+ *     <li>{@code .tac}: TAC program in text, as dumped for PA3 and PA4 (see {@link TacReader});</li>
+ *     <li>{@code .tacb}: binary TAC program (see {@link TacBinary}). A binary read from a regular file is
+ *     memory-mapped, otherwise (e.g. from a pipe) it is read whole; either way, its functions are decoded lazily.</li>
+ * </ul>
+ * An output file which would overwrite the input (like {@code foo.tac} for PA3 from {@code foo.tac}) is not written.
+ */
+public class TacLoader extends Phase<InputStream, TacProg> {
+
+    public TacLoader(Config config) {
+        super("tacload", config);
+    }
+
+    /**
+     * Is the input of a compilation a TAC program, to be loaded by this phase?
+     *
+     * @param config compiler configuration
+     * @return true if so
+     */
+    public static boolean accepts(Config config) {
+        return FilenameUtils.isExtension(config.sourcePath.getFileName().toString(), new String[]{"tac", "tacb"});
+    }
+
+    @Override
+    public TacProg transform(InputStream input) {
+        try {
+            if (FilenameUtils.isExtension(config.sourcePath.getFileName().toString(), "tac")) {
+                return TacReader.read(input);
+            }
+            if (input instanceof FileInputStream && Files.isRegularFile(config.sourcePath)) {
+                return TacBinary.map(((FileInputStream) input).getChannel());
+            }
+            return TacBinary.read(ByteBuffer.wrap(IOUtils.toByteArray(input)));
+        } catch (TacReader.MalformedTacException e) {
+            issue(new BadTacError(new Pos(e.line, e.column), e.getMessage()));
+            return new TacProg(new ArrayList<>(), new ArrayList<>());
+        } catch (IOException e) {
+            issue(new BadTacError(Pos.NoPos, e.getMessage()));
+            return new TacProg(new ArrayList<>(), new ArrayList<>());
+        }
+    }
+
+    /**
+     * Like {@link decaf.frontend.tacgen.TacGen}, dump the program as text and execute it, for PA3.
+     */
+    @Override
+    public void onSucceed(TacProg program) {
+        if (config.target.equals(Config.Target.PA3)) {
+            var path = config.dstPath.resolve(config.getSourceBaseName() + ".tac");
+            if (!config.isSource(path)) {
+                try {
+                    var printer = new PrintWriter(path.toFile());
+                    program.printTo(printer);
+                    printer.close();
+                } catch (FileNotFoundException e) {
+                    e.printStackTrace();
+                }
+            }
+
+            var simulator = new Simulator(config.env.stdin, config.output, config.simHeapLimit);
+            simulator.execute(program, config.profile);
+            simulator.getProfile().ifPresent(profile -> profile.save(config.dstPath, config.getSourceBaseName()));
+            if (config.gcStats) {
+                config.env.stderr.println(simulator.getGcStats());
+            }
+        }
+    }
+}
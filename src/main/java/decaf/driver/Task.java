@@ -1,16 +1,27 @@
 package decaf.driver;
 
 import java.util.Optional;
-import java.util.function.Function;
 
 /**
  * Represents a "task" function that accepts one argument and may produce a result. Can be regarded as a "partial"
  * function.
+ * <p>
+ * A task runs in the context of a compilation, whose errors are reported to the given {@link Diagnostics}.
  */
-public interface Task<T, R> extends Function<T, Optional<R>> {
+@FunctionalInterface
+public interface Task<T, R> {
+    /**
+     * Run the task.
+     *
+     * @param t           input
+     * @param diagnostics diagnostics of the compilation
+     * @return result, or {@link Optional#empty} if fails
+     */
+    Optional<R> apply(T t, Diagnostics diagnostics);
+
     /**
      * Pipe two tasks. This will return a function which does "this" first, if succeeds, continue do {@code next} with
-     * the previous result as input; or else exits and returns {@link Optional#empty}.
+     * the previous result as input; or else exits and returns {@link Optional#empty}. Both share the same diagnostics.
      * <p>
      * In terms of monad, this is just a Kleisli composition.
      *
@@ -18,6 +29,6 @@ public interface Task<T, R> extends Function<T, Optional<R>> {
      * @return the piped (Kleisli-composed) function
      */
     default <V> Task<T, V> then(Task<R, V> next) {
-        return t -> this.apply(t).flatMap(next);
+        return (t, diagnostics) -> this.apply(t, diagnostics).flatMap(r -> next.apply(r, diagnostics));
     }
 }
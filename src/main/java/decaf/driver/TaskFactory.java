@@ -2,21 +2,29 @@ package decaf.driver;
 
 import decaf.backend.asm.Asm;
 import decaf.backend.asm.mips.MipsAsmEmitter;
+import decaf.backend.cache.FuncCache;
 import decaf.backend.opt.Optimizer;
+import decaf.backend.pgo.ProfileGuide;
 import decaf.backend.reg.BruteRegAlloc;
 import decaf.backend.reg.GraphColorRegAlloc;
+import decaf.backend.reg.RegAlloc;
 import decaf.frontend.parsing.JaccParser;
 import decaf.frontend.parsing.LLParser;
 import decaf.frontend.tacgen.TacGen;
 import decaf.frontend.tree.Tree;
 import decaf.frontend.typecheck.Namer;
 import decaf.frontend.typecheck.Typer;
+import decaf.lowlevel.log.Log;
 import decaf.lowlevel.tac.TacProg;
 
 import java.io.InputStream;
+import java.util.Optional;
+import java.util.function.Supplier;
 
 /**
  * Supported tasks of Decaf compiler.
+ * <p>
+ * Every task built here has its own phases, so tasks of different compilations can run concurrently.
  */
 public class TaskFactory {
     private final Config config;
@@ -41,12 +49,42 @@ public class TaskFactory {
         return typeCheck().then(new TacGen(config));
     }
 
+    /**
+     * TAC of the input: generated from Decaf source, or loaded if the input is TAC already (see {@link TacLoader}).
+     */
+    public Task<InputStream, TacProg> tac() {
+        return TacLoader.accepts(config) ? new TacLoader(config) : tacGen();
+    }
+
     public Task<InputStream, TacProg> optimize() {
-        return tacGen().then(new Optimizer(config));
+        return tac().then(new Optimizer(funcCache(), profileGuide(), config));
     }
 
     public Task<InputStream, String> mips() {
         var emitter = new MipsAsmEmitter(config.bruteForceRegAlloc);
-        return optimize().then(new Asm(emitter, config.bruteForceRegAlloc ? new BruteRegAlloc(emitter) : new GraphColorRegAlloc(emitter), config));
+        Supplier<RegAlloc> regAlloc = config.bruteForceRegAlloc ? () -> new BruteRegAlloc(emitter)
+                : () -> new GraphColorRegAlloc(emitter);
+        var cache = funcCache();
+        var guide = profileGuide();
+        return tac().then(new Optimizer(cache, guide, config)).then(new Asm(emitter, regAlloc, cache, guide, config));
+    }
+
+    /**
+     * The function cache shared by the optimizer and the assembly phase of one task, if asked for. Not used with a
+     * profile, since the code of a function then depends on the profile and on the functions inlined into it.
+     */
+    private Optional<FuncCache> funcCache() {
+        if (config.cacheDir.isPresent() && config.profileUse.isPresent()) {
+            Log.warn("function cache is disabled with a profile");
+            return Optional.empty();
+        }
+        return config.cacheDir.map(dir -> new FuncCache(dir, config));
+    }
+
+    /**
+     * The profile guide shared by the optimizer and the assembly phase of one task, if asked for.
+     */
+    private Optional<ProfileGuide> profileGuide() {
+        return config.profileUse.flatMap(ProfileGuide::load);
     }
 }
@@ -0,0 +1,26 @@
+package decaf.driver.error;
+
+import decaf.frontend.tree.Pos;
+
+/**
+ * Error in a TAC input, which the compiler loads instead of compiling a Decaf source.
+ * <p>
+ * Example:
+ * <pre>
+ *   *** Error: malformed TAC binary: not a TAC binary
+ * </pre>
+ */
+public class BadTacError extends DecafError {
+
+    private final String reason;
+
+    public BadTacError(Pos pos, String reason) {
+        super(pos);
+        this.reason = reason;
+    }
+
+    @Override
+    protected String getErrMsg() {
+        return reason;
+    }
+}
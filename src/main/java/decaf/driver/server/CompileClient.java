@@ -0,0 +1,88 @@
+package decaf.driver.server;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.Optional;
+
+/**
+ * Compile client: send a compilation to a running {@link CompileServer}.
+ */
+public final class CompileClient {
+
+    private CompileClient() {
+    }
+
+    /**
+     * Forward a command line compilation to the server, using the standard streams and working directory of this
+     * process.
+     *
+     * @param port server port
+     * @param args command line args and options
+     * @return exit code
+     */
+    public static int forward(int port, String[] args) {
+        try {
+            return compile(port, System.getProperty("user.dir"), args, Optional.empty(), System.in, System.out,
+                    System.err);
+        } catch (IOException e) {
+            System.err.println("Cannot reach compile server on port " + port + ": " + e.getMessage());
+            return 1;
+        }
+    }
+
+    /**
+     * Send a compilation to the server, with the token of the server (see {@link Protocol#tokenFile}).
+     *
+     * @param port   server port
+     * @param cwd    working directory, against which relative paths in {@code args} are resolved
+     * @param args   command line args and options
+     * @param source Decaf source passed in directly, if any
+     * @param stdin  stdin of the compilation
+     * @param stdout stdout of the compilation
+     * @param stderr stderr of the compilation
+     * @return exit code
+     * @throws IOException if the token cannot be read, or the connection fails
+     */
+    public static int compile(int port, String cwd, String[] args, Optional<byte[]> source,
+                              InputStream stdin, OutputStream stdout, OutputStream stderr) throws IOException {
+        var token = Protocol.readToken(port);
+        try (var socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            var in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            var out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            new Protocol.Request(token, cwd, args, source).writeTo(out);
+
+            var buf = new byte[8192];
+            while (true) {
+                var tag = in.readByte();
+                switch (tag) {
+                    case Protocol.STDOUT, Protocol.STDERR -> {
+                        var len = in.readInt();
+                        var to = tag == Protocol.STDOUT ? stdout : stderr;
+                        while (len > 0) {
+                            var n = Math.min(len, buf.length);
+                            in.readFully(buf, 0, n);
+                            to.write(buf, 0, n);
+                            len -= n;
+                        }
+                        to.flush();
+                    }
+                    case Protocol.READ -> {
+                        var max = Math.min(in.readInt(), buf.length);
+                        var n = stdin.read(buf, 0, max);
+                        out.writeByte(Protocol.DATA);
+                        out.writeInt(n);
+                        if (n > 0) {
+                            out.write(buf, 0, n);
+                        }
+                        out.flush();
+                    }
+                    case Protocol.EXIT -> {
+                        return in.readInt();
+                    }
+                    default -> throw new IOException("malformed frame from compile server");
+                }
+            }
+        }
+    }
+}
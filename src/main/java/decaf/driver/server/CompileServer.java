@@ -0,0 +1,85 @@
+package decaf.driver.server;
+
+import decaf.driver.Config;
+import decaf.driver.Launcher;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Path;
+import java.util.concurrent.Executors;
+
+/**
+ * Compile server.
+ * <p>
+ * Launching a JVM and warming up the compiler costs much more than compiling a typical Decaf program. A compile server
+ * is started once, and then serves compile requests sent by {@link CompileClient}, so that every compilation runs on
+ * an already warm JVM.
+ * <p>
+ * A request behaves exactly as the command line compiler launched with the same args in the client's working
+ * directory: stdout, stderr and stdin (read by the simulator) are all forwarded to the client. Every request
+ * has its own diagnostics, so requests are served concurrently.
+ * <p>
+ * The server only listens on the loopback interface, and only serves clients run by the same user: as a request reads
+ * and writes files with the rights of the server, it must present a secret token, which the server writes to a file
+ * only its user can read (see {@link Protocol#tokenFile}). Logging is set up once for the server, by its own command
+ * line, so requests must not have logging options.
+ */
+public final class CompileServer {
+
+    private final int port;
+
+    public CompileServer(int port) {
+        this.port = port;
+    }
+
+    /**
+     * Serve compile requests, forever.
+     *
+     * @throws IOException if the server socket cannot be opened
+     */
+    public void serve() throws IOException {
+        try (var server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress())) {
+            var token = Protocol.createToken(port);
+            System.err.println("Compile server listening on " + server.getLocalSocketAddress() + ", token in "
+                    + Protocol.tokenFile(port));
+            var pool = Executors.newCachedThreadPool();
+            while (true) {
+                var socket = server.accept();
+                pool.execute(() -> {
+                    try (socket) {
+                        handle(socket, token);
+                    } catch (IOException e) {
+                        System.err.println("Compile request dropped: " + e.getMessage());
+                    }
+                });
+            }
+        }
+    }
+
+    private void handle(Socket socket, String token) throws IOException {
+        var in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        var out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        var channel = new Protocol.Channel(in, out);
+        Protocol.Request request;
+        try {
+            request = Protocol.Request.readFrom(in, token);
+        } catch (Protocol.Unauthorized e) {
+            var message = ("Compile server refused the request: " + e.getMessage() + "\n").getBytes();
+            channel.writeFrame(Protocol.STDERR, message, 0, message.length);
+            channel.exit(1);
+            throw e;
+        }
+
+        var stdout = new PrintStream(channel.outputStream(Protocol.STDOUT), true);
+        var stderr = new PrintStream(channel.outputStream(Protocol.STDERR), true);
+        var stdin = channel.inputStream(stdout, stderr);
+
+        var env = new Config.Environment(Path.of(request.cwd), stdin, stdout, stderr);
+        var exitCode = Launcher.compile(request.args, env, request.source.map(ByteArrayInputStream::new));
+        stdout.flush();
+        stderr.flush();
+        channel.exit(exitCode);
+    }
+}
@@ -0,0 +1,325 @@
+package decaf.driver.server;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Optional;
+
+/**
+ * Wire protocol between {@link CompileClient} and {@link CompileServer}.
+ * <p>
+ * A connection carries exactly one compilation. The client first sends a {@link Request}, which must carry the secret
+ * token of the server (see {@link #tokenFile}), otherwise the server only answers with an error and exit code 1.
+ * Then the server sends a
+ * sequence of frames, each starts with a one-byte tag:
+ * <ul>
+ *     <li>{@link #STDOUT} {@code len bytes}: output of the compilation to stdout</li>
+ *     <li>{@link #STDERR} {@code len bytes}: output of the compilation to stderr</li>
+ *     <li>{@link #READ} {@code max}: the compilation blocks on stdin, the client must answer with a {@link #DATA}
+ *     frame of at most {@code max} bytes, where a negative length indicates end of input</li>
+ *     <li>{@link #EXIT} {@code code}: the compilation is done, with the exit code the command line would have</li>
+ * </ul>
+ */
+final class Protocol {
+
+    private Protocol() {
+    }
+
+    static final int MAGIC = 0xDECAF002;
+
+    static final byte STDOUT = 'O';
+
+    static final byte STDERR = 'E';
+
+    static final byte READ = 'R';
+
+    static final byte DATA = 'D';
+
+    static final byte EXIT = 'X';
+
+    /**
+     * File holding the secret token of the server on a port. Only the user running the server can read it, so the
+     * server knows a client which presents the token is run by the same user, and may read and write files as that
+     * user on its behalf.
+     *
+     * @param port server port
+     * @return path of the file
+     */
+    static Path tokenFile(int port) {
+        return Path.of(System.getProperty("user.home"), ".decaf", "server-" + port + ".token");
+    }
+
+    /**
+     * Create a fresh token for the server on a port, in a new file only the current user can access. The file is
+     * deleted when the JVM exits.
+     *
+     * @param port server port
+     * @return token
+     * @throws IOException if the file cannot be created
+     */
+    static String createToken(int port) throws IOException {
+        var file = tokenFile(port);
+        var posix = FileSystems.getDefault().supportedFileAttributeViews().contains("posix");
+        if (posix) {
+            Files.createDirectories(file.getParent(),
+                    PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+            Files.deleteIfExists(file);
+            Files.createFile(file, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        } else {
+            Files.createDirectories(file.getParent());
+            Files.deleteIfExists(file);
+            Files.createFile(file);
+            var f = file.toFile();
+            if (!(f.setReadable(false, false) && f.setReadable(true, true)
+                    && f.setWritable(false, false) && f.setWritable(true, true))) {
+                Files.delete(file);
+                throw new IOException("cannot restrict access to " + file);
+            }
+        }
+        file.toFile().deleteOnExit();
+
+        var bytes = new byte[32];
+        new SecureRandom().nextBytes(bytes);
+        var token = new StringBuilder();
+        for (var b : bytes) {
+            token.append(String.format("%02x", b));
+        }
+        Files.writeString(file, token);
+        return token.toString();
+    }
+
+    /**
+     * Read the token of the server on a port.
+     *
+     * @param port server port
+     * @return token
+     * @throws IOException if the file cannot be read, e.g. no server of the current user runs on that port
+     */
+    static String readToken(int port) throws IOException {
+        return Files.readString(tokenFile(port)).strip();
+    }
+
+    /**
+     * A request is refused, as it does not carry the right token.
+     */
+    static final class Unauthorized extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        Unauthorized() {
+            super("wrong token");
+        }
+    }
+
+    /**
+     * A compile request.
+     */
+    static final class Request {
+        /**
+         * Secret token of the server.
+         */
+        final String token;
+
+        /**
+         * Working directory of the client, against which relative paths in {@code args} are resolved.
+         */
+        final String cwd;
+
+        /**
+         * Command line args, exactly the same as the ones given to the command line compiler.
+         */
+        final String[] args;
+
+        /**
+         * Decaf source passed in directly, if any. The input file in {@code args} then only names the outputs.
+         */
+        final Optional<byte[]> source;
+
+        Request(String token, String cwd, String[] args, Optional<byte[]> source) {
+            this.token = token;
+            this.cwd = cwd;
+            this.args = args;
+            this.source = source;
+        }
+
+        void writeTo(DataOutputStream out) throws IOException {
+            out.writeInt(MAGIC);
+            out.writeUTF(token);
+            out.writeUTF(cwd);
+            out.writeInt(args.length);
+            for (var arg : args) {
+                out.writeUTF(arg);
+            }
+            out.writeBoolean(source.isPresent());
+            if (source.isPresent()) {
+                out.writeInt(source.get().length);
+                out.write(source.get());
+            }
+            out.flush();
+        }
+
+        /**
+         * Read a request, but nothing after the token if it is wrong.
+         *
+         * @param in    input
+         * @param token token of the server
+         * @return request
+         * @throws Unauthorized if the token is wrong
+         * @throws IOException  if the request is malformed
+         */
+        static Request readFrom(DataInputStream in, String token) throws IOException {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("not a decaf compile request");
+            }
+            var given = in.readUTF();
+            if (!MessageDigest.isEqual(given.getBytes(StandardCharsets.UTF_8), token.getBytes(StandardCharsets.UTF_8))) {
+                throw new Unauthorized();
+            }
+            var cwd = in.readUTF();
+            var args = new String[in.readInt()];
+            for (var i = 0; i < args.length; i++) {
+                args[i] = in.readUTF();
+            }
+            Optional<byte[]> source = Optional.empty();
+            if (in.readBoolean()) {
+                var bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                source = Optional.of(bytes);
+            }
+            return new Request(given, cwd, args, source);
+        }
+    }
+
+    /**
+     * Server side of a connection: stdout/stderr of the compilation are framed into the connection, and stdin is
+     * requested from the client on demand.
+     */
+    static final class Channel {
+        private final DataInputStream in;
+
+        private final DataOutputStream out;
+
+        Channel(DataInputStream in, DataOutputStream out) {
+            this.in = in;
+            this.out = out;
+        }
+
+        synchronized void writeFrame(byte tag, byte[] buf, int off, int len) throws IOException {
+            out.writeByte(tag);
+            out.writeInt(len);
+            out.write(buf, off, len);
+        }
+
+        synchronized void exit(int code) throws IOException {
+            out.writeByte(EXIT);
+            out.writeInt(code);
+            out.flush();
+        }
+
+        /**
+         * Ask the client for at most {@code len} bytes of stdin.
+         *
+         * @return number of bytes read, or -1 if end of input
+         */
+        synchronized int read(byte[] buf, int off, int len) throws IOException {
+            out.writeByte(READ);
+            out.writeInt(len);
+            out.flush();
+
+            if (in.readByte() != DATA) {
+                throw new IOException("malformed stdin frame");
+            }
+            var n = in.readInt();
+            if (n < 0) {
+                return -1;
+            }
+            if (n > len) {
+                throw new IOException("too much stdin data");
+            }
+            in.readFully(buf, off, n);
+            return n;
+        }
+
+        /**
+         * An output stream whose content is sent as frames of the given tag.
+         */
+        OutputStream outputStream(byte tag) {
+            return new OutputStream() {
+                private final byte[] buf = new byte[8192];
+
+                private int count = 0;
+
+                @Override
+                public void write(int b) throws IOException {
+                    if (count == buf.length) {
+                        flush();
+                    }
+                    buf[count++] = (byte) b;
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    if (len > buf.length - count) {
+                        flush();
+                    }
+                    if (len > buf.length) {
+                        writeFrame(tag, b, off, len);
+                    } else {
+                        System.arraycopy(b, off, buf, count, len);
+                        count += len;
+                    }
+                }
+
+                @Override
+                public void flush() throws IOException {
+                    if (count > 0) {
+                        writeFrame(tag, buf, 0, count);
+                        count = 0;
+                    }
+                }
+            };
+        }
+
+        /**
+         * An input stream reading stdin of the client. Before blocking on the client, {@code flushFirst} is flushed
+         * so that prompts are seen.
+         */
+        InputStream inputStream(OutputStream... flushFirst) {
+            return new InputStream() {
+                private boolean eof = false;
+
+                @Override
+                public int read() throws IOException {
+                    var b = new byte[1];
+                    return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    if (eof) {
+                        return -1;
+                    }
+                    if (len == 0) {
+                        return 0;
+                    }
+                    for (var stream : flushFirst) {
+                        stream.flush();
+                    }
+                    var n = Channel.this.read(b, off, len);
+                    if (n == -1) {
+                        eof = true;
+                    }
+                    return n;
+                }
+            };
+        }
+    }
+}
@@ -47,11 +47,9 @@ public class LLParser extends Phase<InputStream, Tree.TopLevel> {
      */
     @Override
     public void issue(DecafError error) {
-        if (!errors.isEmpty()) {
-            var last = errors.get(errors.size() - 1);
-            if (error.toString().equals(last.toString())) { // ignore
-                return;
-            }
+        var last = getDiagnostics().getLast();
+        if (last.isPresent() && error.toString().equals(last.get().toString())) { // ignore
+            return;
         }
 
         super.issue(error);
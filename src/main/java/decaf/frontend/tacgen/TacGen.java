@@ -6,6 +6,8 @@ import decaf.frontend.tree.Tree;
 import decaf.lowlevel.tac.*;
 
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 
@@ -61,6 +63,15 @@ public class TacGen extends Phase<Tree.TopLevel, TacProg> implements TacEmitter
 
     @Override
     public void onSucceed(TacProg program) {
+        if (config.emitTacBinary) {
+            var path = config.dstPath.resolve(config.getSourceBaseName() + ".tacb");
+            try (var out = new FileOutputStream(path.toFile())) {
+                TacBinary.write(program, out);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
         if (config.target.equals(Config.Target.PA3) || config.target.equals(Config.Target.PA4)) {
             // First dump the tac program to file,
             var path = config.target.equals(Config.Target.PA4) ? config.dstPath.resolve(config.getSourceBaseName() + "_orig.tac")
@@ -74,8 +85,12 @@ public class TacGen extends Phase<Tree.TopLevel, TacProg> implements TacEmitter
             }
 
             // and then execute it using our simulator.
-            var simulator = new Simulator(System.in, config.target.equals(Config.Target.PA3) ? config.output : new Config.NullOutputStream());
-            int lines = simulator.execute(program);
+            var simulator = new Simulator(config.env.stdin, config.target.equals(Config.Target.PA3) ? config.output : new Config.NullOutputStream(), config.simHeapLimit);
+            int lines = simulator.execute(program, config.profile && config.target.equals(Config.Target.PA3));
+            simulator.getProfile().ifPresent(profile -> profile.save(config.dstPath, config.getSourceBaseName()));
+            if (config.gcStats) {
+                config.env.stderr.println(simulator.getGcStats());
+            }
             if(config.target.equals(Config.Target.PA4)) {
                 path = config.dstPath.resolve(config.getSourceBaseName() + ".info");
                 try (var printer = new PrintWriter(path.toFile())){
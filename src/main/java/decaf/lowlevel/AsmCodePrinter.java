@@ -115,6 +115,15 @@ public class AsmCodePrinter {
         sb.append(END_LINE);
     }
 
+    /**
+     * Print already formatted code, as is.
+     *
+     * @param code assembly code
+     */
+    public void printRaw(String code) {
+        sb.append(code);
+    }
+
     /**
      * Finish printing. Get the plain text of the assembly code.
      *
@@ -23,18 +23,8 @@ public final class Reg extends Temp {
         this.name = name;
     }
 
-    public boolean isUsed() {
-        return used;
-    }
-
     @Override
     public String toString() {
         return name;
     }
-
-    public boolean occupied = false;
-
-    public boolean used = false;
-
-    public Temp temp;
 }
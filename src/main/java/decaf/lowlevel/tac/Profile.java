@@ -0,0 +1,607 @@
+package decaf.lowlevel.tac;
+
+import decaf.lowlevel.log.Log;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.function.IntConsumer;
+
+/**
+ * Execution profile of a TAC program, collected by {@link Simulator#execute(TacProg, boolean)}.
+ * <p>
+ * Functions are identified by the names of their entry labels, and basic blocks by their index in the function, as
+ * numbered by {@link decaf.backend.dataflow.CFGBuilder}: a block starts at every non-function label and after every
+ * jump or return. Both survive edits elsewhere in the program.
+ * <p>
+ * A profile is saved in two formats (see {@link #save}):
+ * <ul>
+ *     <li>{@code .prof}, a flat profile: per function, call count, exclusive and inclusive instruction count; then
+ *     the dynamic call graph, execution counts of blocks, and the callees of indirect call sites. Lines are
+ *     tab-separated, and those which are not data start with {@code #}. It can be {@link #read} back.</li>
+ *     <li>{@code .folded}, collapsed stacks ({@code main;Main.f;Main.g count}, where count is the number of
+ *     instructions executed by the innermost function), which flame graph tools accept.</li>
+ * </ul>
+ */
+public final class Profile {
+    /**
+     * Total number of instructions executed.
+     */
+    public final long instrs;
+
+    /**
+     * Functions, by entry label name, in program order.
+     */
+    public final Map<String, Func> funcs = new LinkedHashMap<>();
+
+    /**
+     * Dynamic call graph.
+     */
+    public final List<Call> calls = new ArrayList<>();
+
+    /**
+     * Indirect call sites which were executed.
+     */
+    public final List<Site> sites = new ArrayList<>();
+
+    /**
+     * Calling context tree: a node per distinct stack of functions. Node 0 is the root, above {@code main}, and a
+     * node is created after its parent. Not saved in {@code .prof}, thus absent if the profile is {@link #read}.
+     */
+    private final Optional<Recorder> tree;
+
+    /**
+     * Readable names of functions, by index in the tree.
+     */
+    private final String[] names;
+
+    private Profile(long instrs, Optional<Recorder> tree, String[] names) {
+        this.instrs = instrs;
+        this.tree = tree;
+        this.names = names;
+    }
+
+    /**
+     * Profile of a function.
+     */
+    public static final class Func {
+        /**
+         * Entry label name.
+         */
+        public final String name;
+
+        /**
+         * Readable name, like {@code Main.f}.
+         */
+        public final String prettyName;
+
+        /**
+         * Number of calls.
+         */
+        public long calls;
+
+        /**
+         * Number of instructions executed by the function itself.
+         */
+        public long self;
+
+        /**
+         * Number of instructions executed by the function and its callees. Instructions of a recursive call are
+         * counted once.
+         */
+        public long total;
+
+        /**
+         * Execution count of every basic block.
+         */
+        public final long[] blocks;
+
+        Func(String name, String prettyName, int numBlocks) {
+            this.name = name;
+            this.prettyName = prettyName;
+            this.blocks = new long[numBlocks];
+        }
+    }
+
+    /**
+     * Edge of the dynamic call graph.
+     */
+    public static final class Call {
+        public final String caller;
+
+        public final String callee;
+
+        public final long count;
+
+        Call(String caller, String callee, long count) {
+            this.caller = caller;
+            this.callee = callee;
+            this.count = count;
+        }
+    }
+
+    /**
+     * Indirect call site, identified by the block it is in and its order among indirect calls of the block. Only the
+     * first function it called is told apart from the others.
+     */
+    public static final class Site {
+        public final String func;
+
+        public final int block;
+
+        public final int ordinal;
+
+        /**
+         * The first function called.
+         */
+        public final String callee;
+
+        /**
+         * Number of calls to {@link #callee}.
+         */
+        public final long hits;
+
+        /**
+         * Number of calls.
+         */
+        public final long calls;
+
+        Site(String func, int block, int ordinal, String callee, long hits, long calls) {
+            this.func = func;
+            this.block = block;
+            this.ordinal = ordinal;
+            this.callee = callee;
+            this.hits = hits;
+            this.calls = calls;
+        }
+    }
+
+    /**
+     * Write the flat profile.
+     *
+     * @param pw print writer
+     */
+    public void printTo(PrintWriter pw) {
+        pw.format("# %d instructions executed%n", instrs);
+        pw.println("# calls\tself\tself %\ttotal\ttotal %\tfunction\tname");
+        for (var func : funcs.values()) {
+            pw.format("%d\t%d\t%.2f\t%d\t%.2f\t%s\t%s%n", func.calls, func.self, percent(func.self), func.total,
+                    percent(func.total), func.name, func.prettyName);
+        }
+
+        pw.println();
+        pw.println("# call graph: caller\tcallee\tcalls");
+        for (var call : calls) {
+            pw.format("call\t%s\t%s\t%d%n", call.caller, call.callee, call.count);
+        }
+
+        pw.println();
+        pw.println("# blocks: function\tindex\tcount");
+        for (var func : funcs.values()) {
+            for (var i = 0; i < func.blocks.length; i++) {
+                pw.format("block\t%s\t%d\t%d%n", func.name, i, func.blocks[i]);
+            }
+        }
+
+        pw.println();
+        pw.println("# indirect calls: function\tblock\tordinal\tcallee\thits\tcalls");
+        for (var site : sites) {
+            pw.format("icall\t%s\t%d\t%d\t%s\t%d\t%d%n", site.func, site.block, site.ordinal, site.callee, site.hits,
+                    site.calls);
+        }
+    }
+
+    /**
+     * Read a flat profile, as written by {@link #printTo}.
+     *
+     * @param path file
+     * @return profile
+     * @throws IOException if the file cannot be read, or is malformed
+     */
+    public static Profile read(Path path) throws IOException {
+        long instrs = 0;
+        var funcs = new ArrayList<String[]>();
+        var blocks = new HashMap<String, List<Long>>();
+        var calls = new ArrayList<Call>();
+        var sites = new ArrayList<Site>();
+
+        var lineNo = 0;
+        for (var line : Files.readAllLines(path)) {
+            lineNo++;
+            if (line.startsWith("#")) {
+                var header = line.substring(1).trim().split(" ", 2);
+                if (lineNo == 1 && header.length == 2 && header[1].equals("instructions executed")) {
+                    instrs = Long.parseLong(header[0]);
+                }
+                continue;
+            }
+            if (line.isBlank()) {
+                continue;
+            }
+
+            var fields = line.split("\t");
+            try {
+                switch (fields[0]) {
+                    case "call" -> {
+                        check(fields, 4, path, lineNo);
+                        calls.add(new Call(fields[1], fields[2], Long.parseLong(fields[3])));
+                    }
+                    case "block" -> {
+                        check(fields, 4, path, lineNo);
+                        var list = blocks.computeIfAbsent(fields[1], name -> new ArrayList<>());
+                        if (Integer.parseInt(fields[2]) != list.size()) {
+                            throw new IOException(String.format("%s:%d: malformed profile: blocks out of order", path,
+                                    lineNo));
+                        }
+                        list.add(Long.parseLong(fields[3]));
+                    }
+                    case "icall" -> {
+                        check(fields, 7, path, lineNo);
+                        sites.add(new Site(fields[1], Integer.parseInt(fields[2]), Integer.parseInt(fields[3]),
+                                fields[4], Long.parseLong(fields[5]), Long.parseLong(fields[6])));
+                    }
+                    default -> {
+                        check(fields, 7, path, lineNo);
+                        funcs.add(fields);
+                    }
+                }
+            } catch (NumberFormatException e) {
+                throw new IOException(String.format("%s:%d: malformed profile: %s", path, lineNo, e.getMessage()));
+            }
+        }
+
+        var profile = new Profile(instrs, Optional.empty(), new String[0]);
+        for (var fields : funcs) {
+            var counts = blocks.getOrDefault(fields[5], List.of());
+            var func = new Func(fields[5], fields[6], counts.size());
+            try {
+                func.calls = Long.parseLong(fields[0]);
+                func.self = Long.parseLong(fields[1]);
+                func.total = Long.parseLong(fields[3]);
+            } catch (NumberFormatException e) {
+                throw new IOException(String.format("%s: malformed profile: %s", path, e.getMessage()));
+            }
+            for (var i = 0; i < counts.size(); i++) {
+                func.blocks[i] = counts.get(i);
+            }
+            profile.funcs.put(func.name, func);
+        }
+        profile.calls.addAll(calls);
+        profile.sites.addAll(sites);
+        return profile;
+    }
+
+    private static void check(String[] fields, int count, Path path, int lineNo) throws IOException {
+        if (fields.length != count) {
+            throw new IOException(String.format("%s:%d: malformed profile: expect %d fields", path, lineNo, count));
+        }
+    }
+
+    /**
+     * Write the collapsed stacks.
+     *
+     * @param pw print writer
+     */
+    public void printFoldedTo(PrintWriter pw) {
+        if (tree.isEmpty()) {
+            return;
+        }
+
+        var tree = this.tree.get();
+        var stack = new StringBuilder();
+        var lengths = new int[tree.nodeCount];
+        tree.walk(node -> {
+            lengths[node] = stack.length();
+            if (stack.length() > 0) {
+                stack.append(';');
+            }
+            stack.append(names[tree.nodeFunc[node]]);
+            if (tree.nodeSelf[node] > 0) {
+                pw.append(stack).append(' ').println(tree.nodeSelf[node]);
+            }
+        }, node -> stack.setLength(lengths[node]));
+    }
+
+    /**
+     * Save to {@code <baseName>.prof} and {@code <baseName>.folded} in a directory. Failures are only logged.
+     *
+     * @param dir      directory
+     * @param baseName base name of the files
+     */
+    public void save(Path dir, String baseName) {
+        try (var pw = new PrintWriter(Files.newBufferedWriter(dir.resolve(baseName + ".prof")))) {
+            printTo(pw);
+        } catch (IOException e) {
+            Log.warn("cannot write profile: %s", e.getMessage());
+        }
+        try (var pw = new PrintWriter(Files.newBufferedWriter(dir.resolve(baseName + ".folded")))) {
+            printFoldedTo(pw);
+        } catch (IOException e) {
+            Log.warn("cannot write profile: %s", e.getMessage());
+        }
+    }
+
+    private double percent(long count) {
+        return instrs == 0 ? 0 : 100.0 * count / instrs;
+    }
+
+    /**
+     * Raw counters of a profiled execution, updated by the simulator: execution counts by instruction address, and
+     * the calling context tree, with the number of calls to and instructions executed in every node.
+     */
+    static final class Recorder {
+        /**
+         * Execution count of every instruction.
+         */
+        final long[] hits;
+
+        /**
+         * How many times every branch jumped.
+         */
+        final long[] taken;
+
+        int[] nodeFunc = new int[64], nodeParent = new int[64], nodeChild = new int[64], nodeSibling = new int[64];
+
+        long[] nodeSelf = new long[64], nodeCalls = new long[64];
+
+        int nodeCount = 1;
+
+        /**
+         * The first function called by every indirect call, or -1, and the number of calls to it.
+         */
+        final int[] siteCallee;
+
+        final long[] siteHits;
+
+        /**
+         * Node of the frame at each depth of the call stack.
+         */
+        private int[] context = new int[64];
+
+        /**
+         * Node of the current frame.
+         */
+        int node;
+
+        Recorder(int codeSize) {
+            hits = new long[codeSize];
+            taken = new long[codeSize];
+            siteCallee = new int[codeSize];
+            siteHits = new long[codeSize];
+            Arrays.fill(siteCallee, -1);
+            nodeFunc[0] = -1;
+            nodeParent[0] = -1;
+            nodeChild[0] = -1;
+            nodeSibling[0] = -1;
+        }
+
+        /**
+         * A function is called, and its frame is at the given depth.
+         *
+         * @param func  function index
+         * @param depth depth of the callee's frame
+         */
+        void enter(int func, int depth) {
+            var child = nodeChild[node];
+            while (child != -1 && nodeFunc[child] != func) {
+                child = nodeSibling[child];
+            }
+            if (child == -1) {
+                child = newNode(func, node);
+            }
+            nodeCalls[child]++;
+
+            if (depth == context.length) {
+                context = Arrays.copyOf(context, depth * 2);
+            }
+            context[depth] = node = child;
+        }
+
+        /**
+         * An indirect call is executed.
+         *
+         * @param addr address of the call
+         * @param func function index of the callee
+         */
+        void indirectCall(int addr, int func) {
+            if (siteCallee[addr] == -1) {
+                siteCallee[addr] = func;
+            }
+            if (siteCallee[addr] == func) {
+                siteHits[addr]++;
+            }
+        }
+
+        /**
+         * A function returns to the frame at the given depth.
+         *
+         * @param depth depth of the caller's frame, -1 if none
+         */
+        void exit(int depth) {
+            node = depth >= 0 ? context[depth] : 0;
+        }
+
+        private int newNode(int func, int parent) {
+            var node = nodeCount++;
+            if (node == nodeFunc.length) {
+                var capacity = node * 2;
+                nodeFunc = Arrays.copyOf(nodeFunc, capacity);
+                nodeParent = Arrays.copyOf(nodeParent, capacity);
+                nodeChild = Arrays.copyOf(nodeChild, capacity);
+                nodeSibling = Arrays.copyOf(nodeSibling, capacity);
+                nodeSelf = Arrays.copyOf(nodeSelf, capacity);
+                nodeCalls = Arrays.copyOf(nodeCalls, capacity);
+            }
+            nodeFunc[node] = func;
+            nodeParent[node] = parent;
+            nodeChild[node] = -1;
+            nodeSibling[node] = nodeChild[parent];
+            nodeChild[parent] = node;
+            return node;
+        }
+
+        /**
+         * Depth-first walk of the calling context tree, except the root, without recursion.
+         *
+         * @param enter called on a node before its children
+         * @param exit  called on a node after its children
+         */
+        void walk(IntConsumer enter, IntConsumer exit) {
+            var node = nodeChild[0];
+            while (node > 0) {
+                enter.accept(node);
+                if (nodeChild[node] != -1) {
+                    node = nodeChild[node];
+                    continue;
+                }
+                while (node > 0) {
+                    exit.accept(node);
+                    if (nodeSibling[node] != -1) {
+                        node = nodeSibling[node];
+                        break;
+                    }
+                    node = nodeParent[node];
+                }
+            }
+        }
+
+        /**
+         * Build the profile.
+         *
+         * @param instrs   total number of instructions executed
+         * @param funcs    functions, by index
+         * @param funcAddr address of the entry instruction of every function
+         * @return profile
+         */
+        Profile build(long instrs, TacFunc[] funcs, int[] funcAddr) {
+            var names = new String[funcs.length];
+            for (var i = 0; i < funcs.length; i++) {
+                names[i] = funcs[i].entry.clazz + "." + funcs[i].entry.method;
+            }
+            var profile = new Profile(instrs, Optional.of(this), names);
+
+            // Functions and their blocks
+            var infos = new Func[funcs.length];
+            for (var i = 0; i < funcs.length; i++) {
+                infos[i] = blocksOf(funcs[i], funcAddr[i], funcs, profile.sites);
+                profile.funcs.put(infos[i].name, infos[i]);
+            }
+
+            // Calls and instructions, by function and by edge of the call graph
+            var edges = new LinkedHashMap<Long, long[]>();
+            for (var node = 1; node < nodeCount; node++) {
+                var info = infos[nodeFunc[node]];
+                info.calls += nodeCalls[node];
+                info.self += nodeSelf[node];
+                if (nodeParent[node] != 0) {
+                    var key = (long) nodeFunc[nodeParent[node]] * funcs.length + nodeFunc[node];
+                    edges.computeIfAbsent(key, k -> new long[1])[0] += nodeCalls[node];
+                }
+            }
+            edges.forEach((key, count) -> profile.calls.add(new Call(infos[(int) (key / funcs.length)].name,
+                    infos[(int) (key % funcs.length)].name, count[0])));
+
+            // Inclusive counts: count a subtree only if no ancestor is of the same function
+            var subtree = Arrays.copyOf(nodeSelf, nodeCount);
+            for (var node = nodeCount - 1; node > 0; node--) {
+                subtree[nodeParent[node]] += subtree[node];
+            }
+            var active = new int[funcs.length];
+            walk(node -> {
+                if (active[nodeFunc[node]]++ == 0) {
+                    infos[nodeFunc[node]].total += subtree[node];
+                }
+            }, node -> active[nodeFunc[node]]--);
+
+            return profile;
+        }
+
+        /**
+         * Execution counts of the basic blocks of a function, numbered like {@link decaf.backend.dataflow.CFGBuilder}
+         * does. The count of a non-empty block is that of its first instruction; an empty one (a label followed by
+         * another) is entered by falling through from the previous block, or by jumping to its label.
+         */
+        private Func blocksOf(TacFunc func, int addr, TacFunc[] funcs, List<Site> sites) {
+            var first = new ArrayList<Integer>(); // address of the first instruction of every block, or -1
+            var last = new ArrayList<TacInstr>(); // last instruction of every block, if any
+            var lastAddr = new ArrayList<Integer>();
+            var labels = new HashMap<String, Integer>();
+            var open = false;
+            var ordinal = 0; // of the next indirect call in the block
+            for (var instr : func.getInstrSeq()) {
+                if (instr.isLabel()) {
+                    if (!instr.label.isFunc()) {
+                        if (!open) { // an empty block
+                            first.add(-1);
+                            last.add(null);
+                            lastAddr.add(-1);
+                        }
+                        open = false;
+                        labels.put(instr.label.name, first.size());
+                    }
+                    continue;
+                }
+
+                if (!open) {
+                    first.add(instr instanceof TacInstr.Memo ? -1 : addr);
+                    last.add(null);
+                    lastAddr.add(-1);
+                    open = true;
+                    ordinal = 0;
+                }
+                if (instr instanceof TacInstr.Memo) {
+                    continue;
+                }
+                var block = first.size() - 1;
+                if (first.get(block) == -1) {
+                    first.set(block, addr);
+                }
+                if (instr instanceof TacInstr.IndirectCall) {
+                    if (siteCallee[addr] != -1) {
+                        sites.add(new Site(func.entry.name, block, ordinal, funcs[siteCallee[addr]].entry.name,
+                                siteHits[addr], hits[addr]));
+                    }
+                    ordinal++;
+                }
+                last.set(block, instr);
+                lastAddr.set(block, addr);
+                if (!instr.isSequential()) {
+                    open = false;
+                }
+                addr++;
+            }
+
+            var info = new Func(func.entry.name, func.entry.clazz + "." + func.entry.method, first.size());
+            var jumps = new long[first.size()];
+            for (var block = 0; block < first.size(); block++) {
+                var instr = last.get(block);
+                if (instr != null && (instr.kind == TacInstr.Kind.JMP || instr.kind == TacInstr.Kind.COND_JMP)) {
+                    var target = labels.get(instr.label.name);
+                    if (target != null) {
+                        jumps[target] += instr.kind == TacInstr.Kind.JMP ? hits[lastAddr.get(block)]
+                                : taken[lastAddr.get(block)];
+                    }
+                }
+            }
+            for (var block = 0; block < first.size(); block++) {
+                if (first.get(block) != -1) {
+                    info.blocks[block] = hits[first.get(block)];
+                } else if (block > 0) {
+                    var prev = last.get(block - 1);
+                    long fallThrough;
+                    if (prev == null || prev.isSequential()) {
+                        fallThrough = info.blocks[block - 1];
+                    } else if (prev.kind == TacInstr.Kind.COND_JMP) {
+                        fallThrough = hits[lastAddr.get(block - 1)] - taken[lastAddr.get(block - 1)];
+                    } else {
+                        fallThrough = 0;
+                    }
+                    info.blocks[block] = fallThrough + jumps[block];
+                }
+            }
+            return info;
+        }
+    }
+}
@@ -1,13 +1,15 @@
 package decaf.lowlevel.tac;
 
-import decaf.lowlevel.instr.Temp;
 import decaf.lowlevel.label.FuncLabel;
 import decaf.lowlevel.label.IntrinsicLabel;
 import decaf.lowlevel.label.Label;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.nio.charset.Charset;
 import java.util.*;
 
 /**
@@ -22,64 +24,242 @@ public final class Simulator {
      * @param out simulator's stdout
      */
     public Simulator(InputStream in, OutputStream out) {
+        this(in, out, UNLIMITED);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param in        simulator's stdin
+     * @param out       simulator's stdout
+     * @param heapLimit max. heap size in bytes, or {@link #UNLIMITED}
+     */
+    public Simulator(InputStream in, OutputStream out, int heapLimit) {
         _in = in;
         _out = new PrintWriter(out);
+        _heap_limit = heapLimit;
+    }
+
+    /**
+     * No limit on heap size.
+     */
+    public static final int UNLIMITED = 0;
+
+    /**
+     * Profile of the last execution, if it is profiled.
+     *
+     * @return profile
+     */
+    public Optional<Profile> getProfile() {
+        return _profile;
+    }
+
+    /**
+     * Garbage collection statistics of the last execution.
+     *
+     * @return statistics
+     */
+    public GcStats getGcStats() {
+        return _gc_stats;
     }
 
     /**
      * Execute a TAC program.
      *
      * @param program TAC program
+     * @return number of instructions executed
      */
     public int execute(TacProg program) {
+        return execute(program, false);
+    }
+
+    /**
+     * Execute a TAC program, and profile it if asked. Profiling costs a few counters per instruction and per call.
+     *
+     * @param program   TAC program
+     * @param profiling whether to profile
+     * @return number of instructions executed
+     * @see #getProfile()
+     */
+    public int execute(TacProg program, boolean profiling) {
         // Initialize
-        _memory = new Memory();
+        _memory = new Memory(_heap_limit);
+        _gc_stats = new GcStats();
         _string_pool = new StringPool();
-        _vtable_to_addr = new TreeMap<>();
-        _instrs = new Vector<>();
-        _label_to_addr = new TreeMap<>();
-        _addr_to_function = new TreeMap<>();
-        _call_stack = new Stack<>();
-        _actual_args = new Vector<>();
-        _label_to_function = new TreeMap<>();
+        _values = new int[1024];
+        _fp = _top = 0;
+        _frame_base = new int[64];
+        _frame_top = new int[64];
+        _ret_dst = new int[64];
+        _pc_next = new int[64];
+        _depth = 0;
+        _actual_args = new int[16];
+        _arg_count = 0;
+
+        link(program);
+        var profiler = profiling ? new Profile.Recorder(_code.length) : null;
+        _profiler = profiler;
+        _profile = Optional.empty();
+
+        // Initialize call stack and push the frame of main function
+        var main = _label_to_function.get(FuncLabel.MAIN_LABEL.name);
+        if (main == null) {
+            throw new Error("No legal main function found");
+        }
+
+        push(main);
+        _pc = _func_addr[main];
+
+        // Execute
+        var executor = new InstrExecutor();
+        var count = 0;
+        _halt = false;
+        _input = new Input();
+
+        try {
+            while (_depth > 0) {
+                if (count >= 10000000) {
+                    throw new Error(
+                            "Max instruction limitation 10,000,000 exceeds, maybe your program cannot terminate?");
+                }
+
+                if (_halt)
+                    break;
+
+                if (profiler != null) {
+                    profiler.hits[_pc]++;
+                    profiler.nodeSelf[profiler.node]++;
+                }
+                _code[_pc].accept(executor);
+                count++;
+            }
+        } finally {
+            _out.flush();
+        }
+
+        if (profiler != null) {
+            _profile = Optional.of(profiler.build(count, _funcs, _func_addr));
+            _profiler = null;
+        }
+        return count;
+    }
+
+    /**
+     * Link a program: allocate and fill in vtables, lay out instructions, and resolve every label, vtable and string
+     * an instruction refers to, so that execution never looks up anything by name.
+     *
+     * @param program TAC program
+     */
+    private void link(TacProg program) {
+        var vtableToAddr = new HashMap<String, Integer>();
+        var labelToAddr = new HashMap<String, Integer>();
+        _label_to_function = new HashMap<>();
 
         // Allocate vtables
         for (VTable vtbl : program.vtables) {
             var addr = _memory.alloc(vtbl.getSize());
-            _vtable_to_addr.put(vtbl.label.name, addr);
+            vtableToAddr.put(vtbl.label.name, addr);
         }
 
         // Load instructions
-        var addr = 0;
+        var code = new ArrayList<TacInstr>();
+        _funcs = new TacFunc[program.funcs.size()];
+        _func_addr = new int[program.funcs.size()];
+        _func_temps = new int[program.funcs.size()];
+        var index = 0;
         for (var func : program.funcs) {
-            // Meet a function: label -> func, label -> addr, addr -> func
-            _label_to_function.put(func.entry.name, func);
-            _addr_to_function.put(addr, func);
+            // Meet a function: label -> func, func -> addr
+            _label_to_function.put(func.entry.name, index);
+            _funcs[index] = func;
+            _func_addr[index] = code.size();
+            _func_temps[index] = func.getUsedTempCount();
+            index++;
 
             // Add every non-pseudo instruction, and record labels if necessary
             for (var instr : func.getInstrSeq()) {
                 if (instr.isLabel()) { // meet a label
                     var lbl = instr.label;
-                    _label_to_addr.put(lbl.name, addr);
-                } else {
-                    _instrs.add(instr);
-                    addr++;
+                    labelToAddr.put(lbl.name, code.size());
+                } else if (!(instr instanceof TacInstr.Memo)) {
+                    code.add(instr);
                 } // else: memo, ignore
             }
 
             // Check if the last instruction is RETURN
-            if (!_instrs.lastElement().isReturn()) {
+            if (code.isEmpty() || !code.get(code.size() - 1).isReturn()) {
                 throw new Error(String.format("In TAC function %s: the last instruction must be return",
                         func.entry.prettyString()));
             }
         }
 
+        _code = code.toArray(new TacInstr[0]);
+        _addr_to_function = new int[_code.length];
+        Arrays.fill(_addr_to_function, -1);
+        for (var i = 0; i < _funcs.length; i++) {
+            _addr_to_function[_func_addr[i]] = i;
+        }
+
+        // Resolve operands
+        _link = new int[_code.length];
+        var resolver = new TacInstr.Visitor() {
+            int addr;
+
+            int resolve(Label label) {
+                var target = labelToAddr.get(label.name);
+                if (target == null) {
+                    throw new Error("Undefined label " + label.prettyString());
+                }
+                return target;
+            }
+
+            @Override
+            public void visitLoadVTbl(TacInstr.LoadVTbl instr) {
+                var target = vtableToAddr.get(instr.vtbl.label.name);
+                if (target == null) {
+                    throw new Error("Undefined virtual table " + instr.vtbl.label.prettyString());
+                }
+                _link[addr] = target;
+            }
+
+            @Override
+            public void visitLoadStrConst(TacInstr.LoadStrConst instr) {
+                _link[addr] = _string_pool.add(instr.value);
+            }
+
+            @Override
+            public void visitBranch(TacInstr.Branch instr) {
+                _link[addr] = resolve(instr.target);
+            }
+
+            @Override
+            public void visitCondBranch(TacInstr.CondBranch instr) {
+                _link[addr] = resolve(instr.target);
+            }
+
+            @Override
+            public void visitDirectCall(TacInstr.DirectCall instr) {
+                if (instr.entry.isIntrinsic()) {
+                    _link[addr] = -1;
+                    return;
+                }
+
+                var func = _label_to_function.get(instr.entry.name);
+                if (func == null) {
+                    throw new Error("Undefined function " + instr.entry.prettyString());
+                }
+                _link[addr] = func;
+            }
+        };
+        for (resolver.addr = 0; resolver.addr < _code.length; resolver.addr++) {
+            _code[resolver.addr].accept(resolver);
+        }
+
         // Fill in vtables
         for (VTable vtbl : program.vtables) {
-            addr = _vtable_to_addr.get(vtbl.label.name);
+            var addr = vtableToAddr.get(vtbl.label.name);
             var offset = 0;
 
-            var parentAddr = vtbl.parent.map(pv -> _vtable_to_addr.get(pv.label.name)).orElse(0);
+            var parentAddr = vtbl.parent.map(pv -> vtableToAddr.get(pv.label.name)).orElse(0);
             _memory.store(parentAddr, addr, offset);
             offset += 4;
 
@@ -88,44 +268,35 @@ public final class Simulator {
             offset += 4;
 
             for (var item : vtbl.getItems()) {
-                _memory.store(_label_to_addr.get(item.name), addr, offset);
+                var func = _label_to_function.get(item.name);
+                if (func == null) {
+                    throw new Error("Undefined function " + item.prettyString());
+                }
+                _memory.store(_func_addr[func], addr, offset);
                 offset += 4;
             }
         }
+        _memory.pin();
+    }
 
-        // Initialize call stack and push the frame of main function
-        if (!_label_to_function.containsKey(FuncLabel.MAIN_LABEL.name)) {
-            throw new Error("No legal main function found");
-        }
-
-        var frame = new Frame(_label_to_function.get(FuncLabel.MAIN_LABEL.name));
-        _call_stack.push(frame);
-        _pc = _label_to_addr.get(FuncLabel.MAIN_LABEL.name);
-
-        // Execute
-        var executor = new InstrExecutor();
-        var count = 0;
-        _halt = false;
+    /**
+     * IO. Output is buffered, and flushed when the program terminates or is about to wait for input.
+     */
+    private final InputStream _in;
+    private final PrintWriter _out;
 
-        while (!_call_stack.isEmpty()) {
-            if (count >= 10000000) {
-                throw new Error("Max instruction limitation 10,000,000 exceeds, maybe your program cannot terminate?");
-            }
+    private Input _input;
 
-            if (_halt)
-                break;
+    private final int _heap_limit;
 
-            _instrs.get(_pc).accept(executor);
-            count++;
-        }
-        return count;
-    }
+    private GcStats _gc_stats;
 
     /**
-     * IO.
+     * Counters of the execution being profiled, if any.
      */
-    private final InputStream _in;
-    private final PrintWriter _out;
+    private Profile.Recorder _profiler;
+
+    private Optional<Profile> _profile = Optional.empty();
 
     /**
      * Memory.
@@ -138,40 +309,73 @@ public final class Simulator {
     private StringPool _string_pool;
 
     /**
-     * Look up a vtable's address in memory by its name.
+     * Simulate instruction memory. The "address" is simply the index of this array.
+     */
+    private TacInstr[] _code;
+
+    /**
+     * Operand of the instruction at each address, resolved at link time: the target address of a branch, the index
+     * of the function called by a direct call ({@code -1} for an intrinsic), the address of a loaded vtable, or the
+     * string pool index of a loaded string constant.
      */
-    private Map<String, Integer> _vtable_to_addr;
+    private int[] _link;
 
     /**
-     * Simulate instruction memory. The "address" is simply the index of this vector.
+     * Functions, by index.
      */
-    private Vector<TacInstr> _instrs;
+    private TacFunc[] _funcs;
 
     /**
-     * Look up a label's address in instruction memory by its name.
+     * Address of the entry instruction of a function, by index.
      */
-    private Map<String, Integer> _label_to_addr;
+    private int[] _func_addr;
 
     /**
-     * Look up a function by its entry label.
+     * Number of temps used by a function, by index.
      */
-    private Map<String, TacFunc> _label_to_function;
+    private int[] _func_temps;
 
     /**
-     * Look up a function by the address of its entry instruction.
+     * Look up a function's index by its entry label.
      */
-    private Map<Integer, TacFunc> _addr_to_function;
+    private Map<String, Integer> _label_to_function;
 
     /**
-     * Call stack, consists of frames.
+     * Look up a function's index by the address of its entry instruction, or {@code -1} if it is not one.
      */
-    private Stack<Frame> _call_stack;
+    private int[] _addr_to_function;
 
     /**
-     * Temporarily save the actual arguments given by the PARM instruction. These will be erased once a new stack
+     * Value stack: the local temps of every live frame, contiguous. A frame is the window
+     * {@code [_frame_base[d], _frame_top[d])} of it, where {@code d} is the frame's depth in the call stack.
+     */
+    private int[] _values;
+
+    /**
+     * Base and top of the current frame in {@link #_values}, i.e. those of the innermost one.
+     */
+    private int _fp, _top;
+
+    /**
+     * Call stack, as parallel arrays indexed by depth. Only the first {@link #_depth} entries are live.
+     */
+    private int[] _frame_base, _frame_top;
+
+    /**
+     * Save, for each caller: which temp to write the return value ({@code -1} if none), and the address of the next
+     * instruction to be executed once the function call returns.
+     */
+    private int[] _ret_dst, _pc_next;
+
+    private int _depth;
+
+    /**
+     * Temporarily save the actual arguments given by the PARM instruction. These will be erased once a new frame
      * is created.
      */
-    private Vector<Integer> _actual_args;
+    private int[] _actual_args;
+
+    private int _arg_count;
 
     /**
      * Program counter: point to the address of the instruction being executed.
@@ -184,43 +388,34 @@ public final class Simulator {
     private boolean _halt;
 
     /**
-     * Stack frame.
+     * Push the frame of a function and move the actual arguments into its first temps.
+     *
+     * @param func function index
      */
-    private class Frame {
-        /**
-         * The function entry.
-         */
-        final Label entry;
-
-        /**
-         * An array to store values of local temps.
-         */
-        int[] array;
-
-        /**
-         * Save: which temp to write the return value.
-         */
-        Temp retValDst;
-
-        /**
-         * Save: the address of the next instruction to be executed once the function call returns.
-         */
-        int pcNext;
-
-        Frame(Label entry, int arraySize) {
-            this.entry = entry;
-            this.array = new int[arraySize];
-            var i = 0;
-            for (var arg : _actual_args) { // copy actual arguments
-                this.array[i] = arg;
-                i++;
-            }
-            _actual_args.clear(); // it will save args for future calls
+    private void push(int func) {
+        var base = _top;
+        var top = base + Math.max(_func_temps[func], _arg_count);
+        if (top > _values.length) {
+            _values = Arrays.copyOf(_values, Math.max(top, _values.length * 2));
         }
+        if (_depth == _frame_base.length) {
+            var capacity = _depth * 2;
+            _frame_base = Arrays.copyOf(_frame_base, capacity);
+            _frame_top = Arrays.copyOf(_frame_top, capacity);
+            _ret_dst = Arrays.copyOf(_ret_dst, capacity);
+            _pc_next = Arrays.copyOf(_pc_next, capacity);
+        }
+
+        System.arraycopy(_actual_args, 0, _values, base, _arg_count);
+        Arrays.fill(_values, base + _arg_count, top, 0);
+        _arg_count = 0; // it will save args for future calls
 
-        Frame(TacFunc func) {
-            this(func.entry, func.getUsedTempCount());
+        _frame_base[_depth] = _fp = base;
+        _frame_top[_depth] = _top = top;
+        if (_profiler != null) {
+            _profiler.enter(func, _depth);
         }
+        _depth++;
     }
 
     /**
@@ -229,42 +424,36 @@ public final class Simulator {
     private class InstrExecutor implements TacInstr.Visitor {
         @Override
         public void visitAssign(TacInstr.Assign instr) {
-            var frame = _call_stack.peek();
-            frame.array[instr.dst.index] = frame.array[instr.src.index];
+            _values[_fp + instr.dst.index] = _values[_fp + instr.src.index];
 
             _pc++;
         }
 
         @Override
         public void visitLoadVTbl(TacInstr.LoadVTbl instr) {
-            var frame = _call_stack.peek();
-            frame.array[instr.dst.index] = _vtable_to_addr.get(instr.vtbl.label.name);
+            _values[_fp + instr.dst.index] = _link[_pc];
 
             _pc++;
         }
 
         @Override
         public void visitLoadImm4(TacInstr.LoadImm4 instr) {
-            var frame = _call_stack.peek();
-            frame.array[instr.dst.index] = instr.value;
+            _values[_fp + instr.dst.index] = instr.value;
 
             _pc++;
         }
 
         @Override
         public void visitLoadStrConst(TacInstr.LoadStrConst instr) {
-            var frame = _call_stack.peek();
-            var index = _string_pool.add(instr.value);
-            frame.array[instr.dst.index] = index;
+            _values[_fp + instr.dst.index] = _link[_pc];
 
             _pc++;
         }
 
         @Override
         public void visitUnary(TacInstr.Unary instr) {
-            var frame = _call_stack.peek();
-            int operand = frame.array[instr.operand.index];
-            frame.array[instr.dst.index] = switch (instr.op) {
+            int operand = _values[_fp + instr.operand.index];
+            _values[_fp + instr.dst.index] = switch (instr.op) {
                 case NEG -> -operand;
                 case LNOT -> (operand == 0) ? 1 : 0;
             };
@@ -274,10 +463,9 @@ public final class Simulator {
 
         @Override
         public void visitBinary(TacInstr.Binary instr) {
-            var frame = _call_stack.peek();
-            var lhs = frame.array[instr.lhs.index];
-            var rhs = frame.array[instr.rhs.index];
-            frame.array[instr.dst.index] = switch (instr.op) {
+            var lhs = _values[_fp + instr.lhs.index];
+            var rhs = _values[_fp + instr.rhs.index];
+            _values[_fp + instr.dst.index] = switch (instr.op) {
                 case ADD -> lhs + rhs;
                 case SUB -> lhs - rhs;
                 case MUL -> lhs * rhs;
@@ -298,19 +486,21 @@ public final class Simulator {
 
         @Override
         public void visitBranch(TacInstr.Branch instr) {
-            _pc = _label_to_addr.get(instr.target.name);
+            _pc = _link[_pc];
         }
 
         @Override
         public void visitCondBranch(TacInstr.CondBranch instr) {
-            var frame = _call_stack.peek();
             var jump = switch (instr.op) {
-                case BEQZ -> frame.array[instr.cond.index] == 0;
-                case BNEZ -> frame.array[instr.cond.index] != 0;
+                case BEQZ -> _values[_fp + instr.cond.index] == 0;
+                case BNEZ -> _values[_fp + instr.cond.index] != 0;
             };
 
             if (jump) {
-                _pc = _label_to_addr.get(instr.target.name);
+                if (_profiler != null) {
+                    _profiler.taken[_pc]++;
+                }
+                _pc = _link[_pc];
             } else {
                 _pc++;
             }
@@ -318,29 +508,38 @@ public final class Simulator {
 
         @Override
         public void visitReturn(TacInstr.Return instr) {
-            var value = instr.value.map(temp -> _call_stack.peek().array[temp.index]);
-            returnWith(value);
+            if (instr.value.isPresent()) {
+                returnWith(true, _values[_fp + instr.value.get().index]);
+            } else {
+                returnWith(false, 0);
+            }
         }
 
-        private void returnWith(Optional<Integer> value) {
+        private void returnWith(boolean hasValue, int value) {
             // Destroy the callee's frame
-            _call_stack.pop();
+            _depth--;
+            if (_profiler != null) {
+                _profiler.exit(_depth - 1);
+            }
 
             // Recover caller's state, if the caller exists
-            if (!_call_stack.isEmpty()) {
-                var frame = _call_stack.peek();
-                value.ifPresent(v -> {
-                    if(frame.retValDst != null)
-                        frame.array[frame.retValDst.index] = v;
-                });
-                _pc = _call_stack.peek().pcNext;
+            if (_depth > 0) {
+                var caller = _depth - 1;
+                _fp = _frame_base[caller];
+                _top = _frame_top[caller];
+                if (hasValue && _ret_dst[caller] >= 0) {
+                    _values[_fp + _ret_dst[caller]] = value;
+                }
+                _pc = _pc_next[caller];
             } // else: the entire program terminates
         }
 
         @Override
         public void visitParm(TacInstr.Parm instr) {
-            var frame = _call_stack.peek();
-            _actual_args.add(frame.array[instr.value.index]);
+            if (_arg_count == _actual_args.length) {
+                _actual_args = Arrays.copyOf(_actual_args, _arg_count * 2);
+            }
+            _actual_args[_arg_count++] = _values[_fp + instr.value.index];
 
             _pc++;
         }
@@ -348,80 +547,87 @@ public final class Simulator {
         @Override
         public void visitIndirectCall(TacInstr.IndirectCall instr) {
             // Save caller's state
-            var frame = _call_stack.peek();
-            frame.pcNext = _pc + 1;
-            frame.retValDst = instr.dst.orElse(null);
+            var caller = _depth - 1;
+            _pc_next[caller] = _pc + 1;
+            _ret_dst[caller] = instr.dst.isPresent() ? instr.dst.get().index : -1;
 
             // Create callee's frame and invoke
-            var addr = frame.array[instr.entry.index];
-            var func = _addr_to_function.get(addr);
-            _call_stack.push(new Frame(func));
+            var addr = _values[_fp + instr.entry.index];
+            var func = addr >= 0 && addr < _code.length ? _addr_to_function[addr] : -1;
+            if (func < 0) {
+                throw new Error("Not a function address: " + addr);
+            }
+            if (_profiler != null) {
+                _profiler.indirectCall(_pc, func);
+            }
+            push(func);
             _pc = addr;
         }
 
         @Override
         public void visitDirectCall(TacInstr.DirectCall instr) {
             // Save caller's state
-            var frame = _call_stack.peek();
-            frame.pcNext = _pc + 1;
-            frame.retValDst = instr.dst.orElse(null);
+            var caller = _depth - 1;
+            _pc_next[caller] = _pc + 1;
+            _ret_dst[caller] = instr.dst.isPresent() ? instr.dst.get().index : -1;
 
             // Create callee's frame and invoke
-            if (instr.entry.isIntrinsic()) { // special: call intrinsic
-                var il = (IntrinsicLabel) instr.entry;
-                _call_stack.push(new Frame(il, 2));
-                callIntrinsic(il.opcode);
+            var func = _link[_pc];
+            if (func < 0) { // special: call intrinsic, which needs no frame
+                callIntrinsic(((IntrinsicLabel) instr.entry).opcode);
             } else {
-                var func = _label_to_function.get(instr.entry.name);
-                _call_stack.push(new Frame(func));
-                _pc = _label_to_addr.get(instr.entry.name);
+                push(func);
+                _pc = _func_addr[func];
             }
         }
 
         private void callIntrinsic(Intrinsic.Opcode opcode) {
-            var frame = _call_stack.peek();
-            Optional<Integer> retVal = Optional.empty();
+            var args = _actual_args;
+            _arg_count = 0;
+            var hasRetVal = true;
+            var retVal = 0;
 
             switch (opcode) {
-                case ALLOCATE -> retVal = Optional.of(_memory.alloc(frame.array[0]));
+                case ALLOCATE -> retVal = _memory.alloc(args[0]);
                 case READ_LINE -> {
-                    var scanner = new Scanner(_in);
-                    var str = scanner.nextLine();
+                    var str = _input.nextLine();
                     assert str.length() <= 63;
-                    retVal = Optional.of(_string_pool.add(str));
+                    retVal = _string_pool.add(str);
                 }
-                case READ_INT -> {
-                    var scanner = new Scanner(_in);
-                    var value = scanner.nextInt();
-                    retVal = Optional.of(value);
-                }
-                case STRING_EQUAL -> retVal = Optional.of(frame.array[0] == frame.array[1] ? 1 : 0);
+                case READ_INT -> retVal = _input.nextInt();
+                case STRING_EQUAL -> retVal = args[0] == args[1] ? 1 : 0;
                 case PRINT_INT -> {
-                    _out.print(frame.array[0]);
-                    _out.flush();
+                    hasRetVal = false;
+                    _out.print(args[0]);
                 }
                 case PRINT_STRING -> {
-                    _out.print(_string_pool.get(frame.array[0]));
-                    _out.flush();
+                    hasRetVal = false;
+                    _out.print(_string_pool.get(args[0]));
                 }
                 case PRINT_BOOL -> {
-                    _out.print(frame.array[0] == 0 ? "false" : "true");
-                    _out.flush();
+                    hasRetVal = false;
+                    _out.print(args[0] == 0 ? "false" : "true");
+                }
+                case HALT -> {
+                    hasRetVal = false;
+                    _halt = true;
                 }
-                case HALT -> _halt = true;
             }
 
-            returnWith(retVal);
+            var caller = _depth - 1;
+            if (hasRetVal && _ret_dst[caller] >= 0) {
+                _values[_fp + _ret_dst[caller]] = retVal;
+            }
+            _pc = _pc_next[caller];
         }
 
         @Override
         public void visitMemory(TacInstr.Memory instr) {
-            var frame = _call_stack.peek();
-            int base = frame.array[instr.base.index];
+            int base = _values[_fp + instr.base.index];
             int offset = instr.offset;
             switch (instr.op) {
-                case LOAD -> frame.array[instr.dst.index] = _memory.load(base, offset);
-                case STORE -> _memory.store(frame.array[instr.dst.index], base, offset);
+                case LOAD -> _values[_fp + instr.dst.index] = _memory.load(base, offset);
+                case STORE -> _memory.store(_values[_fp + instr.dst.index], base, offset);
             }
 
             _pc++;
@@ -430,29 +636,91 @@ public final class Simulator {
 
     /**
      * Memory.
+     * <p>
+     * Unreachable blocks are reclaimed by a conservative, non-moving mark-sweep collector. TAC has no types, so any
+     * word, in a frame or in a block, whose value is the address of a word in a block keeps the entire block alive;
+     * pointers into the middle of a block (say, to the first element of an array) are thus fine. Vtables are never
+     * collected. A collection runs when the heap would grow beyond a threshold, which is twice the live data of the
+     * previous one, but at least {@link #INITIAL_THRESHOLD} words.
      */
     private class Memory {
         /**
-         * Don't start from address 0, because 0 is reserved as the null pointer.
+         * Owner of words which are not in any block: the reserved ones, and freed ones.
+         */
+        private static final int FREE = 0;
+
+        private static final int INITIAL_THRESHOLD = 1 << 20;
+
+        /**
+         * Words of memory: the word at address {@code 4 * i} is {@code mem[i]}. Don't start from address 0, because 0
+         * is reserved as the null pointer.
+         */
+        private int[] mem = new int[1024];
+
+        /**
+         * The first word of the memory block each word belongs to, or {@link #FREE}. Blocks are contiguous, so two
+         * words are in the same block if and only if they have the same owner.
+         */
+        private int[] owner = new int[1024];
+
+        /**
+         * Number of words in the heap, including the reserved ones and freed ones.
          */
         private int currentSize = 4;
 
-        private class Block implements Comparable<Block> {
+        /**
+         * Max. number of words in the heap.
+         */
+        private final int limit;
 
-            public int start;
+        /**
+         * Collect before the heap grows beyond so many words.
+         */
+        private int threshold;
 
-            public int[] mem;
+        /**
+         * Words before this are never collected.
+         */
+        private int pinned = 4;
 
-            @Override
-            public int compareTo(Block o) {
-                return start > o.start ? 1 : start == o.start ? 0 : -1;
-            }
+        /**
+         * Runs of free words, in address order: {@code [freeStart[i], freeStart[i] + freeLength[i])}.
+         */
+        private int[] freeStart = new int[16], freeLength = new int[16];
+
+        private int freeCount;
+
+        /**
+         * Where the last allocation from a free run took place, to start searching from next time.
+         */
+        private int rover;
+
+        /**
+         * Upper bound of the length of free runs.
+         */
+        private int maxFree;
+
+        /**
+         * Mark bits, by the first word of a block.
+         */
+        private long[] marks = new long[16];
+
+        /**
+         * Blocks marked but not yet scanned.
+         */
+        private int[] worklist = new int[64];
+
+        Memory(int heapLimit) {
+            limit = heapLimit == UNLIMITED ? Integer.MAX_VALUE / 4 : heapLimit / 4;
+            threshold = Math.min(INITIAL_THRESHOLD, limit);
         }
 
         /**
-         * A heap is a list of memory blocks. It stores the actual data.
+         * Never collect the blocks allocated so far.
          */
-        private List<Block> heap = new ArrayList<>();
+        void pin() {
+            pinned = currentSize;
+        }
 
         /**
          * Allocate memory in bytes.
@@ -470,15 +738,167 @@ public final class Simulator {
             }
 
             size /= 4;
-            Block block = new Block();
-            block.start = currentSize;
-            currentSize += size;
-            block.mem = new int[size];
-            heap.add(block);
-            return block.start * 4;
+            if (size == 0) {
+                return currentSize * 4;
+            }
+
+            var start = allocFree(size);
+            if (start < 0) {
+                if (size > threshold - currentSize) {
+                    collect();
+                    start = allocFree(size);
+                }
+                if (start < 0) {
+                    if (size > limit - currentSize) {
+                        throw new Error(String.format("Memory allocation error: heap limit %d bytes exceeded",
+                                limit * 4));
+                    }
+                    start = currentSize;
+                    currentSize += size;
+                    if (currentSize > mem.length) {
+                        var capacity = (int) Math.min(Math.max(currentSize, 2L * mem.length), limit);
+                        mem = Arrays.copyOf(mem, capacity);
+                        owner = Arrays.copyOf(owner, capacity);
+                    }
+                    _gc_stats.peakBytes = Math.max(_gc_stats.peakBytes, currentSize * 4L);
+                }
+            }
+
+            Arrays.fill(mem, start, start + size, 0);
+            Arrays.fill(owner, start, start + size, start);
+            return start * 4;
+        }
+
+        /**
+         * Allocate from a free run, next-fit.
+         *
+         * @param size the size in words
+         * @return the first word, or -1 if no free run is large enough
+         */
+        private int allocFree(int size) {
+            if (size > maxFree) {
+                return -1;
+            }
+
+            for (var k = 0; k < freeCount; k++) {
+                var i = rover + k < freeCount ? rover + k : rover + k - freeCount;
+                if (freeLength[i] >= size) {
+                    var start = freeStart[i];
+                    freeStart[i] += size;
+                    freeLength[i] -= size;
+                    rover = i;
+                    return start;
+                }
+            }
+            maxFree = size - 1;
+            return -1;
         }
 
-        private Block checkHeapAccess(int base, int offset) {
+        /**
+         * Collect garbage. Roots are the temps of live frames and the actual arguments given so far.
+         */
+        private void collect() {
+            var begin = System.nanoTime();
+            if (marks.length <= currentSize >> 6) {
+                marks = new long[(currentSize >> 6) + 1];
+            }
+
+            // Mark
+            var sp = 0;
+            for (var i = 0; i < _top + _arg_count; i++) {
+                sp = mark(i < _top ? _values[i] : _actual_args[i - _top], sp);
+                while (sp > 0) {
+                    var block = worklist[--sp];
+                    for (var w = block; w < currentSize && owner[w] == block; w++) {
+                        sp = mark(mem[w], sp);
+                    }
+                }
+            }
+
+            // Sweep, and rebuild free runs
+            freeCount = 0;
+            maxFree = 0;
+            rover = 0;
+            var live = pinned;
+            var run = -1;
+            var w = pinned;
+            while (w < currentSize) {
+                var block = owner[w];
+                var end = w + 1;
+                while (end < currentSize && owner[end] == block) {
+                    end++;
+                }
+
+                if (block != FREE && (marks[block >> 6] & (1L << block)) != 0) {
+                    live += end - w;
+                    if (run >= 0) {
+                        addFree(run, w);
+                        run = -1;
+                    }
+                } else {
+                    if (block != FREE) {
+                        Arrays.fill(owner, w, end, FREE);
+                        _gc_stats.freedBytes += (end - w) * 4L;
+                    }
+                    if (run < 0) {
+                        run = w;
+                    }
+                }
+                w = end;
+            }
+            if (run >= 0) { // give the last run back to the bump pointer
+                currentSize = run;
+            }
+            Arrays.fill(marks, 0, (currentSize >> 6) + 1, 0);
+
+            threshold = (int) Math.min(Math.max(INITIAL_THRESHOLD, 2L * live), limit);
+            _gc_stats.collections++;
+            _gc_stats.liveBytes = live * 4L;
+            _gc_stats.nanos += System.nanoTime() - begin;
+        }
+
+        /**
+         * Mark the block a value points into, if any, and push it to the worklist if it is newly marked.
+         *
+         * @param value a value which may be an address
+         * @param sp    size of the worklist
+         * @return new size of the worklist
+         */
+        private int mark(int value, int sp) {
+            if (value <= 0 || value % 4 != 0 || value / 4 >= currentSize) {
+                return sp;
+            }
+
+            var block = owner[value / 4];
+            if (block < pinned || (marks[block >> 6] & (1L << block)) != 0) { // FREE < pinned, too
+                return sp;
+            }
+
+            marks[block >> 6] |= 1L << block;
+            if (sp == worklist.length) {
+                worklist = Arrays.copyOf(worklist, sp * 2);
+            }
+            worklist[sp] = block;
+            return sp + 1;
+        }
+
+        private void addFree(int start, int end) {
+            if (freeCount == freeStart.length) {
+                freeStart = Arrays.copyOf(freeStart, freeCount * 2);
+                freeLength = Arrays.copyOf(freeLength, freeCount * 2);
+            }
+            freeStart[freeCount] = start;
+            freeLength[freeCount] = end - start;
+            freeCount++;
+            maxFree = Math.max(maxFree, end - start);
+        }
+
+        /**
+         * Check an access and locate the word.
+         *
+         * @return index of the word in {@link #mem}
+         */
+        private int checkHeapAccess(int base, int offset) {
             if (base <= 0) {
                 throw new Error("Null pointer exception");
             }
@@ -496,25 +916,126 @@ public final class Simulator {
             if (base >= currentSize) {
                 throw new Error(String.format("Memory access out of bound %d", base * 4));
             }
-            Block temp = new Block();
-            temp.start = base;
-            int index = Collections.binarySearch(heap, temp);
-            Block block = index >= 0 ? heap.get(index) : heap.get(-index - 2);
-            int accessIndex = base - block.start + offset;
-            if (accessIndex < 0 || accessIndex >= block.mem.length) {
+            var index = base + offset;
+            if (index < 0 || index >= currentSize || owner[base] == FREE || owner[index] != owner[base]) {
                 throw new Error(String.format("Memory access out of bound %d", base * 4 + offset * 4));
             }
-            return block;
+            return index;
         }
 
         public int load(int base, int offset) {
-            Block block = checkHeapAccess(base, offset);
-            return block.mem[base / 4 - block.start + offset / 4];
+            return mem[checkHeapAccess(base, offset)];
         }
 
         public void store(int value, int base, int offset) {
-            Block block = checkHeapAccess(base, offset);
-            block.mem[base / 4 - block.start + offset / 4] = value;
+            mem[checkHeapAccess(base, offset)] = value;
+        }
+    }
+
+    /**
+     * Buffered stdin, shared by all READ_INT and READ_LINE. Both read a whole line, as in the Decaf spec and as SPIM's
+     * {@code read_int} and {@code read_string} do: READ_INT then expects the line to be an integer, with optional
+     * surrounding whitespace, and READ_LINE returns it without the line terminator.
+     */
+    private class Input {
+        private final byte[] buffer = new byte[8192];
+
+        private int pos, end;
+
+        private boolean eof;
+
+        /**
+         * Look at the next byte, reading more input if necessary.
+         *
+         * @return the byte, or -1 at the end of input
+         */
+        private int peek() {
+            if (pos == end) {
+                if (eof) {
+                    return -1;
+                }
+
+                _out.flush(); // may block: show what was printed so far, say, a prompt
+                int n;
+                try {
+                    n = _in.read(buffer);
+                } catch (IOException e) {
+                    throw new Error("Input error: " + e.getMessage());
+                }
+                if (n <= 0) {
+                    eof = true;
+                    return -1;
+                }
+                pos = 0;
+                end = n;
+            }
+            return buffer[pos] & 0xff;
+        }
+
+        int nextInt() {
+            var line = nextLine().strip();
+            try {
+                return Integer.parseInt(line);
+            } catch (NumberFormatException e) {
+                throw new Error("Input error: not an integer: " + line);
+            }
+        }
+
+        String nextLine() {
+            if (peek() == -1) {
+                throw new Error("Input error: no more input");
+            }
+
+            var line = new ByteArrayOutputStream();
+            int c;
+            while ((c = peek()) != -1 && c != '\n' && c != '\r') {
+                line.write(c);
+                pos++;
+            }
+            if (c == '\r') {
+                pos++;
+                c = peek();
+            }
+            if (c == '\n') {
+                pos++;
+            }
+            return line.toString(Charset.defaultCharset());
+        }
+    }
+
+    /**
+     * Garbage collection statistics of a run.
+     */
+    public static final class GcStats {
+        /**
+         * Number of collections.
+         */
+        public int collections;
+
+        /**
+         * Total time of collections, in nanoseconds.
+         */
+        public long nanos;
+
+        /**
+         * Total size of freed blocks.
+         */
+        public long freedBytes;
+
+        /**
+         * Size of live data after the last collection.
+         */
+        public long liveBytes;
+
+        /**
+         * Max. size of the heap.
+         */
+        public long peakBytes;
+
+        @Override
+        public String toString() {
+            return String.format("GC: %d collection(s) in %.3f ms, %d bytes freed, %d bytes live after the last one, "
+                    + "peak heap %d bytes", collections, nanos / 1e6, freedBytes, liveBytes, peakBytes);
         }
     }
 
@@ -1,10 +1,18 @@
 package decaf.lowlevel.tac;
 
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
-import java.util.Vector;
+import java.util.List;
+import java.util.Map;
 
 /**
  * A string pool to store string literals. The equal strings will be allocated a same index.
+ * <p>
+ * Strings are indexed in order of addition, and looked up by hash, so that both {@link #add} and {@link #find} take
+ * constant time.
+ * <p>
+ * Thread-safe.
  */
 public class StringPool implements Iterable<String> {
     /**
@@ -13,9 +21,9 @@ public class StringPool implements Iterable<String> {
      * @param value the string
      * @return the allocated index
      */
-    public int add(String value) {
-        int index = pool.indexOf(value);
-        if (index == -1) {
+    public synchronized int add(String value) {
+        var index = indices.putIfAbsent(value, pool.size());
+        if (index == null) {
             pool.add(value);
             return pool.size() - 1;
         }
@@ -28,24 +36,27 @@ public class StringPool implements Iterable<String> {
      * @param index the index
      * @return the string
      */
-    public String get(int index) {
+    public synchronized String get(int index) {
         return pool.get(index);
     }
 
-    public int find(String value) {
-        for (var i = 0; i < pool.size(); i++) {
-            if (pool.get(i).equals(value)) {
-                return i;
-            }
+    public synchronized int find(String value) {
+        var index = indices.get(value);
+        if (index == null) {
+            throw new IllegalArgumentException(value + " not found in string pool");
         }
-
-        throw new IllegalArgumentException(value + " not found in string pool");
+        return index;
     }
 
-    private Vector<String> pool = new Vector<>();
+    private final List<String> pool = new ArrayList<>();
+
+    private final Map<String, Integer> indices = new HashMap<>();
 
+    /**
+     * Iterate over a snapshot of the strings, in order of their indices.
+     */
     @Override
-    public Iterator<String> iterator() {
-        return pool.iterator();
+    public synchronized Iterator<String> iterator() {
+        return List.copyOf(pool).iterator();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,421 @@
+package decaf.lowlevel.tac;
+
+import decaf.lowlevel.label.FuncLabel;
+import decaf.lowlevel.label.Label;
+
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.ToIntFunction;
+
+/**
+ * Binary TAC program ({@code .tacb}): a compact encoding of a whole {@link TacProg}, which can be loaded without
+ * running the frontend again.
+ * <p>
+ * Layout (integers are big-endian):
+ * <ol>
+ *     <li>header: magic {@code TACB}, format version;</li>
+ *     <li>string table: number of strings, offset of every string in the string data, then the string data (length
+ *     and UTF-8 bytes of every string); every name and constant string elsewhere is an id in this table;</li>
+ *     <li>virtual tables: number of tables, and for every table: class name, index of the parent table (-1 if
+ *     none), member methods and member variables;</li>
+ *     <li>function index: number of functions, and for every function: entry, number of arguments, offset and
+ *     length of its body;</li>
+ *     <li>function bodies: local labels (number and names), followed by the body written by {@link TacCodec}.</li>
+ * </ol>
+ * A loaded program decodes the string table and virtual tables right away, but a function only when it is first
+ * accessed, straight from the (usually memory-mapped) buffer. Thus, a malformed body is only found then, as a
+ * {@link MalformedFuncException}.
+ */
+public final class TacBinary {
+
+    private TacBinary() {
+    }
+
+    private static final int MAGIC = 0x54414342; // "TACB"
+
+    private static final int FORMAT = 1;
+
+    /**
+     * Write a TAC program.
+     *
+     * @param prog TAC program
+     * @param to   output
+     * @throws IOException if {@code to} fails
+     */
+    public static void write(TacProg prog, OutputStream to) throws IOException {
+        var strings = new LinkedHashMap<String, Integer>();
+        ToIntFunction<String> string = s -> strings.computeIfAbsent(s, k -> strings.size());
+
+        // bodies first, so that the string table is complete before it is written
+        var bodies = new ByteArrayOutputStream();
+        var bodyOut = new DataOutputStream(bodies);
+        var offsets = new int[prog.funcs.size()];
+        for (int i = 0; i < prog.funcs.size(); i++) {
+            offsets[i] = bodies.size();
+            var labels = new LinkedHashMap<String, Integer>();
+            var code = new ByteArrayOutputStream();
+            TacCodec.writeBody(prog.funcs.get(i), new DataOutputStream(code),
+                    label -> labels.computeIfAbsent(label.name, k -> labels.size()), string);
+            bodyOut.writeInt(labels.size());
+            for (var name : labels.keySet()) {
+                bodyOut.writeInt(string.applyAsInt(name));
+            }
+            code.writeTo(bodyOut);
+        }
+        bodyOut.flush();
+
+        var meta = new ByteArrayOutputStream();
+        var metaOut = new DataOutputStream(meta);
+        metaOut.writeInt(prog.vtables.size());
+        var vtableIndex = new HashMap<VTable, Integer>();
+        for (var vtbl : prog.vtables) {
+            vtableIndex.put(vtbl, vtableIndex.size());
+        }
+        for (var vtbl : prog.vtables) {
+            metaOut.writeInt(string.applyAsInt(vtbl.className));
+            metaOut.writeInt(vtbl.parent.map(vtableIndex::get).orElse(-1));
+            metaOut.writeInt(vtbl.memberMethods.size());
+            for (var method : vtbl.memberMethods) {
+                writeFuncLabel(metaOut, method, string);
+            }
+            metaOut.writeInt(vtbl.memberVariables.size());
+            for (var variable : vtbl.memberVariables) {
+                metaOut.writeInt(string.applyAsInt(variable));
+            }
+        }
+        metaOut.writeInt(prog.funcs.size());
+        for (int i = 0; i < prog.funcs.size(); i++) {
+            var func = prog.funcs.get(i);
+            writeFuncLabel(metaOut, func.entry, string);
+            metaOut.writeInt(func.numArgs);
+            metaOut.writeInt(offsets[i]);
+            metaOut.writeInt((i + 1 < offsets.length ? offsets[i + 1] : bodies.size()) - offsets[i]);
+        }
+        metaOut.flush();
+
+        var out = new DataOutputStream(new BufferedOutputStream(to));
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT);
+        var data = new ByteArrayOutputStream();
+        var dataOut = new DataOutputStream(data);
+        out.writeInt(strings.size());
+        for (var s : strings.keySet()) {
+            out.writeInt(data.size());
+            var bytes = s.getBytes(StandardCharsets.UTF_8);
+            dataOut.writeInt(bytes.length);
+            dataOut.write(bytes);
+        }
+        out.writeInt(data.size());
+        data.writeTo(out);
+        meta.writeTo(out);
+        bodies.writeTo(out);
+        out.flush();
+    }
+
+    /**
+     * Memory-map and load a TAC program.
+     *
+     * @param path file
+     * @return TAC program, whose functions are decoded lazily
+     * @throws IOException if the file cannot be read, or is malformed
+     */
+    public static TacProg map(Path path) throws IOException {
+        try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return map(channel);
+        }
+    }
+
+    /**
+     * Memory-map and load a TAC program from an open file. The channel may be closed afterwards.
+     *
+     * @param channel file channel
+     * @return TAC program, whose functions are decoded lazily
+     * @throws IOException if the file cannot be read, or is malformed
+     */
+    public static TacProg map(FileChannel channel) throws IOException {
+        return read(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+    }
+
+    /**
+     * Load a TAC program from a buffer, which must not be modified afterwards.
+     *
+     * @param buffer buffer, from its position
+     * @return TAC program, whose functions are decoded lazily
+     * @throws IOException if the buffer is malformed
+     */
+    public static TacProg read(ByteBuffer buffer) throws IOException {
+        return new Loader(buffer.slice()).load();
+    }
+
+    private static void writeFuncLabel(DataOutput out, FuncLabel label, ToIntFunction<String> string)
+            throws IOException {
+        if (label == FuncLabel.MAIN_LABEL) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(string.applyAsInt(label.clazz));
+            out.writeInt(string.applyAsInt(label.method));
+        }
+    }
+
+    private static final class Loader {
+        private final ByteBuffer buffer;
+
+        private int[] stringOffsets;
+
+        private int stringData;
+
+        private String[] strings;
+
+        private final List<VTable> vtables = new ArrayList<>();
+
+        private final Map<String, VTable> vtableByName = new HashMap<>();
+
+        private int bodies;
+
+        Loader(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        TacProg load() throws IOException {
+            try {
+                return loadUnchecked();
+            } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e) {
+                throw new IOException("malformed TAC binary: truncated");
+            }
+        }
+
+        private TacProg loadUnchecked() throws IOException {
+            if (buffer.getInt() != MAGIC) {
+                throw new IOException("malformed TAC binary: not a TAC binary");
+            }
+            if (buffer.getInt() != FORMAT) {
+                throw new IOException("malformed TAC binary: unsupported format version");
+            }
+
+            var numStrings = count();
+            stringOffsets = new int[numStrings];
+            for (int i = 0; i < numStrings; i++) {
+                stringOffsets[i] = buffer.getInt();
+            }
+            var dataSize = count();
+            stringData = buffer.position();
+            strings = new String[numStrings];
+            buffer.position(stringData + dataSize);
+
+            var numVTables = count();
+            var parents = new int[numVTables];
+            var names = new String[numVTables];
+            var methods = new ArrayList<List<FuncLabel>>();
+            var variables = new ArrayList<List<String>>();
+            for (int i = 0; i < numVTables; i++) {
+                names[i] = string(buffer.getInt());
+                parents[i] = buffer.getInt();
+                if (parents[i] < -1 || parents[i] >= numVTables) {
+                    throw new IOException("malformed TAC binary: bad parent of " + names[i]);
+                }
+                var numMethods = count();
+                methods.add(new ArrayList<>());
+                for (int j = 0; j < numMethods; j++) {
+                    methods.get(i).add(funcLabel());
+                }
+                var numVariables = count();
+                variables.add(new ArrayList<>());
+                for (int j = 0; j < numVariables; j++) {
+                    variables.get(i).add(string(buffer.getInt()));
+                }
+                vtables.add(null);
+            }
+            for (int i = 0; i < numVTables; i++) {
+                var vtbl = vtable(i, names, parents, 0);
+                vtbl.memberMethods.addAll(methods.get(i));
+                vtbl.memberVariables.addAll(variables.get(i));
+            }
+
+            var numFuncs = count();
+            var entries = new FuncLabel[numFuncs];
+            var numArgs = new int[numFuncs];
+            var offsets = new int[numFuncs];
+            var lengths = new int[numFuncs];
+            for (int i = 0; i < numFuncs; i++) {
+                entries[i] = funcLabel();
+                numArgs[i] = buffer.getInt();
+                offsets[i] = buffer.getInt();
+                lengths[i] = buffer.getInt();
+            }
+            bodies = buffer.position();
+            for (int i = 0; i < numFuncs; i++) {
+                if (offsets[i] < 0 || lengths[i] < 0 || (long) bodies + offsets[i] + lengths[i] > buffer.limit()) {
+                    throw new IOException("malformed TAC binary: truncated");
+                }
+            }
+
+            return new TacProg(vtables, new LazyFuncs(entries, numArgs, offsets, lengths));
+        }
+
+        private VTable vtable(int index, String[] names, int[] parents, int depth) throws IOException {
+            if (depth > parents.length) {
+                throw new IOException("malformed TAC binary: cyclic inheritance of " + names[index]);
+            }
+            if (vtables.get(index) == null) {
+                var parent = parents[index] < 0 ? Optional.<VTable>empty()
+                        : Optional.of(vtable(parents[index], names, parents, depth + 1));
+                var vtbl = new VTable(names[index], parent);
+                vtables.set(index, vtbl);
+                vtableByName.putIfAbsent(vtbl.className, vtbl);
+            }
+            return vtables.get(index);
+        }
+
+        private int count() throws IOException {
+            var n = buffer.getInt();
+            if (n < 0 || n > buffer.limit()) {
+                throw new IOException("malformed TAC binary: bad count");
+            }
+            return n;
+        }
+
+        private FuncLabel funcLabel() throws IOException {
+            var clazz = buffer.getInt();
+            if (clazz == -1) {
+                return FuncLabel.MAIN_LABEL;
+            }
+            return new FuncLabel(string(clazz), string(buffer.getInt()));
+        }
+
+        /**
+         * Decode a string on demand. Strings are immutable, so racing threads at worst decode the same one twice.
+         */
+        private String string(int id) throws IOException {
+            if (id < 0 || id >= strings.length) {
+                throw new IOException("malformed TAC binary: bad string id");
+            }
+            var s = strings[id];
+            if (s == null) {
+                try {
+                    var in = buffer.duplicate();
+                    in.position(stringData + stringOffsets[id]);
+                    var bytes = new byte[in.getInt()];
+                    in.get(bytes);
+                    s = new String(bytes, StandardCharsets.UTF_8);
+                } catch (BufferUnderflowException | IllegalArgumentException | NegativeArraySizeException e) {
+                    throw new IOException("malformed TAC binary: bad string " + id);
+                }
+                strings[id] = s;
+            }
+            return s;
+        }
+
+        /**
+         * Functions of the program, each decoded when first accessed. Safe to access concurrently.
+         */
+        private final class LazyFuncs extends AbstractList<TacFunc> implements RandomAccess {
+            private final FuncLabel[] entries;
+            private final int[] numArgs;
+            private final int[] offsets;
+            private final int[] lengths;
+
+            private final AtomicReferenceArray<TacFunc> funcs;
+
+            LazyFuncs(FuncLabel[] entries, int[] numArgs, int[] offsets, int[] lengths) {
+                this.entries = entries;
+                this.numArgs = numArgs;
+                this.offsets = offsets;
+                this.lengths = lengths;
+                this.funcs = new AtomicReferenceArray<>(entries.length);
+            }
+
+            @Override
+            public TacFunc get(int index) {
+                var func = funcs.get(index);
+                if (func == null) {
+                    funcs.compareAndSet(index, null, decode(index));
+                    func = funcs.get(index);
+                }
+                return func;
+            }
+
+            @Override
+            public int size() {
+                return entries.length;
+            }
+
+            private TacFunc decode(int index) {
+                var body = buffer.duplicate();
+                body.position(bodies + offsets[index]);
+                body.limit(bodies + offsets[index] + lengths[index]);
+                var func = new TacFunc(entries[index], numArgs[index]);
+                try (var in = new DataInputStream(new BufferInputStream(body))) {
+                    var numLabels = in.readInt();
+                    if (numLabels < 0 || numLabels > lengths[index]) {
+                        throw new IOException("malformed TAC binary: bad count");
+                    }
+                    var labels = new Label[numLabels];
+                    for (int i = 0; i < numLabels; i++) {
+                        labels[i] = new Label(string(in.readInt()));
+                    }
+                    TacCodec.readBody(func, in, i -> i >= 0 && i < labels.length ? labels[i] : null,
+                            vtableByName::get, i -> {
+                                try {
+                                    return string(i);
+                                } catch (IOException e) {
+                                    return null;
+                                }
+                            });
+                } catch (EOFException e) {
+                    throw new MalformedFuncException("malformed TAC binary: truncated body of "
+                            + entries[index].prettyString(), e);
+                } catch (IOException e) {
+                    throw new MalformedFuncException(e.getMessage() + " in " + entries[index].prettyString(), e);
+                }
+                return func;
+            }
+        }
+    }
+
+    /**
+     * Thrown when a function of a loaded program is first accessed, but its body is malformed.
+     */
+    public static final class MalformedFuncException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        MalformedFuncException(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
+
+    /**
+     * Read a byte buffer as a stream.
+     */
+    private static final class BufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        BufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            len = Math.min(len, buffer.remaining());
+            buffer.get(b, off, len);
+            return len;
+        }
+    }
+}
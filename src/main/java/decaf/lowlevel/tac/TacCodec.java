@@ -0,0 +1,478 @@
+package decaf.lowlevel.tac;
+
+import decaf.lowlevel.instr.Temp;
+import decaf.lowlevel.label.FuncLabel;
+import decaf.lowlevel.label.Label;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Optional;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+import java.util.function.ToIntFunction;
+
+/**
+ * Binary encoding of TAC function bodies.
+ * <p>
+ * Temporary labels (jump targets) are numbered by {@code _L<n>} program-wide, so their names depend on every function
+ * generated before. The encoding leaves their naming to the caller: a temporary label is written as an integer id
+ * given by the caller, and read back as whatever label the caller maps the id to. Every other label (functions,
+ * intrinsics) and virtual table is written by name.
+ * <p>
+ * Strings (names and constant strings) are written in place, unless the caller keeps a string table: then a string
+ * is written as its id in the table.
+ */
+public final class TacCodec {
+
+    private TacCodec() {
+    }
+
+    /**
+     * Write the body of a function: its hint, number of temps, and instructions.
+     *
+     * @param func     TAC function
+     * @param out      output
+     * @param tempLabel id of a temporary label
+     * @throws IOException if {@code out} fails
+     */
+    public static void writeBody(TacFunc func, DataOutput out, ToIntFunction<Label> tempLabel) throws IOException {
+        writeBody(func, out, tempLabel, null);
+    }
+
+    /**
+     * Write the body of a function, with strings in a string table.
+     *
+     * @param func      TAC function
+     * @param out       output
+     * @param tempLabel id of a temporary label
+     * @param string    id of a string in the table, or {@code null} to write strings in place
+     * @throws IOException if {@code out} fails
+     */
+    public static void writeBody(TacFunc func, DataOutput out, ToIntFunction<Label> tempLabel,
+                                 ToIntFunction<String> string) throws IOException {
+        out.writeByte(func.hint.ordinal());
+        out.writeInt(func.tempUsed);
+        out.writeInt(func.instrSeq.size());
+        var writer = new Writer(out, tempLabel, string);
+        for (var instr : func.instrSeq) {
+            writer.write(instr);
+        }
+    }
+
+    /**
+     * Read the body of a function, as written by {@link #writeBody}, and replace the body of {@code func} with it.
+     *
+     * @param func      TAC function
+     * @param in        input
+     * @param tempLabel temporary label of an id
+     * @param vtable    virtual table of a class name
+     * @throws IOException if {@code in} fails, or the body is malformed
+     */
+    public static void readBody(TacFunc func, DataInput in, IntFunction<Label> tempLabel,
+                                Function<String, VTable> vtable) throws IOException {
+        readBody(func, in, tempLabel, vtable, null);
+    }
+
+    /**
+     * Read the body of a function, as written by {@link #writeBody} with a string table, and replace the body of
+     * {@code func} with it.
+     *
+     * @param func      TAC function
+     * @param in        input
+     * @param tempLabel temporary label of an id
+     * @param vtable    virtual table of a class name
+     * @param string    string of an id in the table, or {@code null} if strings are written in place
+     * @throws IOException if {@code in} fails, or the body is malformed
+     */
+    public static void readBody(TacFunc func, DataInput in, IntFunction<Label> tempLabel,
+                                Function<String, VTable> vtable, IntFunction<String> string) throws IOException {
+        var hint = readEnum(in, TacInstr.CompilerHint.values());
+        var tempUsed = in.readInt();
+        var size = in.readInt();
+        if (tempUsed < 0 || size < 0) {
+            throw new IOException("malformed TAC: bad count");
+        }
+        var reader = new Reader(in, tempLabel, vtable, string);
+        var seq = new ArrayList<TacInstr>();
+        for (int i = 0; i < size; i++) {
+            seq.add(reader.read());
+        }
+
+        func.hint = hint;
+        func.tempUsed = tempUsed;
+        func.instrSeq = seq;
+    }
+
+    /**
+     * Instruction tags.
+     */
+    private static final int ASSIGN = 0, LOAD_VTBL = 1, LOAD_IMM = 2, LOAD_STR = 3, UNARY = 4, BINARY = 5,
+            BRANCH = 6, COND_BRANCH = 7, RETURN = 8, PARM = 9, INDIRECT_CALL = 10, DIRECT_CALL = 11, MEMORY = 12,
+            MEMO = 13, MARK = 14;
+
+    /**
+     * Label tags.
+     */
+    private static final int TEMP_LABEL = 0, FUNC_LABEL = 1, MAIN_LABEL = 2, INTRINSIC_LABEL = 3;
+
+    static void writeString(DataOutput out, String s) throws IOException {
+        var bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(DataInput in) throws IOException {
+        var bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    static <E extends Enum<E>> E readEnum(DataInput in, E[] values) throws IOException {
+        var ordinal = in.readUnsignedByte();
+        if (ordinal >= values.length) {
+            throw new IOException("malformed TAC: bad " + values[0].getDeclaringClass().getSimpleName());
+        }
+        return values[ordinal];
+    }
+
+    private static final class Writer implements TacInstr.Visitor {
+        private final DataOutput out;
+
+        private final ToIntFunction<Label> tempLabel;
+
+        private final ToIntFunction<String> string;
+
+        private IOException error;
+
+        Writer(DataOutput out, ToIntFunction<Label> tempLabel, ToIntFunction<String> string) {
+            this.out = out;
+            this.tempLabel = tempLabel;
+            this.string = string;
+        }
+
+        void write(TacInstr instr) throws IOException {
+            instr.accept(this);
+            if (error != null) {
+                throw error;
+            }
+            out.writeByte(instr.hint.ordinal());
+        }
+
+        private interface Action {
+            void run() throws IOException;
+        }
+
+        private void emit(Action action) {
+            if (error != null) return;
+            try {
+                action.run();
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+
+        private void temp(Temp temp) throws IOException {
+            out.writeInt(temp.index);
+        }
+
+        private void str(String s) throws IOException {
+            if (string == null) {
+                writeString(out, s);
+            } else {
+                out.writeInt(string.applyAsInt(s));
+            }
+        }
+
+        private void optionalTemp(Optional<Temp> temp) throws IOException {
+            out.writeInt(temp.map(t -> t.index).orElse(-1));
+        }
+
+        private void label(Label label) throws IOException {
+            if (label == FuncLabel.MAIN_LABEL) {
+                out.writeByte(MAIN_LABEL);
+            } else if (label.isFunc()) {
+                out.writeByte(FUNC_LABEL);
+                str(((FuncLabel) label).clazz);
+                str(((FuncLabel) label).method);
+            } else if (label.isIntrinsic()) {
+                out.writeByte(INTRINSIC_LABEL);
+                str(label.name);
+            } else {
+                out.writeByte(TEMP_LABEL);
+                out.writeInt(tempLabel.applyAsInt(label));
+            }
+        }
+
+        @Override
+        public void visitAssign(TacInstr.Assign instr) {
+            emit(() -> {
+                out.writeByte(ASSIGN);
+                temp(instr.dst);
+                temp(instr.src);
+            });
+        }
+
+        @Override
+        public void visitLoadVTbl(TacInstr.LoadVTbl instr) {
+            emit(() -> {
+                out.writeByte(LOAD_VTBL);
+                temp(instr.dst);
+                str(instr.vtbl.className);
+            });
+        }
+
+        @Override
+        public void visitLoadImm4(TacInstr.LoadImm4 instr) {
+            emit(() -> {
+                out.writeByte(LOAD_IMM);
+                temp(instr.dst);
+                out.writeInt(instr.value);
+            });
+        }
+
+        @Override
+        public void visitLoadStrConst(TacInstr.LoadStrConst instr) {
+            emit(() -> {
+                out.writeByte(LOAD_STR);
+                temp(instr.dst);
+                str(instr.value);
+            });
+        }
+
+        @Override
+        public void visitUnary(TacInstr.Unary instr) {
+            emit(() -> {
+                out.writeByte(UNARY);
+                out.writeByte(instr.op.ordinal());
+                temp(instr.dst);
+                temp(instr.operand);
+            });
+        }
+
+        @Override
+        public void visitBinary(TacInstr.Binary instr) {
+            emit(() -> {
+                out.writeByte(BINARY);
+                out.writeByte(instr.op.ordinal());
+                temp(instr.dst);
+                temp(instr.lhs);
+                temp(instr.rhs);
+            });
+        }
+
+        @Override
+        public void visitBranch(TacInstr.Branch instr) {
+            emit(() -> {
+                out.writeByte(BRANCH);
+                label(instr.target);
+            });
+        }
+
+        @Override
+        public void visitCondBranch(TacInstr.CondBranch instr) {
+            emit(() -> {
+                out.writeByte(COND_BRANCH);
+                out.writeByte(instr.op.ordinal());
+                temp(instr.cond);
+                label(instr.target);
+            });
+        }
+
+        @Override
+        public void visitReturn(TacInstr.Return instr) {
+            emit(() -> {
+                out.writeByte(RETURN);
+                optionalTemp(instr.value);
+            });
+        }
+
+        @Override
+        public void visitParm(TacInstr.Parm instr) {
+            emit(() -> {
+                out.writeByte(PARM);
+                temp(instr.value);
+            });
+        }
+
+        @Override
+        public void visitIndirectCall(TacInstr.IndirectCall instr) {
+            emit(() -> {
+                out.writeByte(INDIRECT_CALL);
+                optionalTemp(instr.dst);
+                temp(instr.entry);
+            });
+        }
+
+        @Override
+        public void visitDirectCall(TacInstr.DirectCall instr) {
+            emit(() -> {
+                out.writeByte(DIRECT_CALL);
+                optionalTemp(instr.dst);
+                label(instr.entry);
+            });
+        }
+
+        @Override
+        public void visitMemory(TacInstr.Memory instr) {
+            emit(() -> {
+                out.writeByte(MEMORY);
+                out.writeByte(instr.op.ordinal());
+                temp(instr.dst);
+                temp(instr.base);
+                out.writeInt(instr.offset);
+            });
+        }
+
+        @Override
+        public void visitMemo(TacInstr.Memo instr) {
+            emit(() -> {
+                out.writeByte(MEMO);
+                str(instr.msg);
+            });
+        }
+
+        @Override
+        public void visitMark(TacInstr.Mark instr) {
+            emit(() -> {
+                out.writeByte(MARK);
+                label(instr.label);
+            });
+        }
+    }
+
+    private static final class Reader {
+        private final DataInput in;
+
+        private final IntFunction<Label> tempLabel;
+
+        private final Function<String, VTable> vtable;
+
+        private final IntFunction<String> string;
+
+        Reader(DataInput in, IntFunction<Label> tempLabel, Function<String, VTable> vtable,
+               IntFunction<String> string) {
+            this.in = in;
+            this.tempLabel = tempLabel;
+            this.vtable = vtable;
+            this.string = string;
+        }
+
+        TacInstr read() throws IOException {
+            var instr = readInstr(in.readUnsignedByte());
+            instr.hint = readEnum(in, TacInstr.CompilerHint.values());
+            return instr;
+        }
+
+        private TacInstr readInstr(int tag) throws IOException {
+            switch (tag) {
+                case ASSIGN:
+                    return new TacInstr.Assign(temp(), temp());
+                case LOAD_VTBL: {
+                    var dst = temp();
+                    var name = str();
+                    var vtbl = vtable.apply(name);
+                    if (vtbl == null) {
+                        throw new IOException("malformed TAC: unknown virtual table " + name);
+                    }
+                    return new TacInstr.LoadVTbl(dst, vtbl);
+                }
+                case LOAD_IMM:
+                    return new TacInstr.LoadImm4(temp(), in.readInt());
+                case LOAD_STR:
+                    return new TacInstr.LoadStrConst(temp(), str());
+                case UNARY: {
+                    var op = readEnum(in, TacInstr.Unary.Op.values());
+                    return new TacInstr.Unary(op, temp(), temp());
+                }
+                case BINARY: {
+                    var op = readEnum(in, TacInstr.Binary.Op.values());
+                    return new TacInstr.Binary(op, temp(), temp(), temp());
+                }
+                case BRANCH:
+                    return new TacInstr.Branch(label());
+                case COND_BRANCH: {
+                    var op = readEnum(in, TacInstr.CondBranch.Op.values());
+                    return new TacInstr.CondBranch(op, temp(), label());
+                }
+                case RETURN: {
+                    var value = in.readInt();
+                    return value < 0 ? new TacInstr.Return() : new TacInstr.Return(new Temp(value));
+                }
+                case PARM:
+                    return new TacInstr.Parm(temp());
+                case INDIRECT_CALL: {
+                    var dst = in.readInt();
+                    var entry = temp();
+                    return dst < 0 ? new TacInstr.IndirectCall(entry) : new TacInstr.IndirectCall(new Temp(dst), entry);
+                }
+                case DIRECT_CALL: {
+                    var dst = in.readInt();
+                    var entry = label();
+                    return dst < 0 ? new TacInstr.DirectCall(entry) : new TacInstr.DirectCall(new Temp(dst), entry);
+                }
+                case MEMORY: {
+                    var op = readEnum(in, TacInstr.Memory.Op.values());
+                    return new TacInstr.Memory(op, temp(), temp(), in.readInt());
+                }
+                case MEMO:
+                    return new TacInstr.Memo(str());
+                case MARK:
+                    return new TacInstr.Mark(label());
+                default:
+                    throw new IOException("malformed TAC: bad instruction tag " + tag);
+            }
+        }
+
+        private Temp temp() throws IOException {
+            var index = in.readInt();
+            if (index < 0) {
+                throw new IOException("malformed TAC: bad temp " + index);
+            }
+            return new Temp(index);
+        }
+
+        private String str() throws IOException {
+            if (string == null) {
+                return readString(in);
+            }
+            var s = string.apply(in.readInt());
+            if (s == null) {
+                throw new IOException("malformed TAC: bad string id");
+            }
+            return s;
+        }
+
+        private Label label() throws IOException {
+            var tag = in.readUnsignedByte();
+            switch (tag) {
+                case MAIN_LABEL:
+                    return FuncLabel.MAIN_LABEL;
+                case FUNC_LABEL: {
+                    var clazz = str();
+                    return new FuncLabel(clazz, str());
+                }
+                case INTRINSIC_LABEL: {
+                    var name = str();
+                    for (var intrinsic : Intrinsic.ALL) {
+                        if (intrinsic.entry.name.equals(name)) {
+                            return intrinsic.entry;
+                        }
+                    }
+                    throw new IOException("malformed TAC: unknown intrinsic " + name);
+                }
+                case TEMP_LABEL: {
+                    var label = tempLabel.apply(in.readInt());
+                    if (label == null) {
+                        throw new IOException("malformed TAC: unknown label");
+                    }
+                    return label;
+                }
+                default:
+                    throw new IOException("malformed TAC: bad label tag " + tag);
+            }
+        }
+    }
+}
@@ -0,0 +1,760 @@
+package decaf.lowlevel.tac;
+
+import decaf.lowlevel.instr.PseudoInstr;
+import decaf.lowlevel.instr.Temp;
+import decaf.lowlevel.label.FuncLabel;
+import decaf.lowlevel.label.IntrinsicLabel;
+import decaf.lowlevel.label.Label;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Read a TAC program in the text format written by {@link TacProg#printTo}.
+ * <p>
+ * The input is read in a single pass, line by line, through a reused buffer: no line is ever turned into a string,
+ * and temps and labels are shared rather than created for every occurrence, so even a large input costs little more
+ * than the program it describes.
+ * <p>
+ * The text format leaves out a few things, which are recovered or defaulted:
+ * <ul>
+ *     <li>the number of arguments of a function: by the convention of {@link ProgramWriter}, arguments are the first
+ *     temps of a function, so it is the number of temps up to the last one which may be read before written;</li>
+ *     <li>compiler hints: none, which is always safe;</li>
+ *     <li>member variables of virtual tables: none, as they are only needed to generate TAC.</li>
+ * </ul>
+ */
+public final class TacReader {
+
+    /**
+     * Input is malformed.
+     */
+    public static final class MalformedTacException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * Position in the input, both starting from 1.
+         */
+        public final int line, column;
+
+        MalformedTacException(int line, int column, String message) {
+            super(message);
+            this.line = line;
+            this.column = column;
+        }
+    }
+
+    private final Reader in;
+
+    private final char[] buf = new char[1 << 16];
+
+    private int bufPos, bufLen;
+
+    private char[] line = new char[256];
+
+    private int len, pos, lineNo;
+
+    public TacReader(Reader in) {
+        this.in = in;
+    }
+
+    /**
+     * Read a TAC program from a UTF-8 stream.
+     *
+     * @param in input
+     * @return TAC program
+     * @throws IOException if {@code in} fails, or the input is malformed ({@link MalformedTacException})
+     */
+    public static TacProg read(InputStream in) throws IOException {
+        return new TacReader(new InputStreamReader(in, StandardCharsets.UTF_8)).read();
+    }
+
+    /**
+     * Read the whole input as a TAC program.
+     *
+     * @return TAC program
+     * @throws IOException if the input fails, or is malformed ({@link MalformedTacException})
+     */
+    public TacProg read() throws IOException {
+        var vtableSpecs = new ArrayList<VTableSpec>();
+        var funcs = new ArrayList<TacFunc>();
+
+        while (nextLine()) {
+            if (len == 0) {
+                continue;
+            }
+            if (startsWith("VTABLE<")) {
+                if (!funcs.isEmpty()) {
+                    throw error("virtual table after functions");
+                }
+                vtableSpecs.add(readVTable());
+            } else {
+                if (vtables == null) {
+                    linkVTables(vtableSpecs);
+                }
+                funcs.add(readFunc());
+            }
+        }
+        if (vtables == null) {
+            linkVTables(vtableSpecs);
+        }
+
+        return new TacProg(new ArrayList<>(vtables.values()), funcs);
+    }
+
+    private static final class VTableSpec {
+        final String className;
+        final Optional<String> parent;
+        final List<FuncLabel> methods = new ArrayList<>();
+        final int line;
+
+        VTableSpec(String className, Optional<String> parent, int line) {
+            this.className = className;
+            this.parent = parent;
+            this.line = line;
+        }
+    }
+
+    /**
+     * Virtual tables by class name, in the order they are read. Available once all are read.
+     */
+    private LinkedHashMap<String, VTable> vtables;
+
+    private VTableSpec readVTable() throws IOException {
+        var specLine = lineNo;
+        expect("VTABLE<");
+        var className = nameUntil('>');
+        expect(">:");
+        expectEnd();
+
+        expectLine();
+        expect("    ");
+        Optional<String> parent;
+        if (startsWith("NULL", pos)) {
+            expect("NULL");
+            parent = Optional.empty();
+        } else {
+            expect("VTABLE<");
+            parent = Optional.of(nameUntil('>'));
+            expect(">");
+        }
+        expectEnd();
+
+        expectLine();
+        expect("    ");
+        if (!stringLiteral().equals(className)) {
+            throw error("class name mismatch");
+        }
+        expectEnd();
+
+        var spec = new VTableSpec(className, parent, specLine);
+        while (nextLine() && len != 0) {
+            expect("    ");
+            spec.methods.add(funcLabel());
+            expectEnd();
+        }
+        return spec;
+    }
+
+    private void linkVTables(List<VTableSpec> specs) throws IOException {
+        var byName = new HashMap<String, VTableSpec>();
+        for (var spec : specs) {
+            if (byName.putIfAbsent(spec.className, spec) != null) {
+                throw new MalformedTacException(spec.line, 1, "duplicate virtual table " + spec.className);
+            }
+        }
+
+        vtables = new LinkedHashMap<>();
+        var created = new HashMap<String, VTable>();
+        for (var spec : specs) {
+            vtables.put(spec.className, link(spec, byName, created, 0));
+        }
+    }
+
+    private VTable link(VTableSpec spec, Map<String, VTableSpec> specs, Map<String, VTable> created, int depth)
+            throws IOException {
+        var vtbl = created.get(spec.className);
+        if (vtbl != null) {
+            return vtbl;
+        }
+        if (depth > specs.size()) {
+            throw new MalformedTacException(spec.line, 1, "cyclic inheritance of " + spec.className);
+        }
+
+        Optional<VTable> parent = Optional.empty();
+        if (spec.parent.isPresent()) {
+            var parentSpec = specs.get(spec.parent.get());
+            if (parentSpec == null) {
+                throw new MalformedTacException(spec.line, 1, "unknown virtual table " + spec.parent.get());
+            }
+            parent = Optional.of(link(parentSpec, specs, created, depth + 1));
+        }
+        vtbl = new VTable(spec.className, parent);
+        vtbl.memberMethods.addAll(spec.methods);
+        created.put(spec.className, vtbl);
+        return vtbl;
+    }
+
+    /**
+     * Temps of the function being read, by index.
+     */
+    private final ArrayList<Temp> temps = new ArrayList<>();
+
+    /**
+     * Local labels ({@code _L<n>}) of the function being read, by number.
+     */
+    private final HashMap<Integer, Label> localLabels = new HashMap<>();
+
+    /**
+     * Local labels marked in the function being read.
+     */
+    private final HashSet<Label> marked = new HashSet<>();
+
+    /**
+     * Function labels, by name.
+     */
+    private final HashMap<String, FuncLabel> funcLabels = new HashMap<>();
+
+    private static final Map<String, IntrinsicLabel> INTRINSICS = new HashMap<>();
+
+    static {
+        for (var intrinsic : Intrinsic.ALL) {
+            INTRINSICS.put(intrinsic.entry.name, intrinsic.entry);
+        }
+    }
+
+    private TacFunc readFunc() throws IOException {
+        temps.clear();
+        localLabels.clear();
+        marked.clear();
+
+        FuncLabel entry;
+        if (startsWith("FUNCTION<")) {
+            entry = funcLabel();
+        } else if (startsWith(FuncLabel.MAIN_LABEL.name)) {
+            pos = FuncLabel.MAIN_LABEL.name.length();
+            entry = FuncLabel.MAIN_LABEL;
+        } else {
+            throw error("function expected");
+        }
+        expect(":");
+        expectEnd();
+
+        var seq = new ArrayList<TacInstr>();
+        seq.add(new TacInstr.Mark(entry));
+        while (nextLine() && len != 0) {
+            if (line[0] == ' ') {
+                expect("    ");
+                seq.add(instr());
+            } else {
+                var label = localLabel();
+                if (!marked.add(label)) {
+                    pos = 0;
+                    throw error("duplicate label " + label.name);
+                }
+                seq.add(new TacInstr.Mark(label));
+                expect(":");
+            }
+            expectEnd();
+        }
+
+        for (var label : localLabels.values()) {
+            if (!marked.contains(label)) {
+                throw new MalformedTacException(lineNo, 1,
+                        "undefined label " + label.name + " in " + entry.prettyString());
+            }
+        }
+
+        var func = new TacFunc(entry, countArgs(seq, temps.size()));
+        func.instrSeq = seq;
+        func.tempUsed = Math.max(temps.size(), func.numArgs);
+        return func;
+    }
+
+    private TacInstr instr() throws IOException {
+        if (startsWith("memo '", pos)) {
+            pos += "memo '".length();
+            if (len == pos || line[len - 1] != '\'') {
+                throw error("' expected");
+            }
+            var msg = new String(line, pos, len - 1 - pos);
+            pos = len;
+            return new TacInstr.Memo(msg);
+        }
+        if (startsWith("return", pos)) {
+            pos += "return".length();
+            if (pos == len) {
+                return new TacInstr.Return();
+            }
+            expect(" ");
+            return new TacInstr.Return(temp());
+        }
+        if (startsWith("branch ", pos)) {
+            pos += "branch ".length();
+            return new TacInstr.Branch(localLabel());
+        }
+        if (startsWith("if (", pos)) {
+            pos += "if (".length();
+            var cond = temp();
+            TacInstr.CondBranch.Op op;
+            if (startsWith(" == 0", pos)) {
+                op = TacInstr.CondBranch.Op.BEQZ;
+            } else if (startsWith(" != 0", pos)) {
+                op = TacInstr.CondBranch.Op.BNEZ;
+            } else {
+                throw error("== 0 or != 0 expected");
+            }
+            pos += " == 0".length();
+            expect(") branch ");
+            return new TacInstr.CondBranch(op, cond, localLabel());
+        }
+        if (startsWith("parm ", pos)) {
+            pos += "parm ".length();
+            return new TacInstr.Parm(temp());
+        }
+        if (startsWith("call ", pos)) {
+            pos += "call ".length();
+            return call(Optional.empty());
+        }
+        if (startsWith("*(", pos)) {
+            pos += "*(".length();
+            var base = temp();
+            var offset = offset();
+            expect(") = ");
+            return new TacInstr.Memory(TacInstr.Memory.Op.STORE, temp(), base, offset);
+        }
+
+        var dst = temp();
+        expect(" = ");
+        if (pos == len) {
+            throw error("operand expected");
+        }
+        var c = line[pos];
+        if (startsWith("call ", pos)) {
+            pos += "call ".length();
+            return call(Optional.of(dst));
+        }
+        if (startsWith("*(", pos)) {
+            pos += "*(".length();
+            var base = temp();
+            var offset = offset();
+            expect(")");
+            return new TacInstr.Memory(TacInstr.Memory.Op.LOAD, dst, base, offset);
+        }
+        if (c == '(') {
+            pos++;
+            var lhs = temp();
+            expect(" ");
+            var op = binaryOp();
+            expect(" ");
+            var rhs = temp();
+            expect(")");
+            return new TacInstr.Binary(op, dst, lhs, rhs);
+        }
+        if ((c == '-' || c == '!') && startsWith(" _T", pos + 1)) {
+            pos += 2;
+            var op = c == '-' ? TacInstr.Unary.Op.NEG : TacInstr.Unary.Op.LNOT;
+            return new TacInstr.Unary(op, dst, temp());
+        }
+        if (c == '"') {
+            return new TacInstr.LoadStrConst(dst, stringLiteral());
+        }
+        if (startsWith("VTABLE<", pos)) {
+            pos += "VTABLE<".length();
+            var nameColumn = pos;
+            var name = nameUntil('>');
+            expect(">");
+            var vtbl = vtables.get(name);
+            if (vtbl == null) {
+                pos = nameColumn;
+                throw error("unknown virtual table " + name);
+            }
+            return new TacInstr.LoadVTbl(dst, vtbl);
+        }
+        if (startsWith("_T", pos)) {
+            return new TacInstr.Assign(dst, temp());
+        }
+        return new TacInstr.LoadImm4(dst, integer());
+    }
+
+    private TacInstr call(Optional<Temp> dst) throws IOException {
+        if (startsWith("_T", pos)) {
+            var entry = temp();
+            return dst.isPresent() ? new TacInstr.IndirectCall(dst.get(), entry) : new TacInstr.IndirectCall(entry);
+        }
+
+        Label entry;
+        if (startsWith("FUNCTION<", pos)) {
+            entry = funcLabel();
+        } else {
+            var start = pos;
+            var name = nameUntil('\0');
+            if (name.equals(FuncLabel.MAIN_LABEL.name)) {
+                entry = FuncLabel.MAIN_LABEL;
+            } else {
+                entry = INTRINSICS.get(name);
+                if (entry == null) {
+                    pos = start;
+                    throw error("unknown function " + name);
+                }
+            }
+        }
+        return dst.isPresent() ? new TacInstr.DirectCall(dst.get(), entry) : new TacInstr.DirectCall(entry);
+    }
+
+    private TacInstr.Binary.Op binaryOp() throws IOException {
+        var c = pos < len ? line[pos] : '\0';
+        var next = pos + 1 < len ? line[pos + 1] : '\0';
+        TacInstr.Binary.Op op;
+        var width = 1;
+        switch (c) {
+            case '+' -> op = TacInstr.Binary.Op.ADD;
+            case '-' -> op = TacInstr.Binary.Op.SUB;
+            case '*' -> op = TacInstr.Binary.Op.MUL;
+            case '/' -> op = TacInstr.Binary.Op.DIV;
+            case '%' -> op = TacInstr.Binary.Op.MOD;
+            case '=' -> {
+                op = TacInstr.Binary.Op.EQU;
+                width = 2;
+            }
+            case '!' -> {
+                op = TacInstr.Binary.Op.NEQ;
+                width = 2;
+            }
+            case '<' -> {
+                op = next == '=' ? TacInstr.Binary.Op.LEQ : TacInstr.Binary.Op.LES;
+                width = next == '=' ? 2 : 1;
+            }
+            case '>' -> {
+                op = next == '=' ? TacInstr.Binary.Op.GEQ : TacInstr.Binary.Op.GTR;
+                width = next == '=' ? 2 : 1;
+            }
+            case '&' -> {
+                op = TacInstr.Binary.Op.LAND;
+                width = 2;
+            }
+            case '|' -> {
+                op = TacInstr.Binary.Op.LOR;
+                width = 2;
+            }
+            default -> throw error("binary operator expected");
+        }
+        if (width == 2 && next != (c == '&' || c == '|' ? c : '=')) {
+            throw error("binary operator expected");
+        }
+        pos += width;
+        return op;
+    }
+
+    /**
+     * Offset of a memory access: {@code + n} or {@code - n}. A store prints a negative offset with both signs, i.e.
+     * {@code - -n}, which also means {@code -n}.
+     */
+    private int offset() throws IOException {
+        expect(" ");
+        boolean negative;
+        if (startsWith("+ ", pos)) {
+            negative = false;
+        } else if (startsWith("- ", pos)) {
+            negative = true;
+        } else {
+            throw error("+ or - expected");
+        }
+        pos += 2;
+        var value = integer();
+        return negative && value > 0 ? -value : value;
+    }
+
+    /**
+     * Number of arguments: one plus the index of the last temp which may be read before written, on any path from
+     * the entry. Unreachable code is ignored.
+     */
+    private static int countArgs(List<TacInstr> seq, int numTemps) {
+        var n = seq.size();
+
+        // split into basic blocks
+        var blockOf = new int[n];
+        var starts = new ArrayList<Integer>();
+        var labelBlock = new HashMap<Label, Integer>();
+        for (int i = 0; i < n; i++) {
+            var instr = seq.get(i);
+            var leader = i == 0 || instr.isLabel() || !seq.get(i - 1).isSequential() && !seq.get(i - 1).isLabel();
+            if (leader) {
+                starts.add(i);
+            }
+            blockOf[i] = starts.size() - 1;
+            if (instr.isLabel()) {
+                labelBlock.put(instr.label, blockOf[i]);
+            }
+        }
+        var numBlocks = starts.size();
+
+        // per block: temps written, and temps read before written
+        var written = new BitSet[numBlocks];
+        var exposed = new BitSet[numBlocks];
+        for (int b = 0; b < numBlocks; b++) {
+            written[b] = new BitSet(numTemps);
+            exposed[b] = new BitSet(numTemps);
+        }
+        for (int i = 0; i < n; i++) {
+            var b = blockOf[i];
+            for (var src : seq.get(i).srcs) {
+                if (!written[b].get(src.index)) {
+                    exposed[b].set(src.index);
+                }
+            }
+            for (var dst : seq.get(i).dsts) {
+                written[b].set(dst.index);
+            }
+        }
+
+        // forward: temps written on every path to the beginning of a block (null if unreachable so far)
+        var in = new BitSet[numBlocks];
+        in[0] = new BitSet(numTemps);
+        var worklist = new ArrayDeque<Integer>();
+        worklist.add(0);
+        var args = new BitSet(numTemps);
+        while (!worklist.isEmpty()) {
+            var b = worklist.poll();
+            var out = (BitSet) in[b].clone();
+            out.or(written[b]);
+
+            var last = seq.get(b + 1 < numBlocks ? starts.get(b + 1) - 1 : n - 1);
+            var succs = new ArrayList<Integer>(2);
+            if (last.kind == PseudoInstr.Kind.JMP || last.kind == PseudoInstr.Kind.COND_JMP) {
+                succs.add(labelBlock.get(last.label));
+            }
+            if ((last.kind != PseudoInstr.Kind.JMP && !last.isReturn()) && b + 1 < numBlocks) {
+                succs.add(b + 1);
+            }
+            for (var s : succs) {
+                if (in[s] == null) {
+                    in[s] = (BitSet) out.clone();
+                    worklist.add(s);
+                } else {
+                    var before = in[s].cardinality();
+                    in[s].and(out);
+                    if (in[s].cardinality() != before) {
+                        worklist.add(s);
+                    }
+                }
+            }
+        }
+        for (int b = 0; b < numBlocks; b++) {
+            if (in[b] != null) {
+                var reads = (BitSet) exposed[b].clone();
+                reads.andNot(in[b]);
+                args.or(reads);
+            }
+        }
+        return args.length();
+    }
+
+    private Temp temp() throws IOException {
+        if (!startsWith("_T", pos)) {
+            throw error("temp expected");
+        }
+        pos += 2;
+        var index = natural();
+        while (temps.size() <= index) {
+            temps.add(null);
+        }
+        var temp = temps.get(index);
+        if (temp == null) {
+            temp = new Temp(index);
+            temps.set(index, temp);
+        }
+        return temp;
+    }
+
+    private Label localLabel() throws IOException {
+        if (!startsWith("_L", pos)) {
+            throw error("label expected");
+        }
+        var start = pos;
+        pos += 2;
+        var index = natural();
+        var label = localLabels.get(index);
+        if (label == null) {
+            label = new Label(new String(line, start, pos - start));
+            localLabels.put(index, label);
+        }
+        return label;
+    }
+
+    private FuncLabel funcLabel() throws IOException {
+        expect("FUNCTION<");
+        var start = pos;
+        while (pos < len && line[pos] != '.' && line[pos] != '>') pos++;
+        var dot = pos;
+        expect(".");
+        while (pos < len && line[pos] != '>') pos++;
+        if (dot == start || pos == dot + 1) {
+            throw error("FUNCTION<class.method> expected");
+        }
+        var key = new String(line, start, pos - start);
+        var label = funcLabels.get(key);
+        if (label == null) {
+            label = new FuncLabel(key.substring(0, dot - start), key.substring(dot - start + 1));
+            funcLabels.put(key, label);
+        }
+        expect(">");
+        return label;
+    }
+
+    /**
+     * A name, up to {@code stop} or the end of line.
+     */
+    private String nameUntil(char stop) throws IOException {
+        var start = pos;
+        while (pos < len && line[pos] != stop) pos++;
+        if (pos == start) {
+            throw error("name expected");
+        }
+        return new String(line, start, pos - start);
+    }
+
+    private String stringLiteral() throws IOException {
+        expect("\"");
+        var sb = new StringBuilder();
+        while (true) {
+            if (pos == len) {
+                throw error("unterminated string");
+            }
+            var c = line[pos++];
+            if (c == '"') {
+                return sb.toString();
+            }
+            if (c == '\\') {
+                if (pos == len) {
+                    throw error("unterminated string");
+                }
+                c = line[pos++];
+                switch (c) {
+                    case 'n' -> sb.append('\n');
+                    case 't' -> sb.append('\t');
+                    case '"' -> sb.append('"');
+                    case '\\' -> sb.append('\\');
+                    default -> {
+                        pos--;
+                        throw error("bad escape character");
+                    }
+                }
+            } else {
+                sb.append(c);
+            }
+        }
+    }
+
+    private int integer() throws IOException {
+        var negative = pos < len && line[pos] == '-';
+        if (negative) {
+            pos++;
+        }
+        var start = pos;
+        long value = 0;
+        while (pos < len && line[pos] >= '0' && line[pos] <= '9') {
+            value = value * 10 + (line[pos++] - '0');
+            if (value > 1L + Integer.MAX_VALUE) {
+                pos = start;
+                throw error("integer out of range");
+            }
+        }
+        if (pos == start) {
+            throw error("integer expected");
+        }
+        value = negative ? -value : value;
+        if (value > Integer.MAX_VALUE) {
+            pos = start;
+            throw error("integer out of range");
+        }
+        return (int) value;
+    }
+
+    private int natural() throws IOException {
+        var start = pos;
+        var value = integer();
+        if (value < 0 || line[start] == '-') {
+            pos = start;
+            throw error("index expected");
+        }
+        return value;
+    }
+
+    private boolean startsWith(String prefix) {
+        return startsWith(prefix, 0);
+    }
+
+    private boolean startsWith(String prefix, int at) {
+        if (at + prefix.length() > len) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (line[at + i] != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void expect(String s) throws IOException {
+        if (!startsWith(s, pos)) {
+            throw error("'" + s + "' expected");
+        }
+        pos += s.length();
+    }
+
+    private void expectEnd() throws IOException {
+        if (pos != len) {
+            throw error("end of line expected");
+        }
+    }
+
+    private MalformedTacException error(String message) {
+        return new MalformedTacException(lineNo, pos + 1, message);
+    }
+
+    private void expectLine() throws IOException {
+        if (!nextLine() || len == 0) {
+            throw error("unexpected end of virtual table");
+        }
+    }
+
+    /**
+     * Read the next line (without line terminator) into {@link #line}.
+     *
+     * @return false if at the end of input
+     */
+    private boolean nextLine() throws IOException {
+        len = 0;
+        pos = 0;
+        var any = false;
+        while (true) {
+            if (bufPos == bufLen) {
+                bufLen = in.read(buf);
+                bufPos = 0;
+                if (bufLen <= 0) {
+                    bufLen = 0;
+                    if (any) {
+                        lineNo++;
+                    }
+                    return any;
+                }
+            }
+            any = true;
+            var c = buf[bufPos++];
+            if (c == '\n') {
+                if (len > 0 && line[len - 1] == '\r') {
+                    len--;
+                }
+                lineNo++;
+                return true;
+            }
+            if (len == line.length) {
+                line = Arrays.copyOf(line, len * 2);
+            }
+            line[len++] = c;
+        }
+    }
+}
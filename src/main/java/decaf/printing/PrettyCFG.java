@@ -2,6 +2,7 @@ package decaf.printing;
 
 import decaf.backend.dataflow.BasicBlock;
 import decaf.backend.dataflow.CFG;
+import decaf.backend.dataflow.LiveCursor;
 import decaf.lowlevel.instr.PseudoInstr;
 import decaf.lowlevel.log.IndentPrinter;
 
@@ -39,10 +40,16 @@ public class PrettyCFG<I extends PseudoInstr> extends PrettyPrinter<CFG<I>> {
 
         if (bb.isEmpty()) {
             printer.println("<empty>");
-        } else {
+        } else if (bb.liveOut == null) { // not analyzed
             for (var loc : bb) {
                 printer.prettyFormatLn("%s # liveOut = %s", loc.instr, loc.liveOut);
             }
+        } else {
+            var cursor = LiveCursor.atEntry(bb);
+            while (cursor.hasNext()) {
+                var loc = cursor.next();
+                printer.prettyFormatLn("%s # liveOut = %s", loc.instr, cursor.liveOut());
+            }
         }
 
         printer.decIndent();